@@ -22,6 +22,20 @@ package com.ledger.u2f;
 import javacard.security.ECPrivateKey;
 
 public interface FIDOAPI {
+    /**
+     * {@link #rewrap} result: the key handle was wrapped with the current wrapping key and is left unchanged.
+     */
+    byte REWRAP_CURRENT = (byte) 0x00;
+    /**
+     * {@link #rewrap} result: the key handle was wrapped with the previous wrapping key and is now wrapped with the
+     * current one.
+     */
+    byte REWRAP_DONE = (byte) 0x01;
+    /**
+     * {@link #rewrap} result: the key handle does not belong to the application under either key, it is zeroed.
+     */
+    byte REWRAP_INVALID = (byte) 0x02;
+
     /**
      * Generate a new KeyPair over NIST P-256, for application of <code>applicationParameter</code>, export the
      * public key into <code>publicKey</code> at <code>publicKeyOffset</code> and export the wrapped private key
@@ -52,4 +66,29 @@ public interface FIDOAPI {
      * @return true if a valid key belonging to the indicated application is obtained
      */
     boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey unwrappedPrivateKey);
+
+    /**
+     * Replace the wrapping key with a new random one, keeping the current key as the previous one. Key handles
+     * wrapped with the previous key are still unwrapped until it is retired.
+     *
+     * @return false, changing nothing, if the previous key is still set
+     */
+    boolean rotateWrappingKey();
+
+    /**
+     * Forget the previous wrapping key, once all its key handles have been re-wrapped.
+     */
+    void retirePreviousWrappingKey();
+
+    /**
+     * Re-wrap in place a 64 byte <code>keyHandle</code> at <code>keyHandleOffset</code> with the current wrapping key,
+     * if it was wrapped with the previous one for <code>applicationParameter</code>.
+     *
+     * @param keyHandle
+     * @param keyHandleOffset
+     * @param applicationParameter application the key handle was registered for
+     * @param applicationParameterOffset
+     * @return {@link #REWRAP_CURRENT}, {@link #REWRAP_DONE} or {@link #REWRAP_INVALID}
+     */
+    byte rewrap(byte[] keyHandle, short keyHandleOffset, byte[] applicationParameter, short applicationParameterOffset);
 }
@@ -28,8 +28,11 @@ public class FIDOStandalone implements FIDOAPI {
 
     private KeyPair keyPair;
     private AESKey chipKey;
+    private AESKey previousChipKey;
+    private boolean previousChipKeySet;
     private Cipher cipherEncrypt;
     private Cipher cipherDecrypt;
+    private Cipher cipherDecryptPrevious;
     private RandomData random;
     private byte[] scratch;
 
@@ -54,6 +57,9 @@ public class FIDOStandalone implements FIDOAPI {
         cipherEncrypt.init(chipKey, Cipher.MODE_ENCRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
         cipherDecrypt = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
         cipherDecrypt.init(chipKey, Cipher.MODE_DECRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
+        // The previous wrapping key, set by the first rotation
+        previousChipKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_256, false);
+        cipherDecryptPrevious = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
     }
 
     /**
@@ -76,7 +82,7 @@ public class FIDOStandalone implements FIDOAPI {
      * @param targetOffset
      * @param length 
      */
-    private static void interleave(byte[] array1, short array1Offset, byte[] array2, short array2Offset, byte[] target, short targetOffset, short length) {
+    static void interleave(byte[] array1, short array1Offset, byte[] array2, short array2Offset, byte[] target, short targetOffset, short length) {
         for (short i = 0; i < length; i++) {
             short a = (short) (array1[(short) (array1Offset + i)] & 0xff);
             short b = (short) (array2[(short) (array2Offset + i)] & 0xff);
@@ -99,7 +105,7 @@ public class FIDOStandalone implements FIDOAPI {
      * @param array2Offset
      * @param length 
      */
-    private static void deinterleave(byte[] src, short srcOffset, byte[] array1, short array1Offset, byte[] array2, short array2Offset, short length) {
+    static void deinterleave(byte[] src, short srcOffset, byte[] array1, short array1Offset, byte[] array2, short array2Offset, short length) {
         for (short i = 0; i < length; i++) {
             short a = (short) (src[(short) (srcOffset + 2 * i)] & 0xff);
             short b = (short) (src[(short) (srcOffset + 2 * i + 1)] & 0xff);
@@ -108,6 +114,37 @@ public class FIDOStandalone implements FIDOAPI {
         }
     }
 
+    /**
+     * Compare an array with the first halves of an interleaved byte array, without deinterleaving it.
+     * Comparison resistant to timing analysis, see {@link FIDOUtils#compareConstantTime}.
+     *
+     * @param interleaved
+     * @param interleavedOffset
+     * @param array
+     * @param arrayOffset
+     * @param length length of array, half the length of interleaved
+     * @return true if the array matches what {@link #deinterleave} would write to array1
+     */
+    static boolean compareDeinterleaved(byte[] interleaved, short interleavedOffset, byte[] array, short arrayOffset, short length) {
+        short givenLength = length;
+        byte status = (byte) 0;
+        short counter = (short) 0;
+
+        if (length == 0) {
+            return false;
+        }
+        while ((length--) != 0) {
+            short a = (short) (interleaved[(short) (interleavedOffset + 2 * length)] & 0xff);
+            short b = (short) (interleaved[(short) (interleavedOffset + 2 * length + 1)] & 0xff);
+            status |= (byte) (((short) (a & 0xf0) | (short) (b >> 4)) ^ array[(short) (arrayOffset + length)]);
+            counter++;
+        }
+        if (counter != givenLength) {
+            return false;
+        }
+        return (status == 0);
+    }
+
     /* @override */
     public short generateKeyAndWrap(byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey generatedPrivateKey, byte[] publicKey, short publicKeyOffset, byte[] keyHandle, short keyHandleOffset) {
         // Generate a new pair
@@ -124,20 +161,85 @@ public class FIDOStandalone implements FIDOAPI {
 
     /* @override */
     public boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey unwrappedPrivateKey) {
+        boolean previous = previousChipKeySet;
+        if (previous) {
+            // Keep the ciphertext for the previous key, the current one decrypts the key handle in place
+            Util.arrayCopyNonAtomic(keyHandle, keyHandleOffset, scratch, (short) 0, (short) 64);
+        }
         // Verify
         cipherDecrypt.doFinal(keyHandle, keyHandleOffset, (short) 64, keyHandle, keyHandleOffset);
-        deinterleave(keyHandle, keyHandleOffset, scratch, (short) 0, scratch, (short) 32, (short) 32);
-        if (!FIDOUtils.compareConstantTime(applicationParameter, applicationParameterOffset, scratch, (short) 0, (short) 32)) {
-            Util.arrayFillNonAtomic(scratch, (short) 32, (short) 32, (byte) 0x00);
-            Util.arrayFillNonAtomic(keyHandle, keyHandleOffset, (short) 64, (byte) 0x00);
-            return false;
+        boolean current = compareDeinterleaved(keyHandle, keyHandleOffset, applicationParameter, applicationParameterOffset, (short) 32);
+        boolean old = false;
+        if (previous) {
+            // Tried even when the current key matched, so the time taken does not tell which key wrapped the handle
+            cipherDecryptPrevious.doFinal(scratch, (short) 0, (short) 64, scratch, (short) 0);
+            old = compareDeinterleaved(scratch, (short) 0, applicationParameter, applicationParameterOffset, (short) 32);
         }
-        Util.arrayFillNonAtomic(keyHandle, keyHandleOffset, (short) 64, (byte) 0x00);
+        // Each plaintext is deinterleaved into the buffer not holding it
         if (unwrappedPrivateKey != null) {
-            unwrappedPrivateKey.setS(scratch, (short) 32, (short) 32);
+            if (current) {
+                deinterleave(keyHandle, keyHandleOffset, scratch, (short) 0, scratch, (short) 32, (short) 32);
+                unwrappedPrivateKey.setS(scratch, (short) 32, (short) 32);
+            } else if (old) {
+                deinterleave(scratch, (short) 0, keyHandle, keyHandleOffset, keyHandle, (short) (keyHandleOffset + 32), (short) 32);
+                unwrappedPrivateKey.setS(keyHandle, (short) (keyHandleOffset + 32), (short) 32);
+            }
         }
-        Util.arrayFillNonAtomic(scratch, (short) 32, (short) 32, (byte) 0x00);
+        Util.arrayFillNonAtomic(keyHandle, keyHandleOffset, (short) 64, (byte) 0x00);
+        Util.arrayFillNonAtomic(scratch, (short) 0, (short) 64, (byte) 0x00);
+        return (current || old);
+    }
+
+    /* @override */
+    public boolean rotateWrappingKey() {
+        if (previousChipKeySet) {
+            return false;
+        }
+        JCSystem.beginTransaction();
+        // The previous key is set first: on a platform updating key data outside of transactions, torn before the new
+        // key is set, both keys are the old one and no key handle is lost
+        chipKey.getKey(scratch, (short) 0);
+        previousChipKey.setKey(scratch, (short) 0);
+        previousChipKeySet = true;
+        random.nextBytes(scratch, (short) 0, (short) 32);
+        chipKey.setKey(scratch, (short) 0);
+        JCSystem.commitTransaction();
+        Util.arrayFillNonAtomic(scratch, (short) 0, (short) 32, (byte) 0x00);
+        cipherDecryptPrevious.init(previousChipKey, Cipher.MODE_DECRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
+        cipherEncrypt.init(chipKey, Cipher.MODE_ENCRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
+        cipherDecrypt.init(chipKey, Cipher.MODE_DECRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
         return true;
     }
 
+    /* @override */
+    public void retirePreviousWrappingKey() {
+        JCSystem.beginTransaction();
+        previousChipKeySet = false;
+        previousChipKey.clearKey();
+        JCSystem.commitTransaction();
+    }
+
+    /* @override */
+    public byte rewrap(byte[] keyHandle, short keyHandleOffset, byte[] applicationParameter, short applicationParameterOffset) {
+        Util.arrayCopyNonAtomic(keyHandle, keyHandleOffset, scratch, (short) 0, (short) 64);
+        cipherDecrypt.doFinal(keyHandle, keyHandleOffset, (short) 64, keyHandle, keyHandleOffset);
+        if (compareDeinterleaved(keyHandle, keyHandleOffset, applicationParameter, applicationParameterOffset, (short) 32)) {
+            Util.arrayCopyNonAtomic(scratch, (short) 0, keyHandle, keyHandleOffset, (short) 64);
+            Util.arrayFillNonAtomic(scratch, (short) 0, (short) 64, (byte) 0x00);
+            return REWRAP_CURRENT;
+        }
+        if (previousChipKeySet) {
+            cipherDecryptPrevious.doFinal(scratch, (short) 0, (short) 64, keyHandle, keyHandleOffset);
+            if (compareDeinterleaved(keyHandle, keyHandleOffset, applicationParameter, applicationParameterOffset, (short) 32)) {
+                // The interleaved plaintext is in the key handle, wrap it again with the current key
+                cipherEncrypt.doFinal(keyHandle, keyHandleOffset, (short) 64, keyHandle, keyHandleOffset);
+                Util.arrayFillNonAtomic(scratch, (short) 0, (short) 64, (byte) 0x00);
+                return REWRAP_DONE;
+            }
+        }
+        Util.arrayFillNonAtomic(keyHandle, keyHandleOffset, (short) 64, (byte) 0x00);
+        Util.arrayFillNonAtomic(scratch, (short) 0, (short) 64, (byte) 0x00);
+        return REWRAP_INVALID;
+    }
+
 }
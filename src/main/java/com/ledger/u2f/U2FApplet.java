@@ -55,6 +55,8 @@ public class U2FApplet extends Applet implements ExtendedLength {
 
     private static final byte PROPRIETARY_CLA = (byte) 0xF0;
     private static final byte FIDO_ADM_SET_ATTESTATION_CERT = (byte) 0x01;
+    private static final byte FIDO_ADM_ROTATE_WRAPPING_KEY = (byte) 0x40;
+    private static final byte FIDO_ADM_REWRAP = (byte) 0x41;
 
     private static final byte SCRATCH_TRANSPORT_STATE = (byte) 0;
     private static final byte SCRATCH_CURRENT_OFFSET = (byte) 1;
@@ -81,6 +83,12 @@ public class U2FApplet extends Applet implements ExtendedLength {
 
     private static final byte P1_SIGN_OPERATION = (byte) 0x03;
     private static final byte P1_SIGN_CHECK_ONLY = (byte) 0x07;
+    private static final byte P1_ROTATE = (byte) 0x00;
+    private static final byte P1_RETIRE_PREVIOUS = (byte) 0x01;
+
+    // Re-wrap entries are application parameter (32 bytes) || key handle (64 bytes), results status (1 byte) || key handle
+    private static final short REWRAP_ENTRY_SIZE = (short) (32 + 64);
+    private static final short REWRAP_RESULT_SIZE = (short) (1 + 64);
 
     private static final byte ENROLL_LEGACY_VERSION = (byte) 0x05;
     private static final byte RFU_ENROLL_SIGNED_VERSION[] = {(byte) 0x00};
@@ -97,6 +105,7 @@ public class U2FApplet extends Applet implements ExtendedLength {
     private static final short FIDO_SW_INVALID_KEY_HANDLE = ISO7816.SW_WRONG_DATA;
 
     private static final byte INSTALL_FLAG_DISABLE_USER_PRESENCE = (byte) 0x01;
+    private static final byte INSTALL_FLAG_ENABLE_KEY_ROTATION = (byte) 0x02;
 
     /**
      * Applet setup which sets flags, attestation certificate length and private attestation key.
@@ -315,6 +324,72 @@ public class U2FApplet extends Applet implements ExtendedLength {
         }
     }
 
+    /**
+     * Handle the wrapping key rotation command: P1 = 0x00 rotates, P1 = 0x01 retires the previous key.
+     * Both need the key rotation install flag, set by the issuer at provisioning, and user presence. A rotation is
+     * refused while the previous key is set, it would lose the key handles not re-wrapped yet.
+     *
+     * @param apdu
+     * @throws ISOException
+     */
+    private void handleRotateWrappingKey(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        byte p1 = buffer[ISO7816.OFFSET_P1];
+        if ((p1 != P1_ROTATE) && (p1 != P1_RETIRE_PREVIOUS)) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if ((flags & INSTALL_FLAG_ENABLE_KEY_ROTATION) == 0) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if ((flags & INSTALL_FLAG_DISABLE_USER_PRESENCE) == 0) {
+            if (scratchPersistent[0] != 0) {
+                ISOException.throwIt(FIDO_SW_TEST_OF_PRESENCE_REQUIRED);
+            }
+        }
+        if (p1 == P1_ROTATE) {
+            if (!fidoImpl.rotateWrappingKey()) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+        } else {
+            fidoImpl.retirePreviousWrappingKey();
+        }
+        scratchPersistent[0] = (byte) 1;
+    }
+
+    /**
+     * Handle the batch re-wrap command.
+     * Each entry of the command data is an application parameter and a key handle, each result in the response a
+     * status (see {@link FIDOAPI#rewrap}) and the key handle, re-wrapped with the current key if it was wrapped
+     * with the previous one. Results are written over the entries already processed.
+     *
+     * @param apdu
+     * @throws ISOException
+     */
+    private void handleRewrap(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        short received = apdu.setIncomingAndReceive();
+        short dataOffset = apdu.getOffsetCdata();
+        short len = apdu.getIncomingLength();
+        if ((len == 0) || ((short) (len % REWRAP_ENTRY_SIZE) != 0) || ((short) (dataOffset + len) > (short) buffer.length)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        while (received < len) {
+            received += apdu.receiveBytes((short) (dataOffset + received));
+        }
+        short entries = (short) (len / REWRAP_ENTRY_SIZE);
+        short outOffset = (short) 0;
+        for (short i = 0; i < entries; i++) {
+            short entryOffset = (short) (dataOffset + i * REWRAP_ENTRY_SIZE);
+            short keyHandleOffset = (short) (entryOffset + 32);
+            byte status = fidoImpl.rewrap(buffer, keyHandleOffset, buffer, entryOffset);
+            // The result ends before the next entry starts
+            Util.arrayCopyNonAtomic(buffer, keyHandleOffset, buffer, (short) (outOffset + 1), (short) 64);
+            buffer[outOffset] = status;
+            outOffset += REWRAP_RESULT_SIZE;
+        }
+        apdu.setOutgoingAndSend((short) 0, outOffset);
+    }
+
     /**
      * Handle U2F_GET_VERSION.
      *
@@ -330,12 +405,13 @@ public class U2FApplet extends Applet implements ExtendedLength {
     /**
      * Handle the ISO7816 GET_DATA command.
      * Either send data from enrollment or authentication, what was last.
+     * Each part is streamed from where it is kept rather than assembled in the APDU buffer, so an extended Le
+     * larger than the buffer gets the whole remaining response at once.
      *
      * @param apdu
      * @throws ISOException
      */
     private void handleGetData(APDU apdu) throws ISOException {
-        byte[] buffer = apdu.getBuffer();
         short currentOffset = Util.getShort(scratch, SCRATCH_CURRENT_OFFSET);
         short fullLength = Util.getShort(scratch, SCRATCH_FULL_LENGTH);
         switch (scratch[SCRATCH_TRANSPORT_STATE]) {
@@ -347,19 +423,21 @@ public class U2FApplet extends Applet implements ExtendedLength {
                 ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         short requestedSize = apdu.setOutgoing();
-        short outOffset = (short) 0;
+        if (requestedSize > fullLength) {
+            requestedSize = fullLength;
+        }
+        apdu.setOutgoingLength(requestedSize);
+        fullLength -= requestedSize;
         if (scratch[SCRATCH_TRANSPORT_STATE] == TRANSPORT_NOT_EXTENDED) {
             short dataSize = Util.getShort(scratch, SCRATCH_NONCERT_LENGTH);
             short blockSize = ((short) (dataSize - currentOffset) > requestedSize ? requestedSize : (short) (dataSize - currentOffset));
-            Util.arrayCopyNonAtomic(scratch, (short) (SCRATCH_PAD + currentOffset), buffer, outOffset, blockSize);
-            outOffset += blockSize;
+            apdu.sendBytesLong(scratch, (short) (SCRATCH_PAD + currentOffset), blockSize);
             currentOffset += blockSize;
-            fullLength -= blockSize;
+            requestedSize -= blockSize;
             if (currentOffset == dataSize) {
                 if (scratch[SCRATCH_INCLUDE_CERT] == (byte) 1) {
                     scratch[SCRATCH_TRANSPORT_STATE] = TRANSPORT_NOT_EXTENDED_CERT;
                     currentOffset = (short) 0;
-                    requestedSize -= blockSize;
                 } else {
                     scratch[SCRATCH_TRANSPORT_STATE] = TRANSPORT_NONE;
                 }
@@ -367,33 +445,29 @@ public class U2FApplet extends Applet implements ExtendedLength {
         }
         if ((scratch[SCRATCH_TRANSPORT_STATE] == TRANSPORT_NOT_EXTENDED_CERT) && (requestedSize != (short) 0)) {
             short blockSize = ((short) (attestationCertificate.length - currentOffset) > requestedSize ? requestedSize : (short) (attestationCertificate.length - currentOffset));
-            Util.arrayCopyNonAtomic(attestationCertificate, currentOffset, buffer, outOffset, blockSize);
-            outOffset += blockSize;
+            apdu.sendBytesLong(attestationCertificate, currentOffset, blockSize);
             currentOffset += blockSize;
-            fullLength -= blockSize;
+            requestedSize -= blockSize;
             if (currentOffset == (short) attestationCertificate.length) {
                 if (Util.getShort(scratch, SCRATCH_SIGNATURE_LENGTH) != (short) 0) {
                     scratch[SCRATCH_TRANSPORT_STATE] = TRANSPORT_NOT_EXTENDED_SIGNATURE;
                     currentOffset = (short) 0;
-                    requestedSize -= blockSize;
                 } else {
                     scratch[SCRATCH_TRANSPORT_STATE] = TRANSPORT_NONE;
                 }
             }
         }
         if ((scratch[SCRATCH_TRANSPORT_STATE] == TRANSPORT_NOT_EXTENDED_SIGNATURE) && (requestedSize != (short) 0)) {
-            short signatureSize = Util.getShort(scratch, SCRATCH_SIGNATURE_LENGTH);
-            short blockSize = ((short) (signatureSize - currentOffset) > requestedSize ? requestedSize : (short) (signatureSize - currentOffset));
-            Util.arrayCopyNonAtomic(scratch, (short) (SCRATCH_SIGNATURE_OFFSET + currentOffset), buffer, outOffset, blockSize);
-            outOffset += blockSize;
-            currentOffset += blockSize;
-            fullLength -= blockSize;
+            apdu.sendBytesLong(scratch, (short) (SCRATCH_SIGNATURE_OFFSET + currentOffset), requestedSize);
+            currentOffset += requestedSize;
+            if (currentOffset == Util.getShort(scratch, SCRATCH_SIGNATURE_LENGTH)) {
+                scratch[SCRATCH_TRANSPORT_STATE] = TRANSPORT_NONE;
+            }
         }
-        apdu.setOutgoingLength(outOffset);
-        apdu.sendBytes((short) 0, outOffset);
         Util.setShort(scratch, SCRATCH_CURRENT_OFFSET, currentOffset);
         Util.setShort(scratch, SCRATCH_FULL_LENGTH, fullLength);
-        if (fullLength > 256) {
+        // 61 00 announces 256 bytes or more, 61 xx fewer
+        if (fullLength >= 256) {
             ISOException.throwIt(ISO7816.SW_BYTES_REMAINING_00);
         } else if (fullLength != 0) {
             ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 + fullLength));
@@ -411,13 +485,22 @@ public class U2FApplet extends Applet implements ExtendedLength {
             return;
         }
         if (buffer[ISO7816.OFFSET_CLA] == PROPRIETARY_CLA) {
-            if (attestationCertificateSet) {
+            byte ins = buffer[ISO7816.OFFSET_INS];
+            // Wrapping key management needs a provisioned card, provisioning is refused once done
+            boolean keyManagement = ((ins == FIDO_ADM_ROTATE_WRAPPING_KEY) || (ins == FIDO_ADM_REWRAP));
+            if (attestationCertificateSet != keyManagement) {
                 ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
             }
-            switch (buffer[ISO7816.OFFSET_INS]) {
+            switch (ins) {
                 case FIDO_ADM_SET_ATTESTATION_CERT:
                     handleSetAttestationCert(apdu);
                     break;
+                case FIDO_ADM_ROTATE_WRAPPING_KEY:
+                    handleRotateWrappingKey(apdu);
+                    break;
+                case FIDO_ADM_REWRAP:
+                    handleRewrap(apdu);
+                    break;
                 default:
                     ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
             }
@@ -0,0 +1,27 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+
+/**
+ * A channel to a U2F authenticator that exchanges raw APDUs without allocating intermediate objects.
+ */
+public interface APDUTransport {
+
+    /**
+     * @return true if the transport can carry extended length command and response APDUs
+     */
+    boolean isExtendedLengthSupported();
+
+    /**
+     * Send the first <code>commandLength</code> bytes of <code>command</code> and write the response, including the
+     * trailing status word, into <code>response</code> at <code>responseOffset</code>.
+     *
+     * @param command encoded command APDU
+     * @param commandLength number of valid bytes in command
+     * @param response output array, must have room for the expected response and status word
+     * @param responseOffset offset into output array
+     * @return number of bytes written into response, status word included
+     * @throws CardException if the exchange failed or the response does not fit
+     */
+    int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException;
+}
@@ -0,0 +1,36 @@
+package com.ledger.u2f;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning one <code>U2FApplet.process</code> dispatch in the simulator.
+ */
+@Name("com.ledger.u2f.Apdu")
+@Label("U2F APDU")
+@Category("U2F")
+@Description("Command processed by the simulated U2F applet")
+@StackTrace(false)
+public class ApduEvent extends Event {
+    @Label("Instruction")
+    int ins;
+
+    @Label("P1")
+    int p1;
+
+    @Label("Data Length")
+    @DataAmount(DataAmount.BYTES)
+    int dataLength;
+
+    @Label("Status Word")
+    int statusWord;
+
+    @Label("Transport")
+    @Description("extended or short length encoding of the command")
+    String transport;
+}
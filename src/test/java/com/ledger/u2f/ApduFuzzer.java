@@ -0,0 +1,333 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coverage guided fuzzer for the command dispatcher of {@link U2FApplet}: mutates sequences of raw APDUs and runs
+ * each on a simulator restored to a base snapshot, one simulator per worker thread.
+ * <p>
+ * There is no bytecode instrumentation in the harness, so coverage is taken from the applet state machine: for
+ * every command the instruction (and P1 for SIGN), the status word, the GET DATA transport state before and after,
+ * and buckets of the command length and of the chaining offset, plus the pair of consecutive commands. A sequence
+ * joins the shared corpus only when it is the first to reach a feature, and the corpus is bounded by
+ * {@link #MAX_CORPUS}: once full, a new entry replaces a random one other than the seeds. Two bases are used, a
+ * provisioned card and one still waiting for its attestation certificate, so the proprietary certificate upload is
+ * reached as well.
+ * <p>
+ * A status word of 6F00 means the applet let an unexpected exception escape and is reported as a finding. Commands
+ * the simulator refuses to deliver (malformed length fields) are only counted.
+ * Usage: <code>gradle benchmark -Pbenchmark=ApduFuzzer [-Pargs="seconds workers"]</code>.
+ */
+public class ApduFuzzer {
+    static final int MAX_SEQUENCE = 8;
+    static final int MAX_APDU = 512;
+    static final int MAX_CORPUS = 4096;
+
+    private static final byte PROPRIETARY_CLA = (byte) 0xF0;
+    private static final byte FIDO_ADM_SET_ATTESTATION_CERT = (byte) 0x01;
+    private static final int SW_UNKNOWN = 0x6F00;
+    private static final int BASE_PROVISIONED = 0;
+    private static final int BASE_UNCERTIFIED = 1;
+    private static final byte[] INTERESTING = {0x00, 0x01, 0x02, 0x03, 0x07, 0x08, 0x40, 0x41, 0x7f, (byte) 0x80, (byte) 0x81, (byte) 0xfe, (byte) 0xff};
+
+    private static class Entry {
+        final int base;
+        final List<byte[]> sequence;
+
+        Entry(int base, List<byte[]> sequence) {
+            this.base = base;
+            this.sequence = sequence;
+        }
+    }
+
+    private final U2FAppletSnapshot[] bases = new U2FAppletSnapshot[2];
+    private final List<byte[]> dictionary = new ArrayList<>();
+    // Append only until full, entries are published after the size is claimed, so a reader may see a null slot
+    private final AtomicReferenceArray<Entry> corpus = new AtomicReferenceArray<>(MAX_CORPUS);
+    private final AtomicInteger corpusSize = new AtomicInteger();
+    private final int seeds;
+    private final Set<Integer> features = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, FuzzReport.Finding> findings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> rejected = new ConcurrentHashMap<>();
+    private final LongAdder apdus = new LongAdder();
+
+    /**
+     * Build the base snapshots, the command dictionary and the seed corpus on a simulator of the calling thread.
+     */
+    public ApduFuzzer() throws CardException {
+        U2FSimulator card = new U2FSimulator();
+        card.provision((byte) (SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE | SimulatorTestBase.INSTALL_FLAG_ENABLE_KEY_ROTATION), U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        RegistrationResponse registration = new U2FClient(card.transport()).register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        bases[BASE_PROVISIONED] = card.snapshot();
+        card.install(card.snapshot().installParameters());
+        bases[BASE_UNCERTIFIED] = card.snapshot();
+
+        byte[] enrollData = concat(U2FTest.challenge, U2FTest.application);
+        byte[] signData = concat(enrollData, new byte[]{(byte) keyHandle.length}, keyHandle);
+        byte[] getData = {0, U2FClient.ISO_INS_GET_DATA, 0, 0, 0};
+        byte[] enrollShort = shortApdu((byte) 0, U2FClient.FIDO_INS_ENROLL, (byte) 0, (byte) 0, enrollData);
+        dictionary.add(enrollShort);
+        dictionary.add(extendedApdu((byte) 0, U2FClient.FIDO_INS_ENROLL, (byte) 0, (byte) 0, enrollData));
+        dictionary.add(shortApdu((byte) 0, U2FClient.FIDO_INS_SIGN, U2FClient.P1_SIGN_OPERATION, (byte) 0, signData));
+        dictionary.add(extendedApdu((byte) 0, U2FClient.FIDO_INS_SIGN, U2FClient.P1_SIGN_OPERATION, (byte) 0, signData));
+        dictionary.add(shortApdu((byte) 0, U2FClient.FIDO_INS_SIGN, U2FClient.P1_SIGN_CHECK_ONLY, (byte) 0, signData));
+        dictionary.add(shortApdu((byte) 0, U2FClient.FIDO_INS_SIGN, (byte) 0x08, (byte) 0, signData));
+        dictionary.add(getData);
+        dictionary.add(new byte[]{0, U2FClient.ISO_INS_GET_DATA, 0, 0, 0x10});
+        dictionary.add(new byte[]{0, U2FClient.FIDO_INS_VERSION, 0, 0, 0});
+        dictionary.add(new byte[]{PROPRIETARY_CLA, U2FClient.FIDO_ADM_ROTATE_WRAPPING_KEY, U2FClient.P1_ROTATE, 0, 0});
+        dictionary.add(new byte[]{PROPRIETARY_CLA, U2FClient.FIDO_ADM_ROTATE_WRAPPING_KEY, U2FClient.P1_RETIRE_PREVIOUS, 0, 0});
+        dictionary.add(shortApdu(PROPRIETARY_CLA, U2FClient.FIDO_ADM_REWRAP, (byte) 0, (byte) 0, concat(U2FTest.application, keyHandle)));
+        dictionary.add(shortApdu((byte) 0, (byte) 0xA4, (byte) 0x04, (byte) 0, U2FSimulator.AID_BYTES));
+        int certificateLength = U2FTest.attestationCert.length;
+        dictionary.add(shortApdu(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, (byte) 0, (byte) 0, Arrays.copyOf(U2FTest.attestationCert, 128)));
+        dictionary.add(shortApdu(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, (byte) ((certificateLength - 16) >> 8), (byte) (certificateLength - 16),
+                Arrays.copyOfRange(U2FTest.attestationCert, certificateLength - 16, certificateLength)));
+
+        for (byte[] apdu : dictionary) {
+            boolean provisioning = apdu[0] == PROPRIETARY_CLA && apdu[1] == FIDO_ADM_SET_ATTESTATION_CERT;
+            addToCorpus(new Entry(provisioning ? BASE_UNCERTIFIED : BASE_PROVISIONED, Arrays.asList(apdu)), null);
+        }
+        addToCorpus(new Entry(BASE_PROVISIONED, Arrays.asList(enrollShort, getData, getData, getData)), null);
+        seeds = corpusSize.get();
+    }
+
+    /**
+     * @param random picks the entry to replace once the corpus is full
+     */
+    private void addToCorpus(Entry entry, Random random) {
+        int size;
+        do {
+            size = corpusSize.get();
+            if (size == MAX_CORPUS) {
+                corpus.set(seeds + random.nextInt(MAX_CORPUS - seeds), entry);
+                return;
+            }
+        } while (!corpusSize.compareAndSet(size, size + 1));
+        corpus.set(size, entry);
+    }
+
+    private Entry pickFromCorpus(Random random) {
+        Entry entry = corpus.get(random.nextInt(corpusSize.get()));
+        // Claimed but not published yet, the seeds always are
+        return entry != null ? entry : corpus.get(random.nextInt(seeds));
+    }
+
+    static byte[] shortApdu(byte cla, byte ins, byte p1, byte p2, byte[] data) {
+        byte[] apdu = new byte[5 + data.length + 1];
+        apdu[0] = cla;
+        apdu[1] = ins;
+        apdu[2] = p1;
+        apdu[3] = p2;
+        apdu[4] = (byte) data.length;
+        System.arraycopy(data, 0, apdu, 5, data.length);
+        return apdu;
+    }
+
+    static byte[] extendedApdu(byte cla, byte ins, byte p1, byte p2, byte[] data) {
+        byte[] apdu = new byte[7 + data.length + 2];
+        apdu[0] = cla;
+        apdu[1] = ins;
+        apdu[2] = p1;
+        apdu[3] = p2;
+        apdu[5] = (byte) (data.length >> 8);
+        apdu[6] = (byte) data.length;
+        System.arraycopy(data, 0, apdu, 7, data.length);
+        return apdu;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * Fuzz until either budget is spent.
+     *
+     * @param workers threads, each with its own simulator
+     * @param maxExecutions sequences to run in total
+     * @param maxNanos wall clock budget
+     */
+    public FuzzReport run(int workers, long maxExecutions, long maxNanos, long seed) throws InterruptedException {
+        AtomicLong executions = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+        long deadline = start + maxNanos;
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            Random random = new Random(seed + i);
+            threads[i] = new Thread(() -> {
+                try {
+                    U2FSimulator card = new U2FSimulator();
+                    while (System.nanoTime() < deadline && executions.getAndIncrement() < maxExecutions) {
+                        Entry parent = pickFromCorpus(random);
+                        execute(card, new Entry(parent.base, mutate(parent.sequence, random)), random);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "fuzzer-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Fuzzer worker failed", failure.get());
+        }
+        Map<String, Long> rejectedCounts = new TreeMap<>();
+        rejected.forEach((key, count) -> rejectedCounts.put(key, count.sum()));
+        return new FuzzReport(Math.min(executions.get(), maxExecutions), apdus.sum(), System.nanoTime() - start,
+                features.size(), corpusSize.get(), new ArrayList<>(new TreeMap<>(findings).values()), rejectedCounts);
+    }
+
+    private void execute(U2FSimulator card, Entry entry, Random random) {
+        card.restore(bases[entry.base]);
+        byte[] scratch = U2FAppletAccess.scratch(card.applet());
+        int previous = entry.base;
+        boolean novel = false;
+        for (int i = 0; i < entry.sequence.size(); i++) {
+            byte[] apdu = entry.sequence.get(i);
+            int stateBefore = scratch[0];
+            byte[] response;
+            try {
+                response = card.simulator().transmitCommand(apdu);
+            } catch (RuntimeException e) {
+                rejected.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+                break;
+            }
+            apdus.increment();
+            int sw = response.length < 2 ? -1 : ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+            int currentOffset = ((scratch[1] & 0xff) << 8) | (scratch[2] & 0xff);
+            int feature = feature(apdu, sw, stateBefore, scratch[0], currentOffset);
+            novel |= features.add(feature);
+            novel |= features.add(mix(previous * 31 + feature));
+            previous = feature;
+            if (sw == SW_UNKNOWN) {
+                String key = String.format("6F00 CLA %02X INS %02X P1 %02X state %d", apdu[0], apdu.length > 1 ? apdu[1] : 0,
+                        apdu.length > 2 ? apdu[2] : 0, stateBefore);
+                findings.putIfAbsent(key, new FuzzReport.Finding(key, new ArrayList<>(entry.sequence.subList(0, i + 1))));
+            }
+        }
+        if (novel) {
+            addToCorpus(entry, random);
+        }
+    }
+
+    static int feature(byte[] apdu, int sw, int stateBefore, int stateAfter, int currentOffset) {
+        int cla = apdu.length == 0 ? 3 : apdu[0] == 0 ? 0 : apdu[0] == PROPRIETARY_CLA ? 1 : 2;
+        int ins = apdu.length > 1 ? apdu[1] & 0xff : 0x100;
+        int p1 = ins == U2FClient.FIDO_INS_SIGN && apdu.length > 2 ? apdu[2] & 0xff : 0;
+        int swKey = (sw & 0xff00) == U2FClient.SW_BYTES_REMAINING_00 ? U2FClient.SW_BYTES_REMAINING_00 | bucket(sw & 0xff) : sw;
+        int encoding = apdu.length <= 5 ? 0 : apdu[4] == 0 ? 1 : 2;
+        int h = cla;
+        h = h * 31 + ins;
+        h = h * 31 + p1;
+        h = h * 31 + swKey;
+        h = h * 31 + stateBefore;
+        h = h * 31 + stateAfter;
+        h = h * 31 + encoding;
+        h = h * 31 + bucket(apdu.length);
+        h = h * 31 + bucket(currentOffset);
+        return mix(h);
+    }
+
+    private static int bucket(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    List<byte[]> mutate(List<byte[]> parent, Random random) {
+        List<byte[]> sequence = new ArrayList<>(parent);
+        int rounds = 1 + random.nextInt(4);
+        for (int round = 0; round < rounds; round++) {
+            int index = random.nextInt(sequence.size());
+            byte[] apdu = sequence.get(index);
+            switch (random.nextInt(8)) {
+                case 0:
+                    apdu = apdu.clone();
+                    apdu[random.nextInt(apdu.length)] ^= (byte) (1 << random.nextInt(8));
+                    break;
+                case 1:
+                    apdu = apdu.clone();
+                    apdu[random.nextInt(apdu.length)] = INTERESTING[random.nextInt(INTERESTING.length)];
+                    break;
+                case 2:
+                    // Header and length fields
+                    apdu = apdu.clone();
+                    apdu[random.nextInt(Math.min(apdu.length, 7))] = random.nextBoolean() ? INTERESTING[random.nextInt(INTERESTING.length)] : (byte) random.nextInt();
+                    break;
+                case 3:
+                    int length = 4 + random.nextInt(Math.min(MAX_APDU, apdu.length + 64) - 3);
+                    byte[] resized = Arrays.copyOf(apdu, length);
+                    for (int i = apdu.length; i < length; i++) {
+                        resized[i] = (byte) random.nextInt();
+                    }
+                    apdu = resized;
+                    break;
+                case 4:
+                    if (sequence.size() < MAX_SEQUENCE) {
+                        sequence.add(random.nextInt(sequence.size() + 1), dictionary.get(random.nextInt(dictionary.size())));
+                    }
+                    continue;
+                case 5:
+                    if (sequence.size() > 1) {
+                        sequence.remove(index);
+                    }
+                    continue;
+                case 6:
+                    if (sequence.size() < MAX_SEQUENCE) {
+                        sequence.add(index, apdu);
+                    }
+                    continue;
+                default:
+                    List<byte[]> other = pickFromCorpus(random).sequence;
+                    List<byte[]> spliced = new ArrayList<>(sequence.subList(0, index + 1));
+                    spliced.addAll(other.subList(random.nextInt(other.size()), other.size()));
+                    sequence = spliced.size() > MAX_SEQUENCE ? new ArrayList<>(spliced.subList(0, MAX_SEQUENCE)) : spliced;
+                    continue;
+            }
+            sequence.set(index, apdu);
+        }
+        return sequence;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 30;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        FuzzReport report = new ApduFuzzer().run(workers, Long.MAX_VALUE, seconds * 1000000000L, System.nanoTime());
+        System.out.print(report);
+    }
+}
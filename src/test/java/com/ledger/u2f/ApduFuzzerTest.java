@@ -0,0 +1,41 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ApduFuzzerTest {
+
+    @Test
+    public void testShortRun() throws CardException, InterruptedException {
+        ApduFuzzer fuzzer = new ApduFuzzer();
+        FuzzReport report = fuzzer.run(2, 400, 60000000000L, 1);
+        assertThat(report.executions(), is(400L));
+        assertThat(report.apdus(), is(greaterThanOrEqualTo(400L - report.rejected().values().stream().mapToLong(Long::longValue).sum())));
+        assertThat(report.features(), is(greaterThan(10)));
+        assertThat(report.executionsPerSecond(), is(greaterThan(0.0)));
+        assertThat(report.toString(), report.findings(), is(empty()));
+    }
+
+    @Test
+    public void testMutationsStayBounded() throws CardException {
+        ApduFuzzer fuzzer = new ApduFuzzer();
+        Random random = new Random(1);
+        List<byte[]> sequence = Arrays.asList(new byte[]{0, 3, 0, 0, 0});
+        for (int i = 0; i < 10000; i++) {
+            sequence = fuzzer.mutate(sequence, random);
+            assertThat(sequence.size(), is(greaterThan(0)));
+            assertThat(sequence.size(), is(lessThanOrEqualTo(ApduFuzzer.MAX_SEQUENCE)));
+            for (byte[] apdu : sequence) {
+                assertThat(apdu.length, is(greaterThanOrEqualTo(4)));
+                assertThat(apdu.length, is(lessThanOrEqualTo(ApduFuzzer.MAX_APDU)));
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Transport decorator appending every exchange to a binary trace file, for {@link ApduTraceReplayer}.
+ * <p>
+ * Trace layout: a header (magic, version) written when the file is created, then tagged records. A session record
+ * (epoch milliseconds) starts every recorder opened on the file. An exchange record holds, as unsigned LEB128
+ * varints, the nanoseconds since the previous exchange or session start and the duration of the exchange, then
+ * the command and the response (data and status word) each prefixed by its length. The instruction and status word
+ * are read from the command and response, a transport failure is recorded as an empty response.
+ */
+public class ApduTraceRecorder implements APDUTransport, Closeable {
+    static final int MAGIC = 0x55324654; // "U2FT"
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 5;
+    static final byte TAG_SESSION = 0x01;
+    static final byte TAG_EXCHANGE = 0x02;
+
+    private final APDUTransport delegate;
+    private final OutputStream out;
+    private long previousStart;
+
+    public ApduTraceRecorder(APDUTransport delegate, Path trace) throws IOException {
+        this.delegate = delegate;
+        boolean created = !Files.exists(trace) || Files.size(trace) == 0;
+        this.out = new BufferedOutputStream(Files.newOutputStream(trace, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        if (created) {
+            writeInt(MAGIC);
+            out.write(VERSION);
+        }
+        out.write(TAG_SESSION);
+        long epochMillis = System.currentTimeMillis();
+        writeInt((int) (epochMillis >>> 32));
+        writeInt((int) epochMillis);
+        previousStart = System.nanoTime();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return delegate.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+        long start = System.nanoTime();
+        int responseLength;
+        try {
+            responseLength = delegate.transmit(command, commandLength, response, responseOffset);
+        } catch (Throwable e) {
+            // Still record the failed exchange, without hiding why it failed
+            try {
+                record(start, System.nanoTime() - start, command, commandLength, response, responseOffset, 0);
+            } catch (CardException recordFailure) {
+                e.addSuppressed(recordFailure);
+            }
+            throw e;
+        }
+        record(start, System.nanoTime() - start, command, commandLength, response, responseOffset, responseLength);
+        return responseLength;
+    }
+
+    private synchronized void record(long start, long duration, byte[] command, int commandLength, byte[] response, int responseOffset, int responseLength) throws CardException {
+        try {
+            out.write(TAG_EXCHANGE);
+            writeVarint(Math.max(0, start - previousStart));
+            writeVarint(duration);
+            writeVarint(commandLength);
+            out.write(command, 0, commandLength);
+            writeVarint(responseLength);
+            out.write(response, responseOffset, responseLength);
+            previousStart = start;
+        } catch (IOException e) {
+            throw new CardException("Writing the trace failed", e);
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
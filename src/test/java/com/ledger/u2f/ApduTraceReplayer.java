@@ -0,0 +1,187 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace written by {@link ApduTraceRecorder} against a transport, usually a {@link U2FSimulator} restored
+ * to the state of the recorded card.
+ * <p>
+ * The trace is read through read only mappings of {@link #WINDOW_SIZE} bytes, so traces larger than the heap stream
+ * without copies beyond the command being sent. Responses are compared on their status word, with all 61xx counted
+ * as equal since their length depends on the signature encoding, and on their deterministic part: the whole VERSION
+ * response and the user presence and counter of a signature.
+ */
+public class ApduTraceReplayer {
+    public enum Pacing {
+        /**
+         * Send each command as soon as the previous one completed.
+         */
+        FASTEST,
+        /**
+         * Send each command at its recorded offset from the start of the trace.
+         */
+        ORIGINAL
+    }
+
+    static final long WINDOW_SIZE = 64L << 20;
+    /**
+     * Upper bound of an encoded exchange: tag, four varints, extended command and response.
+     */
+    static final int MAX_RECORD_LENGTH = 1 << 18;
+
+    private static final int AUTHENTICATION_HEADER_LENGTH = 5;
+
+    private final Path trace;
+
+    public ApduTraceReplayer(Path trace) {
+        this.trace = trace;
+    }
+
+    public ReplayReport replay(APDUTransport target, Pacing pacing) throws IOException {
+        byte[] command = new byte[65544];
+        byte[] recorded = new byte[65538];
+        byte[] replayed = new byte[65538];
+        ReplayReport report = new ReplayReport();
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW_SIZE));
+            if (size < ApduTraceRecorder.HEADER_LENGTH || window.getInt() != ApduTraceRecorder.MAGIC) {
+                throw new IOException("Not an APDU trace: " + trace);
+            }
+            if (window.get() != ApduTraceRecorder.VERSION) {
+                throw new IOException("Unsupported APDU trace version");
+            }
+
+            long start = System.nanoTime();
+            long schedule = 0;
+            long index = 0;
+            boolean truncated = false;
+            while (windowStart + window.position() < size) {
+                if (window.remaining() < MAX_RECORD_LENGTH && windowStart + window.limit() < size) {
+                    windowStart += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, WINDOW_SIZE));
+                }
+                int commandLength;
+                int recordedLength;
+                long recordedDuration;
+                try {
+                    byte tag = window.get();
+                    if (tag == ApduTraceRecorder.TAG_SESSION) {
+                        window.getLong();
+                        continue;
+                    }
+                    if (tag != ApduTraceRecorder.TAG_EXCHANGE) {
+                        throw new IOException("Corrupt APDU trace at offset " + (windowStart + window.position() - 1));
+                    }
+                    schedule += readVarint(window);
+                    recordedDuration = readVarint(window);
+                    commandLength = readLength(window, windowStart, command.length);
+                    window.get(command, 0, commandLength);
+                    recordedLength = readLength(window, windowStart, recorded.length);
+                    window.get(recorded, 0, recordedLength);
+                } catch (BufferUnderflowException e) {
+                    truncated = true;
+                    break;
+                }
+
+                if (pacing == Pacing.ORIGINAL) {
+                    long wait = start + schedule - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                long sent = System.nanoTime();
+                int replayedLength;
+                try {
+                    replayedLength = target.transmit(command, commandLength, replayed, 0);
+                } catch (CardException e) {
+                    replayedLength = 0;
+                }
+                long duration = System.nanoTime() - sent;
+
+                int ins = commandLength > 1 ? command[1] & 0xff : -1;
+                report.exchange(ins, recordedDuration, duration);
+                if (diverges(command, commandLength, recorded, recordedLength, replayed, replayedLength)) {
+                    report.divergence(index, ins, sw(recorded, recordedLength), sw(replayed, replayedLength));
+                }
+                index++;
+            }
+            report.finish(System.nanoTime() - start, truncated);
+        }
+        return report;
+    }
+
+    /**
+     * @return the status word ending a response, -1 for a failed exchange
+     */
+    static int sw(byte[] response, int length) {
+        return length < 2 ? -1 : ((response[length - 2] & 0xff) << 8) | (response[length - 1] & 0xff);
+    }
+
+    static boolean diverges(byte[] command, int commandLength, byte[] recorded, int recordedLength, byte[] replayed, int replayedLength) {
+        int recordedSW = sw(recorded, recordedLength);
+        int replayedSW = sw(replayed, replayedLength);
+        if (recordedSW != replayedSW) {
+            return (recordedSW & 0xff00) != U2FClient.SW_BYTES_REMAINING_00 || (replayedSW & 0xff00) != U2FClient.SW_BYTES_REMAINING_00;
+        }
+        if (recordedSW != U2FClient.SW_NO_ERROR || commandLength < 4) {
+            return false;
+        }
+        int compared;
+        if (command[1] == U2FClient.FIDO_INS_VERSION) {
+            compared = recordedLength;
+        } else if (command[1] == U2FClient.FIDO_INS_SIGN && command[2] == U2FClient.P1_SIGN_OPERATION) {
+            compared = AUTHENTICATION_HEADER_LENGTH;
+        } else {
+            return false;
+        }
+        if (recordedLength < compared || replayedLength < compared || (compared == recordedLength && replayedLength != recordedLength)) {
+            return true;
+        }
+        for (int i = 0; i < compared; i++) {
+            if (recorded[i] != replayed[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the length of a command or response. A length beyond the end of the window is left to underflow: the
+     * window holds at least {@link #MAX_RECORD_LENGTH} bytes unless it ends the file, so that is a truncated trace.
+     *
+     * @param capacity largest valid length
+     * @throws IOException if the length cannot be valid
+     */
+    private static int readLength(ByteBuffer window, long windowStart, int capacity) throws IOException {
+        long offset = windowStart + window.position();
+        long length = readVarint(window);
+        if (length < 0 || length > capacity) {
+            throw new IOException("Corrupt APDU trace at offset " + offset + ": length " + length + " exceeds " + capacity);
+        }
+        return (int) length;
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Corrupt APDU trace: varint longer than 64 bits");
+            }
+            b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,87 @@
+package com.ledger.u2f;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ApduTraceTest extends SimulatorTestBase {
+    private Path trace;
+
+    @Before
+    public void createTrace() throws IOException {
+        trace = Files.createTempFile("apdu", ".trace");
+    }
+
+    @After
+    public void deleteTrace() throws IOException {
+        Files.deleteIfExists(trace);
+    }
+
+    private U2FAppletSnapshot record() throws IOException, CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FAppletSnapshot initial = card.snapshot();
+        try (ApduTraceRecorder recorder = new ApduTraceRecorder(card.transport(), trace)) {
+            U2FClient client = new U2FClient(recorder);
+            RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+            byte[] keyHandle = new byte[registration.keyHandleLength()];
+            registration.keyHandle().get(keyHandle);
+            client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+            client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+            assertThat(client.checkOnly(U2FTest.challenge, keyHandle, 0, keyHandle.length), is(false));
+        }
+        return initial;
+    }
+
+    @Test
+    public void testReplayFromRecordedState() throws IOException, CardException {
+        card.restore(record());
+        ReplayReport report = new ApduTraceReplayer(trace).replay(card.transport(), ApduTraceReplayer.Pacing.FASTEST);
+        assertThat(report.exchanges(), is(4L));
+        assertThat(report.divergenceCount(), is(0L));
+        assertThat(report.isTruncated(), is(false));
+        assertThat(report.replayed(FIDO_INS_SIGN).count(), is(3L));
+        assertThat(report.recorded(FIDO_INS_ENROLL).count(), is(1L));
+    }
+
+    @Test
+    public void testReplayDetectsCounterDivergence() throws IOException, CardException {
+        record();
+        // Without restoring, the counter continues from 2
+        ReplayReport report = new ApduTraceReplayer(trace).replay(card.transport(), ApduTraceReplayer.Pacing.ORIGINAL);
+        assertThat(report.divergenceCount(), is(2L));
+        assertThat(report.divergences().get(0).ins, is((int) FIDO_INS_SIGN));
+    }
+
+    @Test
+    public void testAppendedSessionsAndTruncation() throws IOException, CardException {
+        U2FAppletSnapshot initial = record();
+        try (ApduTraceRecorder recorder = new ApduTraceRecorder(card.transport(), trace)) {
+            assertThat(new U2FClient(recorder).checkOnly(U2FTest.challenge, new byte[64], 0, 64), is(false));
+        }
+        byte[] bytes = Files.readAllBytes(trace);
+        Files.write(trace, Arrays.copyOf(bytes, bytes.length - 1));
+
+        card.restore(initial);
+        ReplayReport report = new ApduTraceReplayer(trace).replay(card.transport(), ApduTraceReplayer.Pacing.FASTEST);
+        assertThat(report.exchanges(), is(4L));
+        assertThat(report.isTruncated(), is(true));
+        assertThat(report.divergenceCount(), is(0L));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptLengthIsReported() throws IOException {
+        // A command length of 2^21, far beyond any APDU, followed by a few bytes
+        Files.write(trace, new byte[]{0x55, 0x32, 0x46, 0x54, ApduTraceRecorder.VERSION,
+                ApduTraceRecorder.TAG_EXCHANGE, 0x00, 0x00, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01, 0x00, 0x01, 0x02});
+        new ApduTraceReplayer(trace).replay(card.transport(), ApduTraceReplayer.Pacing.FASTEST);
+    }
+}
@@ -0,0 +1,70 @@
+package com.ledger.u2f;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over a U2F_AUTHENTICATE response held in a buffer owned by someone else.
+ * <p>
+ * Layout: user presence flags (1 byte), counter (4 bytes big endian), signature (DER).
+ */
+public class AuthenticationResponse {
+    static final int USER_PRESENCE_OFFSET = 0;
+    static final int COUNTER_OFFSET = 1;
+    static final int SIGNATURE_OFFSET = 5;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    /**
+     * Point this view at a response.
+     *
+     * @param buffer
+     * @param offset
+     * @param length response length, status word excluded
+     * @return false if the response is too short to hold a signature
+     */
+    public boolean wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return length > SIGNATURE_OFFSET;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte userPresence() {
+        return buffer[offset + USER_PRESENCE_OFFSET];
+    }
+
+    /**
+     * @return the unsigned 32 bit counter
+     */
+    public long counter() {
+        int base = offset + COUNTER_OFFSET;
+        return ((long) (buffer[base] & 0xff) << 24) | ((buffer[base + 1] & 0xff) << 16)
+                | ((buffer[base + 2] & 0xff) << 8) | (buffer[base + 3] & 0xff);
+    }
+
+    public int signatureOffset() {
+        return offset + SIGNATURE_OFFSET;
+    }
+
+    public int signatureLength() {
+        return length - SIGNATURE_OFFSET;
+    }
+
+    public ByteBuffer signature() {
+        return ByteBuffer.wrap(buffer, signatureOffset(), signatureLength()).slice().asReadOnlyBuffer();
+    }
+}
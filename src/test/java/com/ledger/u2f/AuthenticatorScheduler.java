@@ -0,0 +1,402 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Scheduler in front of a pool of authenticators, so a burst of registrations cannot starve authentications.
+ * <p>
+ * Requests are queued in one {@link Lane} per operation. Lanes share the pool by stride scheduling, in proportion
+ * to their weights. Within a lane, relying parties (application parameters) get equal shares by self-clocked
+ * weighted fair queuing: each request is tagged with a virtual finish time one unit after the later of the lane's
+ * virtual time and the previous tag of its relying party, and the smallest tag is served first. Requests whose
+ * deadline has passed, or would pass before the lane's mean service time elapses, are dropped when they reach the
+ * head of their lane and fail with {@link TimeoutException}.
+ * <p>
+ * Each card is served by its own worker thread, which builds its client with the card's supplier, since
+ * simulators are confined to the thread that created them. Results are copies, independent of the client buffers.
+ * A worker whose supplier fails stops. Once no worker is left, queued requests and later ones fail with
+ * {@link IllegalStateException} caused by the first supplier failure.
+ */
+public class AuthenticatorScheduler implements AutoCloseable {
+
+    public enum Lane {
+        SIGN,
+        CHECK_ONLY,
+        ENROLL
+    }
+
+    /**
+     * Default lane weights: signs are latency sensitive, enrolls carry a key generation and a certificate.
+     */
+    public static final Map<Lane, Integer> DEFAULT_WEIGHTS;
+
+    static {
+        Map<Lane, Integer> weights = new EnumMap<>(Lane.class);
+        weights.put(Lane.SIGN, 8);
+        weights.put(Lane.CHECK_ONLY, 4);
+        weights.put(Lane.ENROLL, 1);
+        DEFAULT_WEIGHTS = weights;
+    }
+
+    private static final long STRIDE = 1L << 20;
+    private static final double SERVICE_TIME_SMOOTHING = 0.1;
+
+    private interface Operation<T> {
+        T run(U2FClient client) throws CardException;
+    }
+
+    private static final class Request<T> {
+        final Lane lane;
+        final ByteBuffer relyingParty;
+        final Operation<T> operation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long submitted = System.nanoTime();
+        final long deadline;
+        final boolean hasDeadline;
+        long finishTag;
+        long sequence;
+
+        Request(Lane lane, byte[] application, Operation<T> operation, long timeoutNanos) {
+            this.lane = lane;
+            this.relyingParty = ByteBuffer.wrap(application);
+            this.operation = operation;
+            this.hasDeadline = timeoutNanos >= 0;
+            this.deadline = submitted + timeoutNanos;
+        }
+
+        void run(U2FClient client) {
+            try {
+                future.complete(operation.run(client));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static final class LaneQueue {
+        final long stride;
+        final PriorityQueue<Request<?>> queue = new PriorityQueue<>((a, b) -> a.finishTag != b.finishTag
+                ? Long.compare(a.finishTag, b.finishTag) : Long.compare(a.sequence, b.sequence));
+        // Last finish tag and queued requests per relying party, forgotten once it has nothing queued
+        final Map<ByteBuffer, long[]> flows = new HashMap<>();
+        long pass;
+        long virtualTime;
+        double serviceNanos;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long completed;
+        long dropped;
+
+        LaneQueue(int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Lane weights must be positive");
+            }
+            this.stride = STRIDE / weight;
+        }
+    }
+
+    private final List<Supplier<U2FClient>> cards;
+    private final EnumMap<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final List<Thread> workers = new ArrayList<>();
+    private long sequence;
+    private long globalPass;
+    private boolean started;
+    private long startNanos;
+    private boolean closed;
+    private int live;
+    private Throwable workerFailure;
+
+    public AuthenticatorScheduler(List<? extends Supplier<U2FClient>> cards) {
+        this(cards, DEFAULT_WEIGHTS);
+    }
+
+    /**
+     * @param cards one client supplier per card, called once on the card's worker thread
+     * @param weights share of each lane
+     */
+    public AuthenticatorScheduler(List<? extends Supplier<U2FClient>> cards, Map<Lane, Integer> weights) {
+        this.cards = new ArrayList<>(cards);
+        for (Lane lane : Lane.values()) {
+            Integer weight = weights.get(lane);
+            lanes.put(lane, new LaneQueue(weight == null ? 1 : weight));
+        }
+    }
+
+    /**
+     * Start one worker per card. Requests submitted before are queued and scheduled once workers run.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (started || closed) {
+                throw new IllegalStateException("Scheduler already started");
+            }
+            started = true;
+            startNanos = System.nanoTime();
+            live = cards.size();
+            if (live == 0) {
+                failQueued(this::noWorkerLeft);
+            }
+            for (int i = 0; i < cards.size(); i++) {
+                Supplier<U2FClient> card = cards.get(i);
+                Thread worker = new Thread(() -> work(card), "authenticator-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a registration.
+     *
+     * @param timeout time within which the request must be served, negative for none
+     * @return the registration, a copy owned by the caller
+     */
+    public CompletableFuture<RegistrationResponse> register(byte[] challenge, byte[] application, long timeout, TimeUnit unit) {
+        byte[] challengeCopy = challenge.clone();
+        byte[] applicationCopy = application.clone();
+        return submit(new Request<>(Lane.ENROLL, applicationCopy, client -> {
+            RegistrationResponse response = client.register(challengeCopy, applicationCopy);
+            RegistrationResponse copy = new RegistrationResponse();
+            copy.wrap(Arrays.copyOfRange(response.buffer(), response.offset(), response.offset() + response.length()), 0, response.length());
+            return copy;
+        }, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Queue an authentication.
+     *
+     * @param timeout time within which the request must be served, negative for none
+     * @return the authentication, a copy owned by the caller
+     */
+    public CompletableFuture<AuthenticationResponse> authenticate(byte[] challenge, byte[] application, byte[] keyHandle, long timeout, TimeUnit unit) {
+        byte[] challengeCopy = challenge.clone();
+        byte[] applicationCopy = application.clone();
+        byte[] keyHandleCopy = keyHandle.clone();
+        return submit(new Request<>(Lane.SIGN, applicationCopy, client -> {
+            AuthenticationResponse response = client.authenticate(challengeCopy, applicationCopy, keyHandleCopy, 0, keyHandleCopy.length);
+            AuthenticationResponse copy = new AuthenticationResponse();
+            copy.wrap(Arrays.copyOfRange(response.buffer(), response.offset(), response.offset() + response.length()), 0, response.length());
+            return copy;
+        }, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Queue a check-only authentication.
+     *
+     * @param timeout time within which the request must be served, negative for none
+     * @return true if the key handle belongs to the application
+     */
+    public CompletableFuture<Boolean> checkOnly(byte[] application, byte[] keyHandle, long timeout, TimeUnit unit) {
+        byte[] applicationCopy = application.clone();
+        byte[] keyHandleCopy = keyHandle.clone();
+        return submit(new Request<>(Lane.CHECK_ONLY, applicationCopy,
+                client -> client.checkOnly(applicationCopy, keyHandleCopy, 0, keyHandleCopy.length), unit.toNanos(timeout)));
+    }
+
+    private <T> CompletableFuture<T> submit(Request<T> request) {
+        lock.lock();
+        try {
+            if (closed) {
+                request.future.completeExceptionally(new CancellationException("Scheduler closed"));
+                return request.future;
+            }
+            if (started && live == 0) {
+                request.future.completeExceptionally(noWorkerLeft());
+                return request.future;
+            }
+            LaneQueue lane = lanes.get(request.lane);
+            if (lane.queue.isEmpty()) {
+                // An idle lane does not bank credit while it had nothing to send
+                lane.pass = Math.max(lane.pass, globalPass);
+            }
+            long[] flow = lane.flows.computeIfAbsent(request.relyingParty, r -> new long[2]);
+            request.finishTag = Math.max(lane.virtualTime, flow[0]) + 1;
+            request.sequence = sequence++;
+            flow[0] = request.finishTag;
+            flow[1]++;
+            lane.queue.add(request);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        return request.future;
+    }
+
+    /**
+     * @return the next request to run, null once closed
+     */
+    private Request<?> next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                LaneQueue selected = null;
+                for (LaneQueue lane : lanes.values()) {
+                    if (!lane.queue.isEmpty() && (selected == null || lane.pass < selected.pass)) {
+                        selected = lane;
+                    }
+                }
+                if (selected == null) {
+                    available.await();
+                    continue;
+                }
+                Request<?> request = selected.queue.poll();
+                selected.virtualTime = request.finishTag;
+                long[] flow = selected.flows.get(request.relyingParty);
+                if (--flow[1] == 0) {
+                    selected.flows.remove(request.relyingParty);
+                }
+                long now = System.nanoTime();
+                if (request.hasDeadline && now + (long) selected.serviceNanos - request.deadline > 0) {
+                    selected.dropped++;
+                    request.future.completeExceptionally(new TimeoutException("Deadline passed in lane " + request.lane));
+                    continue;
+                }
+                globalPass = selected.pass;
+                selected.pass += selected.stride;
+                return request;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work(Supplier<U2FClient> card) {
+        try {
+            U2FClient client;
+            try {
+                client = card.get();
+            } catch (Throwable t) {
+                lock.lock();
+                try {
+                    if (workerFailure == null) {
+                        workerFailure = t;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            Request<?> request;
+            while ((request = next()) != null) {
+                long start = System.nanoTime();
+                request.run(client);
+                long end = System.nanoTime();
+                LaneQueue lane = lanes.get(request.lane);
+                lock.lock();
+                try {
+                    long service = end - start;
+                    lane.serviceNanos = lane.completed == 0 ? service
+                            : lane.serviceNanos + SERVICE_TIME_SMOOTHING * (service - lane.serviceNanos);
+                    lane.completed++;
+                } finally {
+                    lock.unlock();
+                }
+                lane.latency.record(end - request.submitted);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.lock();
+            try {
+                if (--live == 0 && !closed) {
+                    failQueued(this::noWorkerLeft);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private IllegalStateException noWorkerLeft() {
+        return new IllegalStateException("No authenticator left", workerFailure);
+    }
+
+    /**
+     * Fail and forget every queued request, with the lock held.
+     */
+    private void failQueued(Supplier<? extends Throwable> failure) {
+        for (LaneQueue lane : lanes.values()) {
+            for (Request<?> request : lane.queue) {
+                request.future.completeExceptionally(failure.get());
+            }
+            lane.queue.clear();
+            lane.flows.clear();
+        }
+    }
+
+    /**
+     * @return requests queued in a lane
+     */
+    public int queued(Lane lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane).queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return latency, from submission to completion, and throughput of every lane since {@link #start()}
+     */
+    public SchedulerReport report() {
+        lock.lock();
+        try {
+            long elapsed = started ? System.nanoTime() - startNanos : 0;
+            EnumMap<Lane, SchedulerReport.LaneReport> reports = new EnumMap<>(Lane.class);
+            for (Map.Entry<Lane, LaneQueue> entry : lanes.entrySet()) {
+                LaneQueue lane = entry.getValue();
+                reports.put(entry.getKey(), new SchedulerReport.LaneReport(lane.completed, lane.dropped, lane.queue.size(), lane.latency, elapsed));
+            }
+            return new SchedulerReport(reports);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the workers after their current request, queued requests fail with {@link CancellationException}. If the
+     * calling thread is interrupted while waiting for the workers, it returns early with its interrupt status set.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            failQueued(() -> new CancellationException("Scheduler closed"));
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
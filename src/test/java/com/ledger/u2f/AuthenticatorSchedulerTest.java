@@ -0,0 +1,221 @@
+package com.ledger.u2f;
+
+import com.ledger.u2f.AuthenticatorScheduler.Lane;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AuthenticatorSchedulerTest {
+
+    private static U2FAppletSnapshot provisioned() {
+        U2FSimulator card = new U2FSimulator();
+        card.provision(SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        return card.snapshot();
+    }
+
+    private static List<Supplier<U2FClient>> cards(U2FAppletSnapshot image, int count) {
+        List<Supplier<U2FClient>> cards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cards.add(() -> {
+                U2FSimulator card = new U2FSimulator();
+                card.restore(image);
+                return new U2FClient(card.transport());
+            });
+        }
+        return cards;
+    }
+
+    private static byte[] register(U2FAppletSnapshot image, byte[] application) throws CardException {
+        U2FSimulator card = new U2FSimulator();
+        card.restore(image);
+        RegistrationResponse registration = new U2FClient(card.transport()).register(U2FTest.challenge, application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        return keyHandle;
+    }
+
+    private static byte[] application(int relyingParty) {
+        byte[] application = U2FTest.application.clone();
+        application[0] = (byte) relyingParty;
+        return application;
+    }
+
+    @Test
+    public void testOperationsComplete() throws Exception {
+        U2FAppletSnapshot image = provisioned();
+        byte[] keyHandle = register(image, U2FTest.application);
+        RelyingPartyVerifier verifier = new RelyingPartyVerifier();
+        try (AuthenticatorScheduler scheduler = new AuthenticatorScheduler(cards(image, 2))) {
+            scheduler.start();
+            List<CompletableFuture<RegistrationResponse>> registrations = new ArrayList<>();
+            List<CompletableFuture<AuthenticationResponse>> authentications = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                registrations.add(scheduler.register(U2FTest.challenge, U2FTest.application, -1, TimeUnit.SECONDS));
+                authentications.add(scheduler.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, -1, TimeUnit.SECONDS));
+            }
+            CompletableFuture<Boolean> valid = scheduler.checkOnly(U2FTest.application, keyHandle, -1, TimeUnit.SECONDS);
+            CompletableFuture<Boolean> wrongApplication = scheduler.checkOnly(application(1), keyHandle, -1, TimeUnit.SECONDS);
+
+            for (CompletableFuture<RegistrationResponse> registration : registrations) {
+                assertThat(verifier.verifyRegistration(registration.get(), U2FTest.challenge, U2FTest.application), is(true));
+            }
+            for (CompletableFuture<AuthenticationResponse> authentication : authentications) {
+                assertThat(authentication.get().counter(), is(greaterThan(0L)));
+            }
+            assertThat(valid.get(), is(true));
+            assertThat(wrongApplication.get(), is(false));
+
+            SchedulerReport report = scheduler.report();
+            assertThat(report.lane(Lane.ENROLL).completed(), is(4L));
+            assertThat(report.lane(Lane.SIGN).completed(), is(4L));
+            assertThat(report.lane(Lane.CHECK_ONLY).completed(), is(2L));
+            assertThat(report.lane(Lane.SIGN).throughput(), is(greaterThan(0.0)));
+            assertThat(report.lane(Lane.SIGN).maxLatency(), is(greaterThan(0L)));
+        }
+    }
+
+    @Test
+    public void testSignsAreNotStarvedByEnrolls() throws Exception {
+        U2FAppletSnapshot image = provisioned();
+        byte[] keyHandle = register(image, U2FTest.application);
+        Map<Lane, Integer> weights = new EnumMap<>(Lane.class);
+        weights.put(Lane.SIGN, 4);
+        weights.put(Lane.CHECK_ONLY, 1);
+        weights.put(Lane.ENROLL, 1);
+        List<Lane> order = Collections.synchronizedList(new ArrayList<>());
+        try (AuthenticatorScheduler scheduler = new AuthenticatorScheduler(cards(image, 1), weights)) {
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            // The burst of registrations is queued first
+            for (int i = 0; i < 10; i++) {
+                futures.add(scheduler.register(U2FTest.challenge, U2FTest.application, -1, TimeUnit.SECONDS).thenRun(() -> order.add(Lane.ENROLL)));
+            }
+            for (int i = 0; i < 10; i++) {
+                futures.add(scheduler.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, -1, TimeUnit.SECONDS).thenRun(() -> order.add(Lane.SIGN)));
+            }
+            assertThat(scheduler.queued(Lane.ENROLL), is(10));
+            scheduler.start();
+            for (CompletableFuture<?> future : futures) {
+                future.get();
+            }
+        }
+        assertThat(Collections.frequency(order.subList(0, 5), Lane.SIGN), is(4));
+        // Stride 4 against 1: every fifth slot goes to an enroll, ties go to signs
+        assertThat(Collections.frequency(order.subList(0, 13), Lane.SIGN), is(10));
+    }
+
+    @Test
+    public void testRelyingPartiesShareALane() throws Exception {
+        U2FAppletSnapshot image = provisioned();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        try (AuthenticatorScheduler scheduler = new AuthenticatorScheduler(cards(image, 1))) {
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            byte[] keyHandle = new byte[64];
+            for (int i = 0; i < 10; i++) {
+                futures.add(scheduler.checkOnly(application(1), keyHandle, -1, TimeUnit.SECONDS).thenRun(() -> order.add(1)));
+            }
+            for (int i = 0; i < 2; i++) {
+                futures.add(scheduler.checkOnly(application(2), keyHandle, -1, TimeUnit.SECONDS).thenRun(() -> order.add(2)));
+            }
+            scheduler.start();
+            for (CompletableFuture<?> future : futures) {
+                future.get();
+            }
+        }
+        // The second relying party alternates with the first instead of waiting behind its backlog
+        assertThat(Collections.frequency(order.subList(0, 4), 2), is(2));
+    }
+
+    @Test
+    public void testExpiredRequestsAreDropped() throws Exception {
+        U2FAppletSnapshot image = provisioned();
+        byte[] keyHandle = register(image, U2FTest.application);
+        try (AuthenticatorScheduler scheduler = new AuthenticatorScheduler(cards(image, 1))) {
+            CompletableFuture<AuthenticationResponse> expired = scheduler.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, TimeUnit.SECONDS);
+            CompletableFuture<AuthenticationResponse> served = scheduler.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 1, TimeUnit.MINUTES);
+            Thread.sleep(1);
+            scheduler.start();
+            assertThat(served.get().counter(), is(1L));
+            try {
+                expired.get();
+                throw new AssertionError("Expired request was served");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+            }
+            assertThat(scheduler.report().lane(Lane.SIGN).dropped(), is(1L));
+        }
+    }
+
+    @Test
+    public void testFailedOperationsCompleteExceptionally() throws Exception {
+        APDUTransport broken = new APDUTransport() {
+            @Override
+            public boolean isExtendedLengthSupported() {
+                return false;
+            }
+
+            @Override
+            public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) {
+                throw new AssertionError("Card removed");
+            }
+        };
+        try (AuthenticatorScheduler scheduler = new AuthenticatorScheduler(Collections.singletonList(() -> new U2FClient(broken)))) {
+            scheduler.start();
+            byte[] keyHandle = new byte[64];
+            for (int i = 0; i < 2; i++) {
+                // The worker survives the first failure to serve the second request
+                try {
+                    scheduler.checkOnly(U2FTest.application, keyHandle, -1, TimeUnit.SECONDS).get();
+                    throw new AssertionError("Request on a broken card succeeded");
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause(), is(instanceOf(AssertionError.class)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQueuedRequestsFailWithoutWorkers() throws Exception {
+        IllegalStateException unreachable = new IllegalStateException("Card unreachable");
+        List<Supplier<U2FClient>> cards = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            cards.add(() -> {
+                throw unreachable;
+            });
+        }
+        try (AuthenticatorScheduler scheduler = new AuthenticatorScheduler(cards)) {
+            byte[] keyHandle = new byte[64];
+            CompletableFuture<Boolean> queued = scheduler.checkOnly(U2FTest.application, keyHandle, -1, TimeUnit.SECONDS);
+            scheduler.start();
+            try {
+                queued.get(10, TimeUnit.SECONDS);
+                throw new AssertionError("Request served without workers");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), is(instanceOf(IllegalStateException.class)));
+                assertThat(e.getCause().getCause(), is(sameInstance((Throwable) unreachable)));
+            }
+            assertThat(scheduler.checkOnly(U2FTest.application, keyHandle, -1, TimeUnit.SECONDS).isCompletedExceptionally(), is(true));
+        }
+    }
+
+    @Test
+    public void testCloseKeepsInterruptStatus() {
+        AuthenticatorScheduler scheduler = new AuthenticatorScheduler(cards(provisioned(), 1));
+        scheduler.start();
+        Thread.currentThread().interrupt();
+        scheduler.close();
+        assertThat(Thread.interrupted(), is(true));
+    }
+}
@@ -0,0 +1,212 @@
+package com.ledger.u2f;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size slots of {@link U2FAppletSnapshot} images in a memory-mapped file, one slot per card id.
+ * <p>
+ * The file starts with a header (magic, version, slot size, slot count) followed by the slots. Each slot holds two
+ * copies of a card image, each a CRC32, a generation and an encoded snapshot. A write goes to the copy not holding
+ * the latest image, and a read takes the valid copy with the highest generation, so a write torn by a crash leaves
+ * the previous image readable without forcing the file in between. The file is created sparse and mapped in
+ * segments of at most {@link #SEGMENT_SIZE} bytes, so only the pages of cards that were written take disk space and
+ * the page cache, not the heap, holds the images.
+ * <p>
+ * Reads and writes of different ids may run concurrently on any thread, concurrent writes of the same id may not.
+ * Mappings are released by the garbage collector, {@link #close()} only closes the file.
+ */
+public class CardImageStore implements Closeable {
+    static final int MAGIC = 0x55324649; // "U2FI"
+    static final short VERSION = 3;
+    static final int HEADER_LENGTH = 32;
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    // CRC32 of the generation and the image, then the generation, 0 for a copy never written
+    static final int COPY_HEADER_LENGTH = 4 + 4;
+
+    private final FileChannel channel;
+    private final int slotSize;
+    private final long slotCount;
+    private final int slotsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    private CardImageStore(FileChannel channel, int slotSize, long slotCount) throws IOException {
+        this.channel = channel;
+        this.slotSize = slotSize;
+        this.slotCount = slotCount;
+        this.slotsPerSegment = (int) (SEGMENT_SIZE / slotSize);
+        int segmentCount = (int) ((slotCount + slotsPerSegment - 1) / slotsPerSegment);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long firstSlot = (long) i * slotsPerSegment;
+            long length = Math.min(slotsPerSegment, slotCount - firstSlot) * slotSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_LENGTH + firstSlot * slotSize, length);
+        }
+    }
+
+    /**
+     * Create a new store, replacing any existing file.
+     *
+     * @param slotCount number of card ids
+     * @param maxCertificateLength largest attestation certificate an image must hold
+     */
+    public static CardImageStore create(Path file, long slotCount, int maxCertificateLength) throws IOException {
+        if (slotCount <= 0 || maxCertificateLength < 0 || maxCertificateLength > 0xffff) {
+            throw new IllegalArgumentException("Invalid store geometry");
+        }
+        int slotSize = 2 * (COPY_HEADER_LENGTH + U2FAppletSnapshot.ENCODING_OVERHEAD + maxCertificateLength);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.SPARSE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putShort(VERSION).putInt(slotSize).putLong(slotCount).clear();
+            channel.write(header, 0);
+            return new CardImageStore(channel, slotSize, slotCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing store.
+     */
+    public static CardImageStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+                throw new IOException("Not a card image store: " + file);
+            }
+            short version = header.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported card image store version " + version);
+            }
+            return new CardImageStore(channel, header.getInt(), header.getLong());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @return the largest certificate an image can hold
+     */
+    public int maxCertificateLength() {
+        return slotSize / 2 - COPY_HEADER_LENGTH - U2FAppletSnapshot.ENCODING_OVERHEAD;
+    }
+
+    /**
+     * @return one copy of the slot of a card, positioned at its start
+     */
+    private ByteBuffer copy(long id, int copy) {
+        if (id < 0 || id >= slotCount) {
+            throw new IndexOutOfBoundsException("No slot " + id);
+        }
+        ByteBuffer slot = segments[(int) (id / slotsPerSegment)].duplicate();
+        int position = (int) (id % slotsPerSegment) * slotSize + copy * (slotSize / 2);
+        slot.limit(position + slotSize / 2).position(position);
+        return slot;
+    }
+
+    /**
+     * @return the generation of a copy, 0 if it was never written or its CRC does not match
+     */
+    private static int generation(ByteBuffer copy) {
+        int start = copy.position();
+        int generation = copy.getInt(start + 4);
+        if (generation == 0) {
+            return 0;
+        }
+        int certificateLength = copy.getShort(start + COPY_HEADER_LENGTH + U2FAppletSnapshot.ENCODING_OVERHEAD - 2) & 0xffff;
+        int length = 4 + U2FAppletSnapshot.ENCODING_OVERHEAD + certificateLength;
+        if (start + 4 + length > copy.limit()) {
+            return 0;
+        }
+        return copy.getInt(start) == crc(copy, start + 4, length) ? generation : 0;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(offset + length).position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the index of the copy holding the latest image of a card, -1 if none is valid
+     */
+    private int latest(long id) {
+        int first = generation(copy(id, 0));
+        int second = generation(copy(id, 1));
+        if (first == 0 && second == 0) {
+            return -1;
+        }
+        return Integer.compareUnsigned(first, second) >= 0 ? 0 : 1;
+    }
+
+    public boolean contains(long id) {
+        return latest(id) >= 0;
+    }
+
+    /**
+     * @return the image of a card or null if none was written
+     */
+    public U2FAppletSnapshot read(long id) {
+        int latest = latest(id);
+        if (latest < 0) {
+            return null;
+        }
+        ByteBuffer copy = copy(id, latest);
+        copy.position(copy.position() + COPY_HEADER_LENGTH);
+        return U2FAppletSnapshot.readFrom(copy);
+    }
+
+    public void write(long id, U2FAppletSnapshot snapshot) {
+        if (snapshot.certificateLength() > maxCertificateLength()) {
+            throw new IllegalArgumentException("Certificate does not fit in a slot");
+        }
+        int latest = latest(id);
+        int generation = latest < 0 ? 1 : generation(copy(id, latest)) + 1;
+        if (generation == 0) {
+            generation = 1;
+        }
+        // Overwrite the older copy, the latest one stays valid until the CRC of the new one matches
+        ByteBuffer copy = copy(id, latest == 0 ? 1 : 0);
+        int start = copy.position();
+        copy.putInt(start, 0);
+        copy.position(start + COPY_HEADER_LENGTH);
+        snapshot.writeTo(copy);
+        copy.putInt(start + 4, generation);
+        copy.putInt(start, crc(copy, start + 4, 4 + snapshot.encodedLength()));
+    }
+
+    /**
+     * Write all modified images to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
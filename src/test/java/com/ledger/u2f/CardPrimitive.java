@@ -0,0 +1,47 @@
+package com.ledger.u2f;
+
+/**
+ * Operations of the card platform an APDU costs, each with the unit a {@link ChipCostTable} prices it in.
+ */
+public enum CardPrimitive {
+    /**
+     * Command and response processing, per APDU.
+     */
+    APDU,
+    /**
+     * Bytes sent and received, command header and status word included.
+     */
+    IO_BYTES,
+    /**
+     * <code>KeyPair.genKeyPair</code> on P-256, per call.
+     */
+    KEY_PAIR_GENERATION,
+    /**
+     * <code>Signature.init</code>, per call.
+     */
+    SIGNATURE_INIT,
+    /**
+     * Bytes hashed by <code>Signature.update</code> and <code>Signature.sign</code>.
+     */
+    SIGNATURE_BYTES,
+    /**
+     * ECDSA signature computation after hashing, per <code>Signature.sign</code>.
+     */
+    SIGNATURE_SIGN,
+    /**
+     * AES blocks processed by <code>Cipher.doFinal</code>.
+     */
+    CIPHER_BLOCKS,
+    /**
+     * Key component setters (<code>setS</code>, <code>setA</code>, ...), per call.
+     */
+    KEY_SETTER,
+    /**
+     * Atomic updates of persistent memory, explicit transactions and <code>Util.arrayCopy</code>.
+     */
+    TRANSACTION,
+    /**
+     * Bytes written to persistent memory.
+     */
+    PERSISTENT_WRITE_BYTES
+}
@@ -0,0 +1,72 @@
+package com.ledger.u2f;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Cost of each {@link CardPrimitive} on a target chip, in microseconds per unit, and the write endurance of its
+ * persistent memory.
+ * <p>
+ * Tables are read from properties files with one key per primitive in lower case (<code>signature_bytes=0.9</code>),
+ * an optional <code>name</code> and an optional <code>endurance</code> in write cycles per cell. Primitives left out
+ * cost nothing. No table ships with the project: the numbers have to be measured on the chip that is targeted, for
+ * instance by timing loops of each primitive in a test applet.
+ */
+public class ChipCostTable {
+    private final String name;
+    private final Map<CardPrimitive, Double> micros;
+    private final long endurance;
+
+    public ChipCostTable(String name, Map<CardPrimitive, Double> micros, long endurance) {
+        this.name = name;
+        this.micros = new EnumMap<>(CardPrimitive.class);
+        this.micros.putAll(micros);
+        this.endurance = endurance;
+    }
+
+    public static ChipCostTable fromProperties(Properties properties) {
+        Map<CardPrimitive, Double> micros = new EnumMap<>(CardPrimitive.class);
+        for (CardPrimitive primitive : CardPrimitive.values()) {
+            String value = properties.getProperty(primitive.name().toLowerCase());
+            if (value != null) {
+                micros.put(primitive, Double.parseDouble(value.trim()));
+            }
+        }
+        String endurance = properties.getProperty("endurance");
+        return new ChipCostTable(properties.getProperty("name", "unnamed"), micros,
+                endurance == null ? 0 : Long.parseLong(endurance.trim()));
+    }
+
+    public static ChipCostTable load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return fromProperties(properties);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return microseconds per unit of a primitive
+     */
+    public double micros(CardPrimitive primitive) {
+        Double cost = micros.get(primitive);
+        return cost == null ? 0 : cost;
+    }
+
+    /**
+     * @return write cycles a persistent memory cell endures, 0 if unknown
+     */
+    public long endurance() {
+        return endurance;
+    }
+}
@@ -0,0 +1,210 @@
+package com.ledger.u2f;
+
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+import javax.smartcardio.CardException;
+import java.util.Arrays;
+
+/**
+ * Transport to a {@link U2FSimulator} counting the platform primitives each APDU costs the applet, for projection
+ * onto a {@link ChipCostTable}.
+ * <p>
+ * For the duration of each APDU, the signature and cipher engines of the applet are replaced by a
+ * {@link CountingSignature} and {@link CountingCipher}, and its wrapping implementation by a {@link CountingFIDOAPI};
+ * the originals are put back before the response is returned. Hashed bytes, signatures and cipher blocks are
+ * therefore counted at the primitive. What cannot be wrapped is derived from what was observed: key pair generation
+ * (<code>KeyPair</code> is final) from the wraps, key component setters (jcardsim engines only take their own key
+ * classes) from the wraps, unwraps and rotations, and transactions and persistent writes (<code>JCSystem</code> and
+ * persistent fields are not interceptable) from the rotations and the persistent state before and after the APDU.
+ */
+public class CostInstrumentation implements APDUTransport {
+    public static final String ENROLL = "ENROLL";
+    public static final String SIGN = "SIGN";
+    public static final String CHECK_ONLY = "SIGN_CHECK_ONLY";
+    public static final String VERSION = "VERSION";
+    public static final String GET_DATA = "GET_DATA";
+    public static final String SET_ATTESTATION_CERT = "SET_ATTESTATION_CERT";
+    public static final String ROTATE_WRAPPING_KEY = "ROTATE_WRAPPING_KEY";
+    public static final String RETIRE_PREVIOUS_WRAPPING_KEY = "RETIRE_PREVIOUS_WRAPPING_KEY";
+    public static final String REWRAP = "REWRAP";
+    public static final String OTHER = "OTHER";
+
+    public static final String REGION_COUNTER = "counter";
+    public static final String REGION_COUNTER_OVERFLOWED = "counterOverflowed";
+    public static final String REGION_ATTESTATION_CERTIFICATE = "attestationCertificate";
+    public static final String REGION_ATTESTATION_CERTIFICATE_SET = "attestationCertificateSet";
+    public static final String REGION_KEY_PAIR = "keyPair";
+    public static final String REGION_LOCAL_PRIVATE_KEY = "localPrivateKey";
+    public static final String REGION_CHIP_KEY = "chipKey";
+    public static final String REGION_PREVIOUS_CHIP_KEY = "previousChipKey";
+    public static final String REGION_PREVIOUS_CHIP_KEY_SET = "previousChipKeySet";
+
+    private static final byte PROPRIETARY_CLA = (byte) 0xF0;
+    private static final byte FIDO_ADM_SET_ATTESTATION_CERT = (byte) 0x01;
+    private static final int CURVE_PARAMETER_SETTERS = 6;
+    private static final int KEY_PAIR_BYTES = 32 + 65;
+    private static final int PRIVATE_KEY_BYTES = 32;
+    private static final int WRAPPING_KEY_BYTES = 32;
+    private static final int AES_BLOCK = 16;
+
+    private final U2FSimulator card;
+    private final CostReport report = new CostReport();
+    private final PrimitiveCounts counts = new PrimitiveCounts();
+    private final byte[] counterBefore = new byte[4];
+
+    public CostInstrumentation(U2FSimulator card) {
+        this.card = card;
+    }
+
+    public CostReport report() {
+        return report;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return card.transport().isExtendedLengthSupported();
+    }
+
+    @Override
+    public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+        U2FApplet applet = card.applet();
+        if (applet == null || commandLength < 4) {
+            return card.transport().transmit(command, commandLength, response, responseOffset);
+        }
+        System.arraycopy(U2FAppletAccess.counter(applet), 0, counterBefore, 0, 4);
+        boolean overflowedBefore = U2FAppletAccess.counterOverflowed(applet);
+        boolean certificateSetBefore = U2FAppletAccess.attestationCertificateSet(applet);
+        FIDOStandalone standalone = U2FAppletAccess.standalone(applet);
+        boolean previousKeyBefore = U2FAppletAccess.previousChipKeySet(standalone);
+
+        FIDOAPI fidoImpl = U2FAppletAccess.fidoImpl(applet);
+        Signature attestationSignature = U2FAppletAccess.attestationSignature(applet);
+        Signature localSignature = U2FAppletAccess.localSignature(applet);
+        Cipher cipherEncrypt = U2FAppletAccess.cipherEncrypt(standalone);
+        Cipher cipherDecrypt = U2FAppletAccess.cipherDecrypt(standalone);
+        Cipher cipherDecryptPrevious = U2FAppletAccess.cipherDecryptPrevious(standalone);
+        CountingFIDOAPI counting = new CountingFIDOAPI(fidoImpl);
+        CountingSignature[] signatures = {new CountingSignature(attestationSignature), new CountingSignature(localSignature)};
+        CountingCipher[] ciphers = {new CountingCipher(cipherEncrypt), new CountingCipher(cipherDecrypt), new CountingCipher(cipherDecryptPrevious)};
+        U2FAppletAccess.setFidoImpl(applet, counting);
+        U2FAppletAccess.setAttestationSignature(applet, signatures[0]);
+        U2FAppletAccess.setLocalSignature(applet, signatures[1]);
+        U2FAppletAccess.setCipherEncrypt(standalone, ciphers[0]);
+        U2FAppletAccess.setCipherDecrypt(standalone, ciphers[1]);
+        U2FAppletAccess.setCipherDecryptPrevious(standalone, ciphers[2]);
+        int length;
+        try {
+            length = card.transport().transmit(command, commandLength, response, responseOffset);
+        } finally {
+            U2FAppletAccess.setFidoImpl(applet, fidoImpl);
+            U2FAppletAccess.setAttestationSignature(applet, attestationSignature);
+            U2FAppletAccess.setLocalSignature(applet, localSignature);
+            U2FAppletAccess.setCipherEncrypt(standalone, cipherEncrypt);
+            U2FAppletAccess.setCipherDecrypt(standalone, cipherDecrypt);
+            U2FAppletAccess.setCipherDecryptPrevious(standalone, cipherDecryptPrevious);
+        }
+
+        int sw = length < 2 ? 0 : ((response[responseOffset + length - 2] & 0xff) << 8) | (response[responseOffset + length - 1] & 0xff);
+        String operation = operation(command);
+        boolean transientKey = U2FAppletAccess.localPrivateTransient(applet);
+        counts.clear();
+        counts.add(CardPrimitive.APDU, 1);
+        counts.add(CardPrimitive.IO_BYTES, commandLength + length);
+
+        for (CountingSignature signature : signatures) {
+            counts.add(CardPrimitive.SIGNATURE_INIT, signature.inits());
+            counts.add(CardPrimitive.SIGNATURE_BYTES, signature.bytes());
+            counts.add(CardPrimitive.SIGNATURE_SIGN, signature.signs());
+        }
+        for (CountingCipher cipher : ciphers) {
+            counts.add(CardPrimitive.CIPHER_BLOCKS, (cipher.bytes() + AES_BLOCK - 1) / AES_BLOCK);
+        }
+
+        // FIDOStandalone: one key pair generation into persistent keys per wrap, the private scalar set on a
+        // successful unwrap
+        counts.add(CardPrimitive.KEY_PAIR_GENERATION, counting.wraps());
+        counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, (long) counting.wraps() * KEY_PAIR_BYTES);
+        report.regionWritten(REGION_KEY_PAIR, counting.wraps());
+        counts.add(CardPrimitive.KEY_SETTER, counting.keyedUnwraps());
+        if (!transientKey) {
+            counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, (long) counting.keyedUnwraps() * PRIVATE_KEY_BYTES);
+            report.regionWritten(REGION_LOCAL_PRIVATE_KEY, counting.keyedUnwraps());
+        }
+        // A transient local key loses its curve parameters and gets them again before any wrap or unwrap
+        if (transientKey && counting.wraps() + counting.unwraps() > 0) {
+            counts.add(CardPrimitive.KEY_SETTER, CURVE_PARAMETER_SETTERS);
+        }
+        // Rotation sets the previous key to the current one and the current key to a random one, retirement
+        // clears the previous key, each in a transaction
+        counts.add(CardPrimitive.TRANSACTION, counting.rotations() + counting.retirements());
+        counts.add(CardPrimitive.KEY_SETTER, 2L * counting.rotations());
+        counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, (long) (2 * counting.rotations() + counting.retirements()) * WRAPPING_KEY_BYTES);
+        report.regionWritten(REGION_CHIP_KEY, counting.rotations());
+        report.regionWritten(REGION_PREVIOUS_CHIP_KEY, counting.rotations() + counting.retirements());
+
+        if (operation.equals(SET_ATTESTATION_CERT) && sw == U2FClient.SW_NO_ERROR) {
+            // Util.arrayCopy is atomic
+            counts.add(CardPrimitive.TRANSACTION, 1);
+            counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, dataLength(command, commandLength));
+            report.regionWritten(REGION_ATTESTATION_CERTIFICATE, 1);
+        }
+
+        if (!Arrays.equals(counterBefore, U2FAppletAccess.counter(applet))) {
+            counts.add(CardPrimitive.TRANSACTION, 1);
+            counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, 4);
+            report.regionWritten(REGION_COUNTER, 1);
+        }
+        if (overflowedBefore != U2FAppletAccess.counterOverflowed(applet)) {
+            counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, 1);
+            report.regionWritten(REGION_COUNTER_OVERFLOWED, 1);
+        }
+        if (certificateSetBefore != U2FAppletAccess.attestationCertificateSet(applet)) {
+            counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, 1);
+            report.regionWritten(REGION_ATTESTATION_CERTIFICATE_SET, 1);
+        }
+        if (previousKeyBefore != U2FAppletAccess.previousChipKeySet(standalone)) {
+            counts.add(CardPrimitive.PERSISTENT_WRITE_BYTES, 1);
+            report.regionWritten(REGION_PREVIOUS_CHIP_KEY_SET, 1);
+        }
+        report.add(operation, counts);
+        return length;
+    }
+
+    static String operation(byte[] command) {
+        if (command[0] == PROPRIETARY_CLA) {
+            switch (command[1]) {
+                case FIDO_ADM_SET_ATTESTATION_CERT:
+                    return SET_ATTESTATION_CERT;
+                case U2FClient.FIDO_ADM_ROTATE_WRAPPING_KEY:
+                    return command[2] == U2FClient.P1_RETIRE_PREVIOUS ? RETIRE_PREVIOUS_WRAPPING_KEY : ROTATE_WRAPPING_KEY;
+                case U2FClient.FIDO_ADM_REWRAP:
+                    return REWRAP;
+                default:
+                    return OTHER;
+            }
+        }
+        switch (command[1]) {
+            case U2FClient.FIDO_INS_ENROLL:
+                return ENROLL;
+            case U2FClient.FIDO_INS_SIGN:
+                return command[2] == U2FClient.P1_SIGN_CHECK_ONLY ? CHECK_ONLY : SIGN;
+            case U2FClient.FIDO_INS_VERSION:
+                return VERSION;
+            case U2FClient.ISO_INS_GET_DATA:
+                return GET_DATA;
+            default:
+                return OTHER;
+        }
+    }
+
+    private static int dataLength(byte[] command, int commandLength) {
+        if (commandLength <= 5) {
+            return 0;
+        }
+        if (command[4] != 0) {
+            return command[4] & 0xff;
+        }
+        return ((command[5] & 0xff) << 8) | (command[6] & 0xff);
+    }
+}
@@ -0,0 +1,106 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CostInstrumentationTest extends SimulatorTestBase {
+
+    @Test
+    public void testCountsPerOperation() throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        CostInstrumentation instrumentation = new CostInstrumentation(card);
+        U2FClient client = new U2FClient(instrumentation);
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+        client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+        assertThat(client.checkOnly(U2FTest.challenge, keyHandle, 0, keyHandle.length), is(false));
+
+        CostReport report = instrumentation.report();
+        PrimitiveCounts enroll = report.totals(CostInstrumentation.ENROLL);
+        assertThat(report.apdus(CostInstrumentation.ENROLL), is(1L));
+        assertThat(enroll.get(CardPrimitive.KEY_PAIR_GENERATION), is(1L));
+        assertThat(enroll.get(CardPrimitive.CIPHER_BLOCKS), is(4L));
+        assertThat(enroll.get(CardPrimitive.SIGNATURE_BYTES), is(1L + 32 + 32 + 64 + 65));
+        assertThat(enroll.get(CardPrimitive.TRANSACTION), is(0L));
+
+        PrimitiveCounts sign = report.totals(CostInstrumentation.SIGN);
+        assertThat(report.apdus(CostInstrumentation.SIGN), is(2L));
+        assertThat(sign.get(CardPrimitive.SIGNATURE_SIGN), is(2L));
+        assertThat(sign.get(CardPrimitive.SIGNATURE_BYTES), is(2L * 69));
+        assertThat(sign.get(CardPrimitive.TRANSACTION), is(2L));
+        assertThat(report.regionWrites().get(CostInstrumentation.REGION_COUNTER), is(2L));
+
+        PrimitiveCounts checkOnly = report.totals(CostInstrumentation.CHECK_ONLY);
+        assertThat(checkOnly.get(CardPrimitive.CIPHER_BLOCKS), is(4L));
+        assertThat(checkOnly.get(CardPrimitive.SIGNATURE_BYTES), is(0L));
+        assertThat(checkOnly.get(CardPrimitive.PERSISTENT_WRITE_BYTES), is(0L));
+
+        // The counting wrappers are only installed during each APDU
+        assertThat(U2FAppletAccess.fidoImpl(card.applet()), is(instanceOf(FIDOStandalone.class)));
+        assertThat(U2FAppletAccess.attestationSignature(card.applet()), is(not(instanceOf(CountingSignature.class))));
+        assertThat(U2FAppletAccess.cipherDecrypt(U2FAppletAccess.standalone(card.applet())), is(not(instanceOf(CountingCipher.class))));
+        assertThat(card.snapshot().counter(), is(2L));
+    }
+
+    @Test
+    public void testRotationWindow() throws CardException {
+        card.provision((byte) (INSTALL_FLAG_DISABLE_USER_PRESENCE | INSTALL_FLAG_ENABLE_KEY_ROTATION), U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        CostInstrumentation instrumentation = new CostInstrumentation(card);
+        U2FClient client = new U2FClient(instrumentation);
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(true));
+        client.rotateWrappingKey();
+        // Unwrapping tries both keys until the previous one is retired
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(true));
+        byte[] statuses = new byte[1];
+        client.rewrap(U2FTest.application, keyHandle, statuses, 1);
+        assertThat(statuses[0], is(FIDOAPI.REWRAP_DONE));
+        client.retirePreviousWrappingKey();
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(true));
+
+        CostReport report = instrumentation.report();
+        assertThat(report.totals(CostInstrumentation.CHECK_ONLY).get(CardPrimitive.CIPHER_BLOCKS), is(4L + 8L + 4L));
+
+        PrimitiveCounts rotate = report.totals(CostInstrumentation.ROTATE_WRAPPING_KEY);
+        assertThat(report.apdus(CostInstrumentation.ROTATE_WRAPPING_KEY), is(1L));
+        assertThat(rotate.get(CardPrimitive.KEY_SETTER), is(2L));
+        assertThat(rotate.get(CardPrimitive.TRANSACTION), is(1L));
+        assertThat(rotate.get(CardPrimitive.PERSISTENT_WRITE_BYTES), is(32L + 32L + 1L));
+
+        // Decrypted with both keys and encrypted again
+        assertThat(report.totals(CostInstrumentation.REWRAP).get(CardPrimitive.CIPHER_BLOCKS), is(12L));
+        assertThat(report.totals(CostInstrumentation.REWRAP).get(CardPrimitive.PERSISTENT_WRITE_BYTES), is(0L));
+
+        assertThat(report.totals(CostInstrumentation.RETIRE_PREVIOUS_WRAPPING_KEY).get(CardPrimitive.PERSISTENT_WRITE_BYTES), is(32L + 1L));
+        assertThat(report.totals(CostInstrumentation.RETIRE_PREVIOUS_WRAPPING_KEY).get(CardPrimitive.TRANSACTION), is(1L));
+        assertThat(report.regionWrites().get(CostInstrumentation.REGION_CHIP_KEY), is(1L));
+        assertThat(report.regionWrites().get(CostInstrumentation.REGION_PREVIOUS_CHIP_KEY), is(2L));
+        assertThat(report.regionWrites().get(CostInstrumentation.REGION_PREVIOUS_CHIP_KEY_SET), is(2L));
+    }
+
+    @Test
+    public void testProjection() throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        CostInstrumentation instrumentation = new CostInstrumentation(card);
+        new U2FClient(instrumentation).register(U2FTest.challenge, U2FTest.application);
+
+        Properties properties = new Properties();
+        properties.setProperty("name", "unit costs");
+        properties.setProperty("key_pair_generation", "1000");
+        properties.setProperty("signature_sign", "100");
+        properties.setProperty("endurance", "100");
+        ChipCostTable table = ChipCostTable.fromProperties(properties);
+        assertThat(instrumentation.report().projectedMicros(CostInstrumentation.ENROLL, table), is(1100.0));
+        assertThat(instrumentation.report().enduranceUsed(table), is(0.01));
+        assertThat(instrumentation.report().format(table), containsString(CostInstrumentation.ENROLL));
+    }
+}
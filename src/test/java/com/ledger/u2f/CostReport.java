@@ -0,0 +1,98 @@
+package com.ledger.u2f;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Primitive counts per operation collected by {@link CostInstrumentation}, and the write cycles of each persistent
+ * memory region, projected onto a {@link ChipCostTable}.
+ */
+public class CostReport {
+    private final Map<String, PrimitiveCounts> totals = new TreeMap<>();
+    private final Map<String, Long> apdus = new TreeMap<>();
+    private final Map<String, Long> regionWrites = new TreeMap<>();
+
+    void add(String operation, PrimitiveCounts counts) {
+        totals.computeIfAbsent(operation, o -> new PrimitiveCounts()).add(counts);
+        apdus.merge(operation, 1L, Long::sum);
+    }
+
+    void regionWritten(String region, long times) {
+        if (times > 0) {
+            regionWrites.merge(region, times, Long::sum);
+        }
+    }
+
+    /**
+     * @return the operations seen, in name order
+     */
+    public Iterable<String> operations() {
+        return totals.keySet();
+    }
+
+    public long apdus(String operation) {
+        Long count = apdus.get(operation);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the summed counts of an operation, empty if it was never seen
+     */
+    public PrimitiveCounts totals(String operation) {
+        PrimitiveCounts counts = totals.get(operation);
+        return counts == null ? new PrimitiveCounts() : counts;
+    }
+
+    /**
+     * @return projected on-card time of one APDU of an operation, in microseconds
+     */
+    public double projectedMicros(String operation, ChipCostTable table) {
+        long count = apdus(operation);
+        return count == 0 ? 0 : totals(operation).projectMicros(table) / count;
+    }
+
+    /**
+     * @return bytes written to persistent memory by one APDU of an operation
+     */
+    public double persistentBytes(String operation) {
+        long count = apdus(operation);
+        return count == 0 ? 0 : (double) totals(operation).get(CardPrimitive.PERSISTENT_WRITE_BYTES) / count;
+    }
+
+    /**
+     * @return number of times each persistent region was rewritten
+     */
+    public Map<String, Long> regionWrites() {
+        return Collections.unmodifiableMap(regionWrites);
+    }
+
+    /**
+     * @return fraction of the endurance of the table used by the most rewritten region, 0 if the endurance is unknown
+     */
+    public double enduranceUsed(ChipCostTable table) {
+        if (table.endurance() == 0) {
+            return 0;
+        }
+        long hottest = 0;
+        for (long writes : regionWrites.values()) {
+            hottest = Math.max(hottest, writes);
+        }
+        return (double) hottest / table.endurance();
+    }
+
+    public String format(ChipCostTable table) {
+        StringBuilder builder = new StringBuilder(String.format("Projection on %s%n", table.name()));
+        for (String operation : operations()) {
+            builder.append(String.format("%-22s %8d APDUs %10.0f us/APDU %6.1f EEPROM bytes/APDU  %s%n", operation,
+                    apdus(operation), projectedMicros(operation, table), persistentBytes(operation), totals(operation)));
+        }
+        for (Map.Entry<String, Long> entry : regionWrites.entrySet()) {
+            builder.append(String.format("%-22s %8d writes%n", entry.getKey(), entry.getValue()));
+        }
+        if (table.endurance() != 0) {
+            builder.append(String.format("Endurance used by the hottest region: %.6f%%%n", enduranceUsed(table) * 100));
+        }
+        return builder.toString();
+    }
+}
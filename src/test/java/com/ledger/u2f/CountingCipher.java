@@ -0,0 +1,68 @@
+package com.ledger.u2f;
+
+import javacard.security.Key;
+import javacardx.crypto.Cipher;
+
+/**
+ * Forwards to a cipher engine of the card, counting initializations and processed bytes.
+ * <p>
+ * Methods added to the Java Card API after 2.2 are declared without <code>@Override</code>, so the class compiles
+ * against every API version jcardsim ships.
+ */
+public class CountingCipher extends Cipher {
+    private final Cipher delegate;
+    private int inits;
+    private long bytes;
+
+    public CountingCipher(Cipher delegate) {
+        this.delegate = delegate;
+    }
+
+    public int inits() {
+        return inits;
+    }
+
+    /**
+     * @return bytes passed to <code>update</code> and <code>doFinal</code>
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public byte getAlgorithm() {
+        return delegate.getAlgorithm();
+    }
+
+    public byte getCipherAlgorithm() {
+        return delegate.getCipherAlgorithm();
+    }
+
+    public byte getPaddingAlgorithm() {
+        return delegate.getPaddingAlgorithm();
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode) {
+        inits++;
+        delegate.init(theKey, theMode);
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+        inits++;
+        delegate.init(theKey, theMode, bArray, bOff, bLen);
+    }
+
+    @Override
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        bytes += inLength;
+        return delegate.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+    }
+
+    @Override
+    public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        bytes += inLength;
+        return delegate.update(inBuff, inOffset, inLength, outBuff, outOffset);
+    }
+}
@@ -0,0 +1,116 @@
+package com.ledger.u2f;
+
+import javacard.security.ECPrivateKey;
+
+/**
+ * Counts the calls into the wrapping implementation of a card and how they ended.
+ */
+public class CountingFIDOAPI extends ForwardingFIDOAPI {
+    private int wraps;
+    private int keyHandleBytes;
+    private int unwraps;
+    private int successfulUnwraps;
+    private int keyedUnwraps;
+    private int rotations;
+    private int retirements;
+    private int rewraps;
+
+    public CountingFIDOAPI(FIDOAPI delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public short generateKeyAndWrap(byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey generatedPrivateKey, byte[] publicKey, short publicKeyOffset, byte[] keyHandle, short keyHandleOffset) {
+        short length = super.generateKeyAndWrap(applicationParameter, applicationParameterOffset, generatedPrivateKey, publicKey, publicKeyOffset, keyHandle, keyHandleOffset);
+        wraps++;
+        keyHandleBytes += length;
+        return length;
+    }
+
+    @Override
+    public boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey unwrappedPrivateKey) {
+        boolean result = super.unwrap(keyHandle, keyHandleOffset, keyHandleLength, applicationParameter, applicationParameterOffset, unwrappedPrivateKey);
+        unwraps++;
+        if (result) {
+            successfulUnwraps++;
+            if (unwrappedPrivateKey != null) {
+                keyedUnwraps++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean rotateWrappingKey() {
+        boolean result = super.rotateWrappingKey();
+        if (result) {
+            rotations++;
+        }
+        return result;
+    }
+
+    @Override
+    public void retirePreviousWrappingKey() {
+        super.retirePreviousWrappingKey();
+        retirements++;
+    }
+
+    @Override
+    public byte rewrap(byte[] keyHandle, short keyHandleOffset, byte[] applicationParameter, short applicationParameterOffset) {
+        byte status = super.rewrap(keyHandle, keyHandleOffset, applicationParameter, applicationParameterOffset);
+        rewraps++;
+        return status;
+    }
+
+    public int wraps() {
+        return wraps;
+    }
+
+    /**
+     * @return total length of the key handles produced
+     */
+    public int keyHandleBytes() {
+        return keyHandleBytes;
+    }
+
+    public int unwraps() {
+        return unwraps;
+    }
+
+    public int successfulUnwraps() {
+        return successfulUnwraps;
+    }
+
+    /**
+     * @return successful unwraps that set the unwrapped private key
+     */
+    public int keyedUnwraps() {
+        return keyedUnwraps;
+    }
+
+    /**
+     * @return rotations that replaced the wrapping key
+     */
+    public int rotations() {
+        return rotations;
+    }
+
+    public int retirements() {
+        return retirements;
+    }
+
+    public int rewraps() {
+        return rewraps;
+    }
+
+    public void reset() {
+        wraps = 0;
+        keyHandleBytes = 0;
+        unwraps = 0;
+        successfulUnwraps = 0;
+        keyedUnwraps = 0;
+        rotations = 0;
+        retirements = 0;
+        rewraps = 0;
+    }
+}
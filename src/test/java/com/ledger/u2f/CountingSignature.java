@@ -0,0 +1,98 @@
+package com.ledger.u2f;
+
+import javacard.security.Key;
+import javacard.security.Signature;
+
+/**
+ * Forwards to a signature engine of the card, counting initializations, hashed bytes and signatures.
+ * <p>
+ * Methods added to the Java Card API after 2.2 are declared without <code>@Override</code>, so the class compiles
+ * against every API version jcardsim ships.
+ */
+public class CountingSignature extends Signature {
+    private final Signature delegate;
+    private int inits;
+    private long bytes;
+    private int signs;
+
+    public CountingSignature(Signature delegate) {
+        this.delegate = delegate;
+    }
+
+    public int inits() {
+        return inits;
+    }
+
+    /**
+     * @return bytes passed to <code>update</code> and <code>sign</code>
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public int signs() {
+        return signs;
+    }
+
+    @Override
+    public byte getAlgorithm() {
+        return delegate.getAlgorithm();
+    }
+
+    public byte getMessageDigestAlgorithm() {
+        return delegate.getMessageDigestAlgorithm();
+    }
+
+    public byte getCipherAlgorithm() {
+        return delegate.getCipherAlgorithm();
+    }
+
+    public byte getPaddingAlgorithm() {
+        return delegate.getPaddingAlgorithm();
+    }
+
+    @Override
+    public short getLength() {
+        return delegate.getLength();
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode) {
+        inits++;
+        delegate.init(theKey, theMode);
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+        inits++;
+        delegate.init(theKey, theMode, bArray, bOff, bLen);
+    }
+
+    public void setInitialDigest(byte[] state, short stateOffset, short stateLength, byte[] digestedMsgLenBuf, short digestedMsgLenOffset, short digestedMsgLenLength) {
+        delegate.setInitialDigest(state, stateOffset, stateLength, digestedMsgLenBuf, digestedMsgLenOffset, digestedMsgLenLength);
+    }
+
+    @Override
+    public void update(byte[] inBuff, short inOffset, short inLength) {
+        bytes += inLength;
+        delegate.update(inBuff, inOffset, inLength);
+    }
+
+    @Override
+    public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+        bytes += inLength;
+        signs++;
+        return delegate.sign(inBuff, inOffset, inLength, sigBuff, sigOffset);
+    }
+
+    public short signPreComputedHash(byte[] hashBuff, short hashOffset, short hashLength, byte[] sigBuff, short sigOffset) {
+        signs++;
+        return delegate.signPreComputedHash(hashBuff, hashOffset, hashLength, sigBuff, sigOffset);
+    }
+
+    @Override
+    public boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength) {
+        bytes += inLength;
+        return delegate.verify(inBuff, inOffset, inLength, sigBuff, sigOffset, sigLength);
+    }
+}
@@ -0,0 +1,190 @@
+package com.ledger.u2f;
+
+import javacard.security.ECPrivateKey;
+import javacard.security.Signature;
+
+import javax.smartcardio.CardException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport to a {@link U2FSimulator} that makes it behave like a chip in a reader: slow, and losing responses or
+ * power now and then.
+ * <ul>
+ * <li>Latency drawn from a distribution per instruction is added after the card answered.</li>
+ * <li>Responses to GET DATA can be dropped, the command reached the card but the host gets a {@link CardException},
+ * or truncated, the host gets part of the data and the status word.</li>
+ * <li>Power can be lost in the middle of a signature, on either side of the counter update: while the key handle is
+ * unwrapped, before the counter transaction begins, or while the signature is computed, after the counter commit.
+ * For that one command a hook in the FIDO implementation or the signature engine of the applet throws at that point,
+ * so the applet really stops there. The card is then power cycled and selected again, and the host gets a
+ * {@link CardException}.</li>
+ * </ul>
+ * A tear inside the counter transaction itself is not injected: the applet makes no call between
+ * <code>beginTransaction</code> and <code>commitTransaction</code> that the harness could interrupt.
+ * Faults are drawn from a seeded generator, so a run can be repeated.
+ */
+public class FaultInjectingTransport implements APDUTransport {
+    public enum PowerLoss {
+        /**
+         * While the key handle is unwrapped, the counter is not touched.
+         */
+        BEFORE_COUNTER_UPDATE,
+        /**
+         * While the signature is computed, the counter was committed but the signature never leaves the card.
+         */
+        AFTER_COUNTER_COMMIT
+    }
+
+    /**
+     * Thrown by the hooks to stop the applet where the power goes.
+     */
+    private static final class PowerLossError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PowerLossError() {
+            super("Power lost", null, false, false);
+        }
+    }
+
+    private final U2FSimulator card;
+    private final Random random;
+    private final Map<Byte, LatencyDistribution> latencies = new HashMap<>();
+    private double getDataDropRate;
+    private double getDataTruncateRate;
+    private PowerLoss powerLoss;
+    private double powerLossRate;
+    private long drops;
+    private long truncations;
+    private long powerLosses;
+
+    public FaultInjectingTransport(U2FSimulator card, long seed) {
+        this.card = card;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param latency added to every command with this instruction, null to remove
+     */
+    public FaultInjectingTransport setLatency(byte ins, LatencyDistribution latency) {
+        if (latency == null) {
+            latencies.remove(ins);
+        } else {
+            latencies.put(ins, latency);
+        }
+        return this;
+    }
+
+    public FaultInjectingTransport setGetDataDropRate(double rate) {
+        this.getDataDropRate = rate;
+        return this;
+    }
+
+    public FaultInjectingTransport setGetDataTruncateRate(double rate) {
+        this.getDataTruncateRate = rate;
+        return this;
+    }
+
+    /**
+     * @param powerLoss when the power goes, null to disable
+     * @param rate probability for each signature
+     */
+    public FaultInjectingTransport setPowerLoss(PowerLoss powerLoss, double rate) {
+        this.powerLoss = powerLoss;
+        this.powerLossRate = rate;
+        return this;
+    }
+
+    public long drops() {
+        return drops;
+    }
+
+    public long truncations() {
+        return truncations;
+    }
+
+    public long powerLosses() {
+        return powerLosses;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return card.transport().isExtendedLengthSupported();
+    }
+
+    @Override
+    public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+        byte ins = commandLength > 1 ? command[1] : 0;
+        boolean sign = commandLength > 2 && command[0] == U2FClient.FIDO_CLA && ins == U2FClient.FIDO_INS_SIGN && command[2] == U2FClient.P1_SIGN_OPERATION;
+        boolean tear = sign && powerLoss != null && random.nextDouble() < powerLossRate;
+
+        int length = tear ? transmitTorn(command, commandLength, response, responseOffset) : card.transport().transmit(command, commandLength, response, responseOffset);
+
+        LatencyDistribution latency = latencies.get(ins);
+        if (latency != null) {
+            LockSupport.parkNanos(latency.sample(random));
+        }
+        if (ins == U2FClient.ISO_INS_GET_DATA) {
+            if (random.nextDouble() < getDataDropRate) {
+                drops++;
+                throw new CardException("GET DATA response lost");
+            }
+            if (length > 2 && random.nextDouble() < getDataTruncateRate) {
+                truncations++;
+                int kept = random.nextInt(length - 2);
+                System.arraycopy(response, responseOffset + length - 2, response, responseOffset + kept, 2);
+                return kept + 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Send a command with the power loss hook installed, and power cycle the card if the hook fired.
+     */
+    private int transmitTorn(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+        U2FApplet applet = card.applet();
+        FIDOAPI fidoImpl = U2FAppletAccess.fidoImpl(applet);
+        Signature localSignature = U2FAppletAccess.localSignature(applet);
+        boolean[] torn = new boolean[1];
+        if (powerLoss == PowerLoss.BEFORE_COUNTER_UPDATE) {
+            U2FAppletAccess.setFidoImpl(applet, new ForwardingFIDOAPI(fidoImpl) {
+                @Override
+                public boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey unwrappedPrivateKey) {
+                    torn[0] = true;
+                    throw new PowerLossError();
+                }
+            });
+        } else {
+            U2FAppletAccess.setLocalSignature(applet, new CountingSignature(localSignature) {
+                @Override
+                public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+                    torn[0] = true;
+                    throw new PowerLossError();
+                }
+            });
+        }
+        int length;
+        try {
+            length = card.transport().transmit(command, commandLength, response, responseOffset);
+        } catch (RuntimeException e) {
+            // Depending on the simulator, the error escapes or is answered with a status word
+            if (!torn[0]) {
+                throw e;
+            }
+            length = 0;
+        } finally {
+            U2FAppletAccess.setFidoImpl(applet, fidoImpl);
+            U2FAppletAccess.setLocalSignature(applet, localSignature);
+        }
+        if (!torn[0]) {
+            // The command stopped before reaching the hook, e.g. on a user presence or key handle check
+            return length;
+        }
+        powerLosses++;
+        card.powerCycle();
+        throw new CardException("Power lost " + (powerLoss == PowerLoss.BEFORE_COUNTER_UPDATE ? "before the counter update" : "after the counter commit"));
+    }
+}
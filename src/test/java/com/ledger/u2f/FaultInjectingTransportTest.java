@@ -0,0 +1,102 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FaultInjectingTransportTest extends SimulatorTestBase {
+
+    private byte[] provision() throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        RegistrationResponse registration = new U2FClient(card.transport()).register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        return keyHandle;
+    }
+
+    private static long authenticate(APDUTransport transport, byte[] keyHandle) throws CardException {
+        return new U2FClient(transport).authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length).counter();
+    }
+
+    @Test
+    public void testLatency() throws CardException {
+        byte[] keyHandle = provision();
+        FaultInjectingTransport transport = new FaultInjectingTransport(card, 1)
+                .setLatency(FIDO_INS_SIGN, LatencyDistribution.fixed(20000000L));
+        long start = System.nanoTime();
+        authenticate(transport, keyHandle);
+        assertThat(System.nanoTime() - start, is(greaterThanOrEqualTo(20000000L)));
+    }
+
+    @Test
+    public void testPowerLossBeforeCounterUpdate() throws CardException {
+        byte[] keyHandle = provision();
+        FaultInjectingTransport transport = new FaultInjectingTransport(card, 1)
+                .setPowerLoss(FaultInjectingTransport.PowerLoss.BEFORE_COUNTER_UPDATE, 1.0);
+        try {
+            authenticate(transport, keyHandle);
+            throw new AssertionError("Power loss not injected");
+        } catch (CardException e) {
+            assertThat(transport.powerLosses(), is(1L));
+        }
+        assertThat(card.snapshot().counter(), is(0L));
+        assertThat(U2FAppletAccess.fidoImpl(card.applet()), is(instanceOf(FIDOStandalone.class)));
+        assertThat(authenticate(card.transport(), keyHandle), is(1L));
+    }
+
+    @Test
+    public void testPowerLossAfterCounterCommit() throws CardException {
+        byte[] keyHandle = provision();
+        FaultInjectingTransport transport = new FaultInjectingTransport(card, 1)
+                .setPowerLoss(FaultInjectingTransport.PowerLoss.AFTER_COUNTER_COMMIT, 1.0);
+        try {
+            authenticate(transport, keyHandle);
+            throw new AssertionError("Power loss not injected");
+        } catch (CardException e) {
+            assertThat(transport.powerLosses(), is(1L));
+        }
+        // The host never saw counter 1
+        assertThat(card.snapshot().counter(), is(1L));
+        assertThat(U2FAppletAccess.localSignature(card.applet()), is(not(instanceOf(CountingSignature.class))));
+        assertThat(authenticate(card.transport(), keyHandle), is(2L));
+    }
+
+    @Test
+    public void testGetDataDrop() throws CardException {
+        provision();
+        FaultInjectingTransport transport = new FaultInjectingTransport(card, 1) {
+            @Override
+            public boolean isExtendedLengthSupported() {
+                return false;
+            }
+        }.setGetDataDropRate(1.0);
+        try {
+            new U2FClient(transport).register(U2FTest.challenge, U2FTest.application);
+            throw new AssertionError("Drop not injected");
+        } catch (CardException e) {
+            assertThat(transport.drops(), is(1L));
+        }
+    }
+
+    @Test
+    public void testGetDataTruncation() throws CardException {
+        provision();
+        FaultInjectingTransport transport = new FaultInjectingTransport(card, 1).setGetDataTruncateRate(1.0);
+        byte[] enroll = new byte[5 + 64 + 1];
+        enroll[1] = FIDO_INS_ENROLL;
+        enroll[4] = 64;
+        byte[] response = new byte[258];
+        int length = transport.transmit(enroll, enroll.length, response, 0);
+        assertThat(response[length - 2], is((byte) 0x61));
+
+        byte[] getData = {0, ISO_INS_GET_DATA, 0, 0, response[length - 1]};
+        int expected = (getData[4] & 0xff) == 0 ? 256 : getData[4] & 0xff;
+        length = transport.transmit(getData, getData.length, response, 0);
+        assertThat(transport.truncations(), is(1L));
+        assertThat(length - 2, is(lessThan(expected)));
+        assertThat(ApduTraceReplayer.sw(response, length) >> 8, isOneOf(0x61, 0x90));
+    }
+}
@@ -0,0 +1,44 @@
+package com.ledger.u2f;
+
+import javacard.security.ECPrivateKey;
+
+/**
+ * Base of {@link FIDOAPI} decorators installed into an applet by the harness, forwarding every call.
+ * {@link U2FAppletAccess#standalone(U2FApplet)} looks through them to the card implementation.
+ */
+public abstract class ForwardingFIDOAPI implements FIDOAPI {
+    private final FIDOAPI delegate;
+
+    protected ForwardingFIDOAPI(FIDOAPI delegate) {
+        this.delegate = delegate;
+    }
+
+    public FIDOAPI delegate() {
+        return delegate;
+    }
+
+    @Override
+    public short generateKeyAndWrap(byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey generatedPrivateKey, byte[] publicKey, short publicKeyOffset, byte[] keyHandle, short keyHandleOffset) {
+        return delegate.generateKeyAndWrap(applicationParameter, applicationParameterOffset, generatedPrivateKey, publicKey, publicKeyOffset, keyHandle, keyHandleOffset);
+    }
+
+    @Override
+    public boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey unwrappedPrivateKey) {
+        return delegate.unwrap(keyHandle, keyHandleOffset, keyHandleLength, applicationParameter, applicationParameterOffset, unwrappedPrivateKey);
+    }
+
+    @Override
+    public boolean rotateWrappingKey() {
+        return delegate.rotateWrappingKey();
+    }
+
+    @Override
+    public void retirePreviousWrappingKey() {
+        delegate.retirePreviousWrappingKey();
+    }
+
+    @Override
+    public byte rewrap(byte[] keyHandle, short keyHandleOffset, byte[] applicationParameter, short applicationParameterOffset) {
+        return delegate.rewrap(keyHandle, keyHandleOffset, applicationParameter, applicationParameterOffset);
+    }
+}
@@ -0,0 +1,109 @@
+package com.ledger.u2f;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of an {@link ApduFuzzer} run.
+ */
+public class FuzzReport {
+
+    /**
+     * A command sequence that made the applet fail with an unexpected exception (status word 6F00).
+     */
+    public static class Finding {
+        public final String key;
+        public final List<byte[]> sequence;
+
+        Finding(String key, List<byte[]> sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(key);
+            for (byte[] apdu : sequence) {
+                builder.append(String.format("%n  "));
+                for (byte b : apdu) {
+                    builder.append(String.format("%02X", b));
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    private final long executions;
+    private final long apdus;
+    private final long elapsed;
+    private final int features;
+    private final int corpusSize;
+    private final List<Finding> findings;
+    private final Map<String, Long> rejected;
+
+    FuzzReport(long executions, long apdus, long elapsed, int features, int corpusSize, List<Finding> findings, Map<String, Long> rejected) {
+        this.executions = executions;
+        this.apdus = apdus;
+        this.elapsed = elapsed;
+        this.features = features;
+        this.corpusSize = corpusSize;
+        this.findings = Collections.unmodifiableList(new ArrayList<>(findings));
+        this.rejected = Collections.unmodifiableMap(new TreeMap<>(rejected));
+    }
+
+    /**
+     * @return command sequences run
+     */
+    public long executions() {
+        return executions;
+    }
+
+    public long apdus() {
+        return apdus;
+    }
+
+    public double executionsPerSecond() {
+        return elapsed == 0 ? 0 : executions / (elapsed / 1e9);
+    }
+
+    /**
+     * @return distinct coverage features reached
+     */
+    public int features() {
+        return features;
+    }
+
+    public int corpusSize() {
+        return corpusSize;
+    }
+
+    /**
+     * @return one finding per distinct instruction, P1 and transport state failing
+     */
+    public List<Finding> findings() {
+        return findings;
+    }
+
+    /**
+     * @return commands the simulator itself refused to deliver, by exception class
+     */
+    public Map<String, Long> rejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("%d executions (%d APDUs) in %.1fs, %.0f exec/s, %d features, corpus %d, %d findings%n",
+                executions, apdus, elapsed / 1e9, executionsPerSecond(), features, corpusSize, findings.size()));
+        for (Map.Entry<String, Long> entry : rejected.entrySet()) {
+            builder.append(String.format("rejected by simulator: %s x%d%n", entry.getKey(), entry.getValue()));
+        }
+        for (Finding finding : findings) {
+            builder.append(finding).append(String.format("%n"));
+        }
+        return builder.toString();
+    }
+}
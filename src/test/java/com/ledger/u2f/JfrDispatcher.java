@@ -0,0 +1,69 @@
+package com.ledger.u2f;
+
+import javacard.framework.APDU;
+import javacard.framework.APDUException;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * Emits an {@link ApduEvent} around every dispatch of a {@link SimulatedU2FApplet} and a {@link KeyHandleEvent}
+ * around every wrap or unwrap, while a JFR recording enables them.
+ * <p>
+ * Loaded by name from {@link SimulatedU2FApplet} only when <code>u2f.jfr</code> is set, so the simulator does not
+ * depend on <code>jdk.jfr</code> otherwise.
+ */
+final class JfrDispatcher implements SimulatedU2FApplet.Dispatcher {
+    private static final ThreadLocal<ApduEvent> dispatching = new ThreadLocal<>();
+
+    /**
+     * @return the event of the command being processed on the calling thread, null outside a recorded dispatch
+     */
+    static ApduEvent currentApdu() {
+        return dispatching.get();
+    }
+
+    @Override
+    public FIDOAPI wrap(FIDOAPI fidoImpl) {
+        return new JfrFIDOAPI(fidoImpl);
+    }
+
+    @Override
+    public void process(SimulatedU2FApplet applet, APDU apdu) throws ISOException {
+        ApduEvent event = new ApduEvent();
+        if (!event.isEnabled()) {
+            applet.dispatch(apdu);
+            return;
+        }
+        byte[] buffer = apdu.getBuffer();
+        event.ins = buffer[ISO7816.OFFSET_INS] & 0xff;
+        event.p1 = buffer[ISO7816.OFFSET_P1] & 0xff;
+        event.transport = apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA ? "extended" : "short";
+        event.statusWord = ISO7816.SW_NO_ERROR & 0xffff;
+        dispatching.set(event);
+        event.begin();
+        try {
+            applet.dispatch(apdu);
+        } catch (ISOException e) {
+            event.statusWord = e.getReason() & 0xffff;
+            throw e;
+        } catch (RuntimeException e) {
+            event.statusWord = ISO7816.SW_UNKNOWN & 0xffff;
+            throw e;
+        } finally {
+            event.dataLength = incomingLength(apdu);
+            event.commit();
+            dispatching.remove();
+        }
+    }
+
+    /**
+     * @return Lc of a command the applet received, 0 for a command without data
+     */
+    private static int incomingLength(APDU apdu) {
+        try {
+            return apdu.getIncomingLength();
+        } catch (APDUException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ledger.u2f;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class JfrEventsTest extends SimulatorTestBase {
+
+    @Test
+    public void testEventsPerCommand() throws Exception {
+        // Opt-in, run with -Du2f.jfr=true
+        Assume.assumeTrue(SimulatedU2FApplet.isJfrEnabled());
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        Path file = Files.createTempFile("u2f", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(ApduEvent.class).withoutThreshold();
+            recording.enable(KeyHandleEvent.class).withoutThreshold();
+            recording.start();
+            U2FClient client = new U2FClient(card.transport());
+            RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+            byte[] keyHandle = new byte[registration.keyHandleLength()];
+            registration.keyHandle().get(keyHandle);
+            assertThat(client.checkOnly(U2FTest.challenge, keyHandle, 0, keyHandle.length), is(false));
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            List<RecordedEvent> apdus = events.stream().filter(e -> e.getEventType().getName().equals("com.ledger.u2f.Apdu")).sorted(Comparator.comparing(RecordedEvent::getStartTime)).collect(Collectors.toList());
+            List<RecordedEvent> keyHandles = events.stream().filter(e -> e.getEventType().getName().equals("com.ledger.u2f.KeyHandle")).sorted(Comparator.comparing(RecordedEvent::getStartTime)).collect(Collectors.toList());
+
+            assertThat(apdus.size(), is(2));
+            assertThat(apdus.get(0).getInt("ins"), is((int) FIDO_INS_ENROLL));
+            assertThat(apdus.get(0).getInt("statusWord"), is(0x9000));
+            assertThat(apdus.get(0).getString("transport"), is("extended"));
+            assertThat(apdus.get(1).getInt("p1"), is((int) P1_SIGN_CHECK_ONLY));
+            assertThat(apdus.get(1).getInt("statusWord"), is(0x6A80));
+
+            assertThat(keyHandles.size(), is(2));
+            assertThat(keyHandles.get(0).getString("operation"), is("generateKeyAndWrap"));
+            assertThat(keyHandles.get(1).getString("operation"), is("unwrap"));
+            assertThat(keyHandles.get(1).getBoolean("success"), is(false));
+            assertThat(keyHandles.get(1).getInt("ins"), is((int) FIDO_INS_SIGN));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.ledger.u2f;
+
+import javacard.security.ECPrivateKey;
+
+/**
+ * Emits a {@link KeyHandleEvent} around every wrap and unwrap while the event is enabled in a recording.
+ */
+public class JfrFIDOAPI extends ForwardingFIDOAPI {
+
+    public JfrFIDOAPI(FIDOAPI delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public short generateKeyAndWrap(byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey generatedPrivateKey, byte[] publicKey, short publicKeyOffset, byte[] keyHandle, short keyHandleOffset) {
+        KeyHandleEvent event = new KeyHandleEvent();
+        if (!event.isEnabled()) {
+            return super.generateKeyAndWrap(applicationParameter, applicationParameterOffset, generatedPrivateKey, publicKey, publicKeyOffset, keyHandle, keyHandleOffset);
+        }
+        event.operation = "generateKeyAndWrap";
+        event.copyCommand(JfrDispatcher.currentApdu());
+        event.begin();
+        short length = super.generateKeyAndWrap(applicationParameter, applicationParameterOffset, generatedPrivateKey, publicKey, publicKeyOffset, keyHandle, keyHandleOffset);
+        event.success = true;
+        event.commit();
+        return length;
+    }
+
+    @Override
+    public boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, ECPrivateKey unwrappedPrivateKey) {
+        KeyHandleEvent event = new KeyHandleEvent();
+        if (!event.isEnabled()) {
+            return super.unwrap(keyHandle, keyHandleOffset, keyHandleLength, applicationParameter, applicationParameterOffset, unwrappedPrivateKey);
+        }
+        event.operation = "unwrap";
+        event.copyCommand(JfrDispatcher.currentApdu());
+        event.begin();
+        event.success = super.unwrap(keyHandle, keyHandleOffset, keyHandleLength, applicationParameter, applicationParameterOffset, unwrappedPrivateKey);
+        event.commit();
+        return event.success;
+    }
+}
@@ -0,0 +1,48 @@
+package com.ledger.u2f;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning a call into the wrapping implementation of a simulated applet, carrying the command it
+ * serves.
+ */
+@Name("com.ledger.u2f.KeyHandle")
+@Label("U2F Key Handle")
+@Category("U2F")
+@Description("Key handle generation or unwrapping in the simulated U2F applet")
+@StackTrace(false)
+public class KeyHandleEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Instruction")
+    int ins;
+
+    @Label("P1")
+    int p1;
+
+    @Label("Data Length")
+    @DataAmount(DataAmount.BYTES)
+    int dataLength;
+
+    @Label("Transport")
+    String transport;
+
+    void copyCommand(ApduEvent apdu) {
+        if (apdu != null) {
+            ins = apdu.ins;
+            p1 = apdu.p1;
+            dataLength = apdu.dataLength;
+            transport = apdu.transport;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Re-wraps a file of stored key handles with the current wrapping key of a pool of cards sharing the same keys, after
+ * {@link U2FClient#rotateWrappingKey()}.
+ * <p>
+ * The input holds fixed records of application parameter (32 bytes) and key handle (64 bytes), the output receives
+ * at the same index a record of status (1 byte, see {@link FIDOAPI#rewrap}) and key handle. Records are claimed in
+ * chunks by one worker per card, read and written at their position, so the files are streamed without holding
+ * more than a chunk per card in memory and chunks complete in any order.
+ */
+public class KeyHandleRewrapTool {
+    static final int INPUT_RECORD_LENGTH = 32 + 64;
+    static final int OUTPUT_RECORD_LENGTH = 1 + 64;
+    static final int CHUNK_RECORDS = 1024;
+
+    /**
+     * Count of key handles per outcome.
+     */
+    public static class Result {
+        private final long current;
+        private final long rewrapped;
+        private final long invalid;
+
+        Result(long current, long rewrapped, long invalid) {
+            this.current = current;
+            this.rewrapped = rewrapped;
+            this.invalid = invalid;
+        }
+
+        /**
+         * @return key handles already wrapped with the current key
+         */
+        public long current() {
+            return current;
+        }
+
+        public long rewrapped() {
+            return rewrapped;
+        }
+
+        /**
+         * @return key handles not belonging to their application under either key
+         */
+        public long invalid() {
+            return invalid;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d current, %d re-wrapped, %d invalid", current, rewrapped, invalid);
+        }
+    }
+
+    private final List<Supplier<U2FClient>> cards;
+
+    /**
+     * @param cards one client supplier per card, called once on the card's worker thread
+     */
+    public KeyHandleRewrapTool(List<? extends Supplier<U2FClient>> cards) {
+        if (cards.isEmpty()) {
+            throw new IllegalArgumentException("No cards");
+        }
+        this.cards = new ArrayList<>(cards);
+    }
+
+    /**
+     * Re-wrap every record of <code>input</code> into <code>output</code>, replacing it.
+     *
+     * @throws CardException the first error of a card, after all workers stopped; a {@link U2FStatusException} if
+     * a card answered a status outside of the {@link FIDOAPI#rewrap} results. Any other failure of a worker, errors
+     * included, is rethrown the same way, so a result is only returned once every chunk was written
+     */
+    public Result run(Path input, Path output) throws IOException, CardException, InterruptedException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (in.size() % INPUT_RECORD_LENGTH != 0) {
+                throw new IOException("Truncated record in " + input);
+            }
+            long records = in.size() / INPUT_RECORD_LENGTH;
+            long chunks = (records + CHUNK_RECORDS - 1) / CHUNK_RECORDS;
+            AtomicLong nextChunk = new AtomicLong();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            long[][] counts = new long[cards.size()][3];
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < cards.size(); i++) {
+                Supplier<U2FClient> card = cards.get(i);
+                long[] workerCounts = counts[i];
+                Thread worker = new Thread(() -> {
+                    try {
+                        work(card.get(), in, out, records, chunks, nextChunk, failure, workerCounts);
+                    } catch (Throwable e) {
+                        // Errors too, or the chunks of this worker would silently stay unwritten
+                        failure.compareAndSet(null, e);
+                    }
+                }, "rewrap-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            Throwable e = failure.get();
+            if (e instanceof CardException) {
+                throw (CardException) e;
+            } else if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e != null) {
+                throw (Error) e;
+            }
+            long[] total = new long[3];
+            for (long[] workerCounts : counts) {
+                for (int status = 0; status < total.length; status++) {
+                    total[status] += workerCounts[status];
+                }
+            }
+            return new Result(total[FIDOAPI.REWRAP_CURRENT], total[FIDOAPI.REWRAP_DONE], total[FIDOAPI.REWRAP_INVALID]);
+        }
+    }
+
+    private static void work(U2FClient client, FileChannel in, FileChannel out, long records, long chunks, AtomicLong nextChunk,
+                             AtomicReference<Throwable> failure, long[] counts) throws IOException, CardException {
+        ByteBuffer inputBuffer = ByteBuffer.allocate(CHUNK_RECORDS * INPUT_RECORD_LENGTH);
+        ByteBuffer outputBuffer = ByteBuffer.allocate(CHUNK_RECORDS * OUTPUT_RECORD_LENGTH);
+        byte[] applicationParameters = new byte[CHUNK_RECORDS * 32];
+        byte[] keyHandles = new byte[CHUNK_RECORDS * 64];
+        byte[] statuses = new byte[CHUNK_RECORDS];
+        long chunk;
+        while (failure.get() == null && (chunk = nextChunk.getAndIncrement()) < chunks) {
+            long first = chunk * CHUNK_RECORDS;
+            int count = (int) Math.min(CHUNK_RECORDS, records - first);
+            inputBuffer.clear().limit(count * INPUT_RECORD_LENGTH);
+            readFully(in, inputBuffer, first * INPUT_RECORD_LENGTH);
+            inputBuffer.flip();
+            for (int i = 0; i < count; i++) {
+                inputBuffer.get(applicationParameters, i * 32, 32);
+                inputBuffer.get(keyHandles, i * 64, 64);
+            }
+            client.rewrap(applicationParameters, keyHandles, statuses, count);
+            outputBuffer.clear();
+            for (int i = 0; i < count; i++) {
+                byte status = statuses[i];
+                if (status != FIDOAPI.REWRAP_CURRENT && status != FIDOAPI.REWRAP_DONE && status != FIDOAPI.REWRAP_INVALID) {
+                    throw new U2FStatusException(U2FClient.SW_NO_ERROR, String.format("Unexpected re-wrap status %02X for record %d", status, first + i));
+                }
+                outputBuffer.put(status);
+                outputBuffer.put(keyHandles, i * 64, 64);
+                counts[status]++;
+            }
+            outputBuffer.flip();
+            long position = first * OUTPUT_RECORD_LENGTH;
+            while (outputBuffer.hasRemaining()) {
+                position += out.write(outputBuffer, position);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of input");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class KeyHandleRewrapToolTest {
+
+    @Test
+    public void testRewrapFileThroughPool() throws Exception {
+        U2FSimulator card = new U2FSimulator();
+        card.provision((byte) (SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE | SimulatorTestBase.INSTALL_FLAG_ENABLE_KEY_ROTATION), U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+        int records = KeyHandleRewrapTool.CHUNK_RECORDS + 3;
+        ByteBuffer input = ByteBuffer.allocate(records * KeyHandleRewrapTool.INPUT_RECORD_LENGTH);
+        byte[] keyHandle = new byte[64];
+        for (int i = 0; i < 3; i++) {
+            client.register(U2FTest.challenge, U2FTest.application).keyHandle().get(keyHandle);
+            input.put(U2FTest.application).put(keyHandle);
+        }
+        // The same handles claimed by another application, then under the right one again
+        for (int i = 3; i < records; i++) {
+            int source = (i % 3) * KeyHandleRewrapTool.INPUT_RECORD_LENGTH;
+            input.put(i % 2 == 0 ? U2FTest.challenge : U2FTest.application);
+            input.put(input.array(), source + 32, 64);
+        }
+        client.rotateWrappingKey();
+        U2FAppletSnapshot image = card.snapshot();
+
+        Path inputFile = Files.createTempFile("handles", ".in");
+        Path outputFile = Files.createTempFile("handles", ".out");
+        try {
+            Files.write(inputFile, input.array());
+            List<Supplier<U2FClient>> cards = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                cards.add(() -> {
+                    U2FSimulator worker = new U2FSimulator();
+                    worker.restore(image);
+                    return new U2FClient(worker.transport());
+                });
+            }
+            KeyHandleRewrapTool.Result result = new KeyHandleRewrapTool(cards).run(inputFile, outputFile);
+            long invalid = (records - 3 + 1) / 2;
+            assertThat(result.invalid(), is(invalid));
+            assertThat(result.rewrapped(), is(records - invalid));
+            assertThat(result.current(), is(0L));
+
+            byte[] output = Files.readAllBytes(outputFile);
+            assertThat(output.length, is(records * KeyHandleRewrapTool.OUTPUT_RECORD_LENGTH));
+            client.retirePreviousWrappingKey();
+            for (int i = 0; i < records; i++) {
+                int offset = i * KeyHandleRewrapTool.OUTPUT_RECORD_LENGTH;
+                boolean valid = i < 3 || i % 2 != 0;
+                assertThat(output[offset], is(valid ? FIDOAPI.REWRAP_DONE : FIDOAPI.REWRAP_INVALID));
+                if (valid && i % 100 == 1) {
+                    assertThat(client.checkOnly(U2FTest.application, output, offset + 1, 64), is(true));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test(expected = U2FStatusException.class)
+    public void testCardErrorsAreReported() throws Exception {
+        U2FSimulator card = new U2FSimulator();
+        card.provision((byte) (SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE | SimulatorTestBase.INSTALL_FLAG_ENABLE_KEY_ROTATION), U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        card.install(card.snapshot().installParameters());
+        U2FAppletSnapshot image = card.snapshot();
+        Path inputFile = Files.createTempFile("handles", ".in");
+        Path outputFile = Files.createTempFile("handles", ".out");
+        try {
+            Files.write(inputFile, new byte[KeyHandleRewrapTool.INPUT_RECORD_LENGTH]);
+            List<Supplier<U2FClient>> cards = new ArrayList<>();
+            cards.add(() -> {
+                U2FSimulator worker = new U2FSimulator();
+                worker.restore(image);
+                return new U2FClient(worker.transport());
+            });
+            // The attestation certificate is not set, the card refuses to manage its wrapping keys
+            new KeyHandleRewrapTool(cards).run(inputFile, outputFile);
+        } catch (CardException e) {
+            assertThat(((U2FStatusException) e).getSW(), is(0x6982));
+            throw e;
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test
+    public void testUnknownStatusesAreReported() throws Exception {
+        // Answers every re-wrap record with a status the card never sends
+        APDUTransport corrupted = new APDUTransport() {
+            @Override
+            public boolean isExtendedLengthSupported() {
+                return false;
+            }
+
+            @Override
+            public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) {
+                int records = (command[4] & 0xff) / KeyHandleRewrapTool.INPUT_RECORD_LENGTH;
+                int length = records * KeyHandleRewrapTool.OUTPUT_RECORD_LENGTH;
+                for (int i = 0; i < records; i++) {
+                    response[responseOffset + i * KeyHandleRewrapTool.OUTPUT_RECORD_LENGTH] = 0x07;
+                }
+                response[responseOffset + length] = (byte) 0x90;
+                response[responseOffset + length + 1] = 0x00;
+                return length + 2;
+            }
+        };
+        Path inputFile = Files.createTempFile("handles", ".in");
+        Path outputFile = Files.createTempFile("handles", ".out");
+        try {
+            Files.write(inputFile, new byte[KeyHandleRewrapTool.INPUT_RECORD_LENGTH]);
+            List<Supplier<U2FClient>> cards = new ArrayList<>();
+            cards.add(() -> new U2FClient(corrupted));
+            new KeyHandleRewrapTool(cards).run(inputFile, outputFile);
+            throw new AssertionError("Unknown status was counted");
+        } catch (U2FStatusException e) {
+            assertThat(e.getSW(), is(U2FClient.SW_NO_ERROR));
+            assertThat(e.getMessage(), containsString("status 07"));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
+}
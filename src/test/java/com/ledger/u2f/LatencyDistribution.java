@@ -0,0 +1,33 @@
+package com.ledger.u2f;
+
+import java.util.Random;
+
+/**
+ * Distribution of an added latency, in nanoseconds.
+ */
+public interface LatencyDistribution {
+
+    long sample(Random random);
+
+    static LatencyDistribution fixed(long nanos) {
+        return random -> nanos;
+    }
+
+    static LatencyDistribution uniform(long minNanos, long maxNanos) {
+        if (maxNanos < minNanos) {
+            throw new IllegalArgumentException("Empty range");
+        }
+        return random -> minNanos + (long) (random.nextDouble() * (maxNanos - minNanos));
+    }
+
+    /**
+     * Log-normal latencies, the usual shape of chip response times with a long tail.
+     *
+     * @param medianNanos median latency
+     * @param sigma standard deviation of the logarithm, 0.5 is a moderate tail
+     */
+    static LatencyDistribution logNormal(long medianNanos, double sigma) {
+        double mu = Math.log(medianNanos);
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+}
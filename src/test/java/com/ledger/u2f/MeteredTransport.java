@@ -0,0 +1,45 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport decorator feeding every exchange into {@link U2FMetrics}, under the name of the card it talks to.
+ * The queue depth of the card counts callers waiting for or inside the delegate.
+ */
+public class MeteredTransport implements APDUTransport {
+    private final APDUTransport delegate;
+    private final U2FMetrics metrics;
+    private final AtomicInteger queueDepth;
+
+    public MeteredTransport(APDUTransport delegate, U2FMetrics metrics, String card) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.queueDepth = metrics.queueDepth(card);
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return delegate.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+        int ins = commandLength > 1 ? command[1] : 0;
+        // Extended length: a zero byte where a short APDU has Lc or Le, followed by a two byte length
+        boolean extendedLength = commandLength >= 7 && command[4] == 0;
+        int sw = -1;
+        queueDepth.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            int length = delegate.transmit(command, commandLength, response, responseOffset);
+            if (length >= 2) {
+                sw = ((response[responseOffset + length - 2] & 0xff) << 8) | (response[responseOffset + length - 1] & 0xff);
+            }
+            return length;
+        } finally {
+            metrics.recordApdu(ins, System.nanoTime() - start, sw, extendedLength);
+            queueDepth.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.ledger.u2f;
+
+import java.util.Random;
+
+/**
+ * Whether the user touches a simulated card before an operation needing presence, see
+ * {@link U2FSimulator#setPresencePolicy(PresencePolicy)}.
+ * <p>
+ * Policies may keep state and are used by the simulator's thread only.
+ */
+public interface PresencePolicy {
+
+    /**
+     * The user touches the card before every enroll, sign and wrapping key rotation or retirement.
+     */
+    PresencePolicy ALWAYS = () -> true;
+
+    /**
+     * The user never touches the card, enrolls, signs and wrapping key rotations fail with 6985.
+     */
+    PresencePolicy NEVER = () -> false;
+
+    /**
+     * @return true if the user touches the card for the next operation
+     */
+    boolean isPresent();
+
+    /**
+     * The user touches the card for the first of every <code>n</code> operations.
+     */
+    static PresencePolicy every(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        int[] operations = {0};
+        return () -> operations[0]++ % n == 0;
+    }
+
+    /**
+     * The user touches the card with a fixed probability, independently for each operation.
+     */
+    static PresencePolicy probability(double p, Random random) {
+        if (p < 0 || p > 1) {
+            throw new IllegalArgumentException("Not a probability");
+        }
+        return () -> random.nextDouble() < p;
+    }
+}
@@ -0,0 +1,50 @@
+package com.ledger.u2f;
+
+import java.util.Arrays;
+
+/**
+ * Counts of {@link CardPrimitive}s, not thread safe.
+ */
+public class PrimitiveCounts {
+    private final long[] counts = new long[CardPrimitive.values().length];
+
+    public void add(CardPrimitive primitive, long count) {
+        counts[primitive.ordinal()] += count;
+    }
+
+    public void add(PrimitiveCounts other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    public long get(CardPrimitive primitive) {
+        return counts[primitive.ordinal()];
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+    }
+
+    /**
+     * @return projected on-card time in microseconds
+     */
+    public double projectMicros(ChipCostTable table) {
+        double micros = 0;
+        for (CardPrimitive primitive : CardPrimitive.values()) {
+            micros += counts[primitive.ordinal()] * table.micros(primitive);
+        }
+        return micros;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (CardPrimitive primitive : CardPrimitive.values()) {
+            if (counts[primitive.ordinal()] != 0) {
+                builder.append(builder.length() == 0 ? "" : " ").append(primitive.name().toLowerCase()).append('=').append(counts[primitive.ordinal()]);
+            }
+        }
+        return builder.toString();
+    }
+}
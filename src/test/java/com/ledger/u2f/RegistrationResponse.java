@@ -0,0 +1,135 @@
+package com.ledger.u2f;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over a U2F_REGISTER response held in a buffer owned by someone else.
+ * <p>
+ * Layout: version (1 byte, 0x05), public key (65 bytes), key handle length (1 byte), key handle,
+ * attestation certificate (DER), signature (DER). Nothing is copied, the accessors return offsets or
+ * {@link ByteBuffer} views into the wrapped buffer.
+ */
+public class RegistrationResponse {
+    static final byte LEGACY_VERSION = (byte) 0x05;
+    static final int PUBLIC_KEY_OFFSET = 1;
+    static final int PUBLIC_KEY_LENGTH = 65;
+    static final int KEY_HANDLE_LENGTH_OFFSET = 66;
+    static final int KEY_HANDLE_OFFSET = 67;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private int keyHandleLength;
+    private int certificateOffset;
+    private int certificateLength;
+
+    /**
+     * Point this view at a response.
+     *
+     * @param buffer
+     * @param offset
+     * @param length response length, status word excluded
+     * @return false if the response is not a well formed registration response
+     */
+    public boolean wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        if (length < KEY_HANDLE_OFFSET || buffer[offset] != LEGACY_VERSION) {
+            return false;
+        }
+        keyHandleLength = buffer[offset + KEY_HANDLE_LENGTH_OFFSET] & 0xff;
+        certificateOffset = KEY_HANDLE_OFFSET + keyHandleLength;
+        certificateLength = derLength(buffer, offset + certificateOffset, length - certificateOffset);
+        return certificateLength > 0 && certificateOffset + certificateLength < length;
+    }
+
+    /**
+     * Total length of the DER element starting at <code>offset</code>, header included.
+     *
+     * @return the length or -1 if the element is truncated or not a definite length encoding
+     */
+    static int derLength(byte[] buffer, int offset, int available) {
+        if (available < 2) {
+            return -1;
+        }
+        int first = buffer[offset + 1] & 0xff;
+        int header = 2;
+        int contentLength;
+        if (first < 0x80) {
+            contentLength = first;
+        } else {
+            int lengthBytes = first & 0x7f;
+            if (lengthBytes == 0 || lengthBytes > 3 || available < 2 + lengthBytes) {
+                return -1;
+            }
+            contentLength = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                contentLength = (contentLength << 8) | (buffer[offset + 2 + i] & 0xff);
+            }
+            header += lengthBytes;
+        }
+        int total = header + contentLength;
+        return total <= available ? total : -1;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int publicKeyOffset() {
+        return offset + PUBLIC_KEY_OFFSET;
+    }
+
+    public int keyHandleOffset() {
+        return offset + KEY_HANDLE_OFFSET;
+    }
+
+    public int keyHandleLength() {
+        return keyHandleLength;
+    }
+
+    public int certificateOffset() {
+        return offset + certificateOffset;
+    }
+
+    public int certificateLength() {
+        return certificateLength;
+    }
+
+    public int signatureOffset() {
+        return offset + certificateOffset + certificateLength;
+    }
+
+    public int signatureLength() {
+        return length - certificateOffset - certificateLength;
+    }
+
+    public ByteBuffer publicKey() {
+        return view(publicKeyOffset(), PUBLIC_KEY_LENGTH);
+    }
+
+    public ByteBuffer keyHandle() {
+        return view(keyHandleOffset(), keyHandleLength);
+    }
+
+    public ByteBuffer attestationCertificate() {
+        return view(certificateOffset(), certificateLength);
+    }
+
+    public ByteBuffer signature() {
+        return view(signatureOffset(), signatureLength());
+    }
+
+    private ByteBuffer view(int from, int count) {
+        return ByteBuffer.wrap(buffer, from, count).slice().asReadOnlyBuffer();
+    }
+}
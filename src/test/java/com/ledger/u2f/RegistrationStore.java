@@ -0,0 +1,335 @@
+package com.ledger.u2f;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relying party registrations, keyed by the 64 byte key handle, in an open addressing table in a memory-mapped file.
+ * <p>
+ * Each slot holds a state byte, the last accepted counter, the key handle and the 65 byte public key, so the heap
+ * holds nothing per registration. The first eight bytes of the key handle, mixed, give the home slot and
+ * collisions are resolved by linear probing. Registrations are never removed, which keeps probe sequences stable.
+ * <p>
+ * Safe for concurrent use: every slot is examined under one of {@link #STRIPES} locks, so a counter is compared
+ * and advanced atomically and an inserted slot is published to other threads. Like {@link CardImageStore} the
+ * file is created sparse and mapped in segments of at most {@link #SEGMENT_SIZE} bytes.
+ */
+public class RegistrationStore implements Closeable {
+    static final int MAGIC = 0x55324652; // "U2FR"
+    static final short VERSION = 1;
+    static final int HEADER_LENGTH = 32;
+    static final long SEGMENT_SIZE = 1L << 30;
+    static final int STRIPES = 4096;
+
+    public static final int KEY_HANDLE_LENGTH = 64;
+    public static final int PUBLIC_KEY_LENGTH = RegistrationResponse.PUBLIC_KEY_LENGTH;
+
+    // state (1), padding (3), counter (4), key handle (64), public key (65), padding (3)
+    private static final int STATE_OFFSET = 0;
+    private static final int COUNTER_OFFSET = 4;
+    private static final int KEY_HANDLE_OFFSET = 8;
+    private static final int PUBLIC_KEY_OFFSET = KEY_HANDLE_OFFSET + KEY_HANDLE_LENGTH;
+    static final int SLOT_SIZE = 140;
+
+    private static final byte SLOT_PRESENT = 1;
+    private static final int SIZE_OFFSET = 16;
+    private static final double MAX_LOAD = 0.75;
+
+    public enum Result {
+        /**
+         * The counter was greater than the last one seen and was stored.
+         */
+        ACCEPTED,
+        /**
+         * The counter did not increase, the authenticator may have been cloned.
+         */
+        REPLAYED,
+        /**
+         * No registration has the key handle.
+         */
+        UNKNOWN,
+        /**
+         * Only returned by {@link RelyingPartyVerifier}, the signature did not verify and the counter was not looked at.
+         */
+        BAD_SIGNATURE
+    }
+
+    private final FileChannel channel;
+    private final long capacity;
+    private final long mask;
+    private final int slotsPerSegment;
+    private final MappedByteBuffer[] segments;
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicLong size;
+
+    private RegistrationStore(FileChannel channel, long capacity, long size) throws IOException {
+        this.channel = channel;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.size = new AtomicLong(size);
+        this.slotsPerSegment = (int) (SEGMENT_SIZE / SLOT_SIZE);
+        int segmentCount = (int) ((capacity + slotsPerSegment - 1) / slotsPerSegment);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long firstSlot = (long) i * slotsPerSegment;
+            long length = Math.min(slotsPerSegment, capacity - firstSlot) * SLOT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_LENGTH + firstSlot * SLOT_SIZE, length);
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Create a new store, replacing any existing file.
+     *
+     * @param registrations number of registrations the store must hold, the table is sized for a load of at most
+     * {@value #MAX_LOAD}
+     */
+    public static RegistrationStore create(Path file, long registrations) throws IOException {
+        if (registrations <= 0 || registrations > (1L << 40)) {
+            throw new IllegalArgumentException("Invalid number of registrations");
+        }
+        long capacity = Long.highestOneBit((long) Math.ceil(registrations / MAX_LOAD) - 1) << 1;
+        capacity = Math.max(capacity, 2);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.SPARSE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) SLOT_SIZE).putLong(capacity).putLong(0).clear();
+            channel.write(header, 0);
+            return new RegistrationStore(channel, capacity, 0);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing store.
+     */
+    public static RegistrationStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+                throw new IOException("Not a registration store: " + file);
+            }
+            short version = header.getShort();
+            if (version != VERSION || header.getShort() != SLOT_SIZE) {
+                throw new IOException("Unsupported registration store version " + version);
+            }
+            return new RegistrationStore(channel, header.getLong(), header.getLong());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of slots of the table
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of registrations, as of the last {@link #force()} if the store was not closed cleanly
+     */
+    public long size() {
+        return size.get();
+    }
+
+    private static long hash(byte[] keyHandle, int offset) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (keyHandle[offset + i] & 0xff);
+        }
+        // Key handles of this applet are ciphertext, mix anyway for handles of other authenticators
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot / slotsPerSegment)];
+    }
+
+    private int position(long slot) {
+        return (int) (slot % slotsPerSegment) * SLOT_SIZE;
+    }
+
+    private Object lock(long slot) {
+        return locks[(int) (slot & (STRIPES - 1))];
+    }
+
+    private static boolean matches(ByteBuffer segment, int position, byte[] keyHandle, int offset) {
+        int base = position + KEY_HANDLE_OFFSET;
+        for (int i = 0; i < KEY_HANDLE_LENGTH; i++) {
+            if (segment.get(base + i) != keyHandle[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkKeyHandle(byte[] keyHandle, int offset, int length) {
+        if (length != KEY_HANDLE_LENGTH || offset < 0 || offset + length > keyHandle.length) {
+            throw new IllegalArgumentException("Key handles are " + KEY_HANDLE_LENGTH + " bytes");
+        }
+    }
+
+    /**
+     * Add a registration with a counter of 0.
+     *
+     * @return false if the key handle was already registered, the existing registration is left unchanged
+     * @throws IllegalStateException if the store is full
+     */
+    public boolean register(byte[] keyHandle, int keyHandleOffset, int keyHandleLength, byte[] publicKey, int publicKeyOffset) {
+        checkKeyHandle(keyHandle, keyHandleOffset, keyHandleLength);
+        long slot = hash(keyHandle, keyHandleOffset) & mask;
+        for (long probe = 0; probe < capacity; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = segment(slot);
+            int position = position(slot);
+            synchronized (lock(slot)) {
+                if (segment.get(position + STATE_OFFSET) == SLOT_PRESENT) {
+                    if (matches(segment, position, keyHandle, keyHandleOffset)) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (size.get() >= capacity * MAX_LOAD) {
+                    throw new IllegalStateException("Registration store full");
+                }
+                ByteBuffer view = segment.duplicate();
+                view.position(position + COUNTER_OFFSET);
+                view.putInt(0);
+                view.put(keyHandle, keyHandleOffset, KEY_HANDLE_LENGTH);
+                view.put(publicKey, publicKeyOffset, PUBLIC_KEY_LENGTH);
+                segment.put(position + STATE_OFFSET, SLOT_PRESENT);
+                size.incrementAndGet();
+                return true;
+            }
+        }
+        throw new IllegalStateException("Registration store full");
+    }
+
+    /**
+     * Register the key handle and public key of a registration response.
+     *
+     * @see #register(byte[], int, int, byte[], int)
+     */
+    public boolean register(RegistrationResponse registration) {
+        return register(registration.buffer(), registration.keyHandleOffset(), registration.keyHandleLength(),
+                registration.buffer(), registration.publicKeyOffset());
+    }
+
+    /**
+     * @return the slot of a key handle, -1 if it is not registered. A registration never moves, the slot can be
+     * used after its lock was released.
+     */
+    private long find(byte[] keyHandle, int keyHandleOffset, int keyHandleLength) {
+        if (keyHandleLength != KEY_HANDLE_LENGTH) {
+            return -1;
+        }
+        checkKeyHandle(keyHandle, keyHandleOffset, keyHandleLength);
+        long slot = hash(keyHandle, keyHandleOffset) & mask;
+        for (long probe = 0; probe < capacity; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = segment(slot);
+            int position = position(slot);
+            synchronized (lock(slot)) {
+                if (segment.get(position + STATE_OFFSET) != SLOT_PRESENT) {
+                    return -1;
+                }
+                if (matches(segment, position, keyHandle, keyHandleOffset)) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(byte[] keyHandle, int keyHandleOffset, int keyHandleLength) {
+        return find(keyHandle, keyHandleOffset, keyHandleLength) >= 0;
+    }
+
+    /**
+     * Copy the public key registered with a key handle.
+     *
+     * @param publicKey receives the 65 byte uncompressed point
+     * @return false if the key handle is not registered
+     */
+    public boolean lookupPublicKey(byte[] keyHandle, int keyHandleOffset, int keyHandleLength, byte[] publicKey, int publicKeyOffset) {
+        long slot = find(keyHandle, keyHandleOffset, keyHandleLength);
+        if (slot < 0) {
+            return false;
+        }
+        ByteBuffer view = segment(slot).duplicate();
+        view.position(position(slot) + PUBLIC_KEY_OFFSET);
+        // The public key is written once, before the slot was published under the lock find() took
+        view.get(publicKey, publicKeyOffset, PUBLIC_KEY_LENGTH);
+        return true;
+    }
+
+    /**
+     * @return the last accepted counter, -1 if the key handle is not registered
+     */
+    public long counter(byte[] keyHandle, int keyHandleOffset, int keyHandleLength) {
+        long slot = find(keyHandle, keyHandleOffset, keyHandleLength);
+        if (slot < 0) {
+            return -1;
+        }
+        synchronized (lock(slot)) {
+            return segment(slot).getInt(position(slot) + COUNTER_OFFSET) & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Store the counter of an authentication if it is greater, as an unsigned 32 bit value, than the last one.
+     *
+     * @return {@link Result#ACCEPTED}, {@link Result#REPLAYED} or {@link Result#UNKNOWN}
+     */
+    public Result updateCounter(byte[] keyHandle, int keyHandleOffset, int keyHandleLength, int counter) {
+        long slot = find(keyHandle, keyHandleOffset, keyHandleLength);
+        if (slot < 0) {
+            return Result.UNKNOWN;
+        }
+        ByteBuffer segment = segment(slot);
+        int position = position(slot) + COUNTER_OFFSET;
+        synchronized (lock(slot)) {
+            if (Integer.compareUnsigned(counter, segment.getInt(position)) <= 0) {
+                return Result.REPLAYED;
+            }
+            segment.putInt(position, counter);
+            return Result.ACCEPTED;
+        }
+    }
+
+    /**
+     * Write all modified slots and the registration count to the file.
+     */
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        ByteBuffer count = ByteBuffer.allocate(8);
+        count.putLong(size.get()).flip();
+        channel.write(count, SIZE_OFFSET);
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
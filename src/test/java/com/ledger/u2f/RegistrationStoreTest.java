@@ -0,0 +1,165 @@
+package com.ledger.u2f;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RegistrationStoreTest {
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("registrations", ".db");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] publicKey(int seed) {
+        byte[] publicKey = new byte[RegistrationStore.PUBLIC_KEY_LENGTH];
+        new Random(seed).nextBytes(publicKey);
+        publicKey[0] = 0x04;
+        return publicKey;
+    }
+
+    private static byte[][] keyHandles(int count) {
+        Random random = new Random(count);
+        byte[][] keyHandles = new byte[count][RegistrationStore.KEY_HANDLE_LENGTH];
+        for (byte[] keyHandle : keyHandles) {
+            random.nextBytes(keyHandle);
+        }
+        return keyHandles;
+    }
+
+    @Test
+    public void testRegisterLookupAndReopen() throws IOException {
+        byte[][] keyHandles = keyHandles(1000);
+        byte[] found = new byte[RegistrationStore.PUBLIC_KEY_LENGTH];
+        try (RegistrationStore store = RegistrationStore.create(file, keyHandles.length)) {
+            for (int i = 0; i < keyHandles.length; i++) {
+                assertThat(store.register(keyHandles[i], 0, keyHandles[i].length, publicKey(i), 0), is(true));
+            }
+            assertThat(store.register(keyHandles[7], 0, keyHandles[7].length, publicKey(8), 0), is(false));
+            assertThat(store.size(), is(1000L));
+            assertThat(store.updateCounter(keyHandles[3], 0, keyHandles[3].length, 5), is(RegistrationStore.Result.ACCEPTED));
+        }
+        try (RegistrationStore store = RegistrationStore.open(file)) {
+            assertThat(store.size(), is(1000L));
+            for (int i = 0; i < keyHandles.length; i++) {
+                assertThat(store.lookupPublicKey(keyHandles[i], 0, keyHandles[i].length, found, 0), is(true));
+                assertThat(found, is(publicKey(i)));
+            }
+            assertThat(store.counter(keyHandles[3], 0, keyHandles[3].length), is(5L));
+            assertThat(store.counter(keyHandles[4], 0, keyHandles[4].length), is(0L));
+            byte[] unknown = keyHandles(1)[0];
+            assertThat(store.contains(unknown, 0, unknown.length), is(false));
+            assertThat(store.lookupPublicKey(unknown, 0, unknown.length, found, 0), is(false));
+            assertThat(store.counter(unknown, 0, unknown.length), is(-1L));
+            assertThat(store.updateCounter(unknown, 0, unknown.length, 1), is(RegistrationStore.Result.UNKNOWN));
+            assertThat(store.updateCounter(unknown, 0, 32, 1), is(RegistrationStore.Result.UNKNOWN));
+        }
+    }
+
+    @Test
+    public void testCounterMustIncrease() throws IOException {
+        byte[] keyHandle = keyHandles(1)[0];
+        try (RegistrationStore store = RegistrationStore.create(file, 1)) {
+            store.register(keyHandle, 0, keyHandle.length, publicKey(0), 0);
+            assertThat(store.updateCounter(keyHandle, 0, keyHandle.length, 0), is(RegistrationStore.Result.REPLAYED));
+            assertThat(store.updateCounter(keyHandle, 0, keyHandle.length, 2), is(RegistrationStore.Result.ACCEPTED));
+            assertThat(store.updateCounter(keyHandle, 0, keyHandle.length, 1), is(RegistrationStore.Result.REPLAYED));
+            assertThat(store.updateCounter(keyHandle, 0, keyHandle.length, 2), is(RegistrationStore.Result.REPLAYED));
+            // Counters are unsigned
+            assertThat(store.updateCounter(keyHandle, 0, keyHandle.length, 0x80000000), is(RegistrationStore.Result.ACCEPTED));
+            assertThat(store.counter(keyHandle, 0, keyHandle.length), is(0x80000000L));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFull() throws IOException {
+        byte[][] keyHandles = keyHandles(100);
+        try (RegistrationStore store = RegistrationStore.create(file, 10)) {
+            for (byte[] keyHandle : keyHandles) {
+                store.register(keyHandle, 0, keyHandle.length, publicKey(0), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentCounterUpdates() throws IOException, InterruptedException {
+        byte[][] keyHandles = keyHandles(64);
+        int threads = 4;
+        int counters = 2000;
+        AtomicInteger accepted = new AtomicInteger();
+        try (RegistrationStore store = RegistrationStore.create(file, keyHandles.length)) {
+            for (byte[] keyHandle : keyHandles) {
+                store.register(keyHandle, 0, keyHandle.length, publicKey(0), 0);
+            }
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int counter = 1; counter <= counters; counter++) {
+                        for (byte[] keyHandle : keyHandles) {
+                            if (store.updateCounter(keyHandle, 0, keyHandle.length, counter) == RegistrationStore.Result.ACCEPTED) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            // Every counter value is accepted exactly once per key handle, whichever thread saw it first
+            assertThat(accepted.get(), is(counters * keyHandles.length));
+            for (byte[] keyHandle : keyHandles) {
+                assertThat(store.counter(keyHandle, 0, keyHandle.length), is((long) counters));
+            }
+        }
+    }
+
+    @Test
+    public void testVerifyAuthenticationAgainstStore() throws IOException, CardException {
+        U2FSimulator card = new U2FSimulator();
+        card.provision(SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+        RelyingPartyVerifier verifier = new RelyingPartyVerifier();
+        try (RegistrationStore store = RegistrationStore.create(file, 16)) {
+            RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+            byte[] keyHandle = new byte[registration.keyHandleLength()];
+            registration.keyHandle().get(keyHandle);
+            assertThat(store.register(registration), is(true));
+
+            U2FAppletSnapshot beforeSign = card.snapshot();
+            AuthenticationResponse authentication = client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+            assertThat(verifier.verifyAuthentication(store, authentication, U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length),
+                    is(RegistrationStore.Result.ACCEPTED));
+            assertThat(verifier.verifyAuthentication(store, authentication, U2FTest.application, U2FTest.application, keyHandle, 0, keyHandle.length),
+                    is(RegistrationStore.Result.BAD_SIGNATURE));
+
+            // A clone of the card as it was before the first signature repeats its counter
+            card.restore(beforeSign);
+            authentication = client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+            assertThat(verifier.verifyAuthentication(store, authentication, U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length),
+                    is(RegistrationStore.Result.REPLAYED));
+
+            byte[] other = keyHandle.clone();
+            other[0] ^= 0x01;
+            assertThat(verifier.verifyAuthentication(store, authentication, U2FTest.challenge, U2FTest.application, other, 0, other.length),
+                    is(RegistrationStore.Result.UNKNOWN));
+        }
+    }
+}
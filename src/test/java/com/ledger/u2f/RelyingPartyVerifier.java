@@ -0,0 +1,316 @@
+package com.ledger.u2f;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Relying party side verification of the applet responses.
+ * <p>
+ * Attestation certificates are parsed once and cached by their encoding, JCA engines are kept per thread, and
+ * batches are verified on a fork-join pool. Safe for concurrent use.
+ * <p>
+ * A fleet shares few attestation certificates, so cached entries are never evicted. Once the cache holds its
+ * maximum number of certificates, further ones are parsed on every use instead of being added.
+ */
+public class RelyingPartyVerifier {
+    static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+    private static final byte REGISTRATION_RESERVED = (byte) 0x00;
+    private static final int BATCH_THRESHOLD = 16;
+    static final int DEFAULT_MAX_CACHED_CERTIFICATES = 1024;
+
+    static final ECParameterSpec P256;
+
+    static {
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec("secp256r1"));
+            P256 = parameters.getParameterSpec(ECParameterSpec.class);
+        } catch (GeneralSecurityException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int maxCachedCertificates;
+    private final ConcurrentHashMap<ByteBuffer, PublicKey> certificates = new ConcurrentHashMap<>();
+    private final ThreadLocal<Signature> verifiers = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance(SIGNATURE_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final ThreadLocal<CertificateFactory> certificateFactories = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final ThreadLocal<byte[]> publicKeys = ThreadLocal.withInitial(() -> new byte[RegistrationStore.PUBLIC_KEY_LENGTH]);
+    private final ThreadLocal<KeyFactory> keyFactories = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("EC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public RelyingPartyVerifier() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public RelyingPartyVerifier(ForkJoinPool pool) {
+        this(pool, DEFAULT_MAX_CACHED_CERTIFICATES);
+    }
+
+    /**
+     * @param pool pool verifying batches
+     * @param maxCachedCertificates number of distinct attestation certificates kept parsed
+     */
+    public RelyingPartyVerifier(ForkJoinPool pool, int maxCachedCertificates) {
+        if (maxCachedCertificates < 0) {
+            throw new IllegalArgumentException("Negative cache size");
+        }
+        this.pool = pool;
+        this.maxCachedCertificates = maxCachedCertificates;
+    }
+
+    /**
+     * @return number of distinct attestation certificates parsed so far
+     */
+    public int cachedCertificates() {
+        return certificates.size();
+    }
+
+    /**
+     * Decode an uncompressed P-256 point.
+     *
+     * @param buffer
+     * @param offset start of the 65 byte point
+     * @return the public key
+     * @throws GeneralSecurityException if the encoding is not an uncompressed point
+     */
+    public PublicKey decodePublicKey(byte[] buffer, int offset) throws GeneralSecurityException {
+        if (buffer[offset] != (byte) 0x04) {
+            throw new GeneralSecurityException("Not an uncompressed point");
+        }
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(buffer, offset + 1, offset + 33));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(buffer, offset + 33, offset + 65));
+        return keyFactories.get().generatePublic(new ECPublicKeySpec(new ECPoint(x, y), P256));
+    }
+
+    /**
+     * Public key of the attestation certificate embedded in the response, parsed at most once per certificate.
+     */
+    PublicKey attestationKey(RegistrationResponse registration) throws GeneralSecurityException {
+        ByteBuffer view = ByteBuffer.wrap(registration.buffer(), registration.certificateOffset(), registration.certificateLength());
+        PublicKey key = certificates.get(view);
+        if (key != null) {
+            return key;
+        }
+        X509Certificate certificate = (X509Certificate) certificateFactories.get().generateCertificate(
+                new ByteArrayInputStream(registration.buffer(), registration.certificateOffset(), registration.certificateLength()));
+        key = certificate.getPublicKey();
+        // Racing threads may overshoot the bound by a few entries, which is harmless
+        if (certificates.size() >= maxCachedCertificates) {
+            return key;
+        }
+        byte[] encoding = certificate.getEncoded();
+        PublicKey previous = certificates.putIfAbsent(ByteBuffer.wrap(encoding), key);
+        return previous != null ? previous : key;
+    }
+
+    /**
+     * Verify the attestation signature of a registration response.
+     *
+     * @param registration
+     * @param challenge 32 bytes
+     * @param application 32 bytes
+     * @return true if the signature over 0x00 || application || challenge || key handle || public key is valid
+     */
+    public boolean verifyRegistration(RegistrationResponse registration, byte[] challenge, byte[] application) {
+        try {
+            Signature verifier = verifiers.get();
+            verifier.initVerify(attestationKey(registration));
+            verifier.update(REGISTRATION_RESERVED);
+            verifier.update(application, 0, 32);
+            verifier.update(challenge, 0, 32);
+            verifier.update(registration.buffer(), registration.keyHandleOffset(), registration.keyHandleLength());
+            verifier.update(registration.buffer(), registration.publicKeyOffset(), RegistrationResponse.PUBLIC_KEY_LENGTH);
+            return verifier.verify(registration.buffer(), registration.signatureOffset(), registration.signatureLength());
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Verify the signature of an authentication response.
+     *
+     * @param authentication
+     * @param challenge 32 bytes
+     * @param application 32 bytes
+     * @param userKey public key returned at registration
+     * @return true if the signature over application || flags || counter || challenge is valid
+     */
+    public boolean verifyAuthentication(AuthenticationResponse authentication, byte[] challenge, byte[] application, PublicKey userKey) {
+        try {
+            Signature verifier = verifiers.get();
+            verifier.initVerify(userKey);
+            verifier.update(application, 0, 32);
+            verifier.update(authentication.buffer(), authentication.offset(), AuthenticationResponse.SIGNATURE_OFFSET);
+            verifier.update(challenge, 0, 32);
+            return verifier.verify(authentication.buffer(), authentication.signatureOffset(), authentication.signatureLength());
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Verify an authentication against the registration of its key handle and track its counter.
+     *
+     * @param store registrations
+     * @param authentication
+     * @param challenge 32 bytes
+     * @param application 32 bytes
+     * @param keyHandle key handle sent with the authentication
+     * @return {@link RegistrationStore.Result#BAD_SIGNATURE} if the signature is invalid, otherwise the result of
+     * the counter update
+     */
+    public RegistrationStore.Result verifyAuthentication(RegistrationStore store, AuthenticationResponse authentication, byte[] challenge, byte[] application,
+                                                         byte[] keyHandle, int keyHandleOffset, int keyHandleLength) {
+        byte[] publicKey = publicKeys.get();
+        if (!store.lookupPublicKey(keyHandle, keyHandleOffset, keyHandleLength, publicKey, 0)) {
+            return RegistrationStore.Result.UNKNOWN;
+        }
+        PublicKey userKey;
+        try {
+            userKey = decodePublicKey(publicKey, 0);
+        } catch (GeneralSecurityException e) {
+            return RegistrationStore.Result.BAD_SIGNATURE;
+        }
+        if (!verifyAuthentication(authentication, challenge, application, userKey)) {
+            return RegistrationStore.Result.BAD_SIGNATURE;
+        }
+        return store.updateCounter(keyHandle, keyHandleOffset, keyHandleLength, (int) authentication.counter());
+    }
+
+    /**
+     * Verify a batch on the pool.
+     *
+     * @param checks
+     * @return verification results, in the order of <code>checks</code>
+     */
+    public boolean[] verifyAll(List<? extends Check> checks) {
+        boolean[] results = new boolean[checks.size()];
+        pool.invoke(new BatchAction(checks, results, 0, results.length));
+        return results;
+    }
+
+    private class BatchAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends Check> checks;
+        private final boolean[] results;
+        private final int from;
+        private final int to;
+
+        BatchAction(List<? extends Check> checks, boolean[] results, int from, int to) {
+            this.checks = checks;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = checks.get(i).verify(RelyingPartyVerifier.this);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new BatchAction(checks, results, from, middle), new BatchAction(checks, results, middle, to));
+        }
+    }
+
+    /**
+     * A self contained verification, owning copies of everything it needs so it can run on any thread.
+     */
+    public interface Check {
+        boolean verify(RelyingPartyVerifier verifier);
+    }
+
+    public static class RegistrationCheck implements Check {
+        private final RegistrationResponse registration = new RegistrationResponse();
+        private final byte[] challenge;
+        private final byte[] application;
+        private final boolean wellFormed;
+
+        /**
+         * @param response registration response, copied
+         * @param challenge
+         * @param application
+         */
+        public RegistrationCheck(RegistrationResponse response, byte[] challenge, byte[] application) {
+            byte[] copy = Arrays.copyOfRange(response.buffer(), response.offset(), response.offset() + response.length());
+            this.wellFormed = registration.wrap(copy, 0, copy.length);
+            this.challenge = challenge;
+            this.application = application;
+        }
+
+        public RegistrationResponse registration() {
+            return registration;
+        }
+
+        @Override
+        public boolean verify(RelyingPartyVerifier verifier) {
+            return wellFormed && verifier.verifyRegistration(registration, challenge, application);
+        }
+    }
+
+    public static class AuthenticationCheck implements Check {
+        private final AuthenticationResponse authentication = new AuthenticationResponse();
+        private final byte[] challenge;
+        private final byte[] application;
+        private final PublicKey userKey;
+        private final boolean wellFormed;
+
+        /**
+         * @param response authentication response, copied
+         * @param challenge
+         * @param application
+         * @param userKey
+         */
+        public AuthenticationCheck(AuthenticationResponse response, byte[] challenge, byte[] application, PublicKey userKey) {
+            byte[] copy = Arrays.copyOfRange(response.buffer(), response.offset(), response.offset() + response.length());
+            this.wellFormed = authentication.wrap(copy, 0, copy.length);
+            this.challenge = challenge;
+            this.application = application;
+            this.userKey = userKey;
+        }
+
+        @Override
+        public boolean verify(RelyingPartyVerifier verifier) {
+            return wellFormed && verifier.verifyAuthentication(authentication, challenge, application, userKey);
+        }
+    }
+}
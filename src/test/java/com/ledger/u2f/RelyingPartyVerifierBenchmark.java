@@ -0,0 +1,126 @@
+package com.ledger.u2f;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPrivateKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifications per second of {@link RelyingPartyVerifier}, serial and batched on the common pool.
+ * <p>
+ * Responses are produced with JCA in the exact applet layout and signed with the test attestation key, so the
+ * benchmark measures verification only. Usage: <code>gradle benchmark -Pbenchmark=RelyingPartyVerifierBenchmark
+ * [-Pargs=count]</code>.
+ */
+public class RelyingPartyVerifierBenchmark {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        SecureRandom random = new SecureRandom();
+
+        PrivateKey attestationKey = KeyFactory.getInstance("EC").generatePrivate(
+                new ECPrivateKeySpec(new BigInteger(1, U2FTest.attestatioPrivkey), RelyingPartyVerifier.P256));
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        KeyPair userKeyPair = generator.generateKeyPair();
+        byte[] userPoint = encodePoint((ECPublicKey) userKeyPair.getPublic());
+
+        Signature signer = Signature.getInstance(RelyingPartyVerifier.SIGNATURE_ALGORITHM);
+        List<RelyingPartyVerifier.Check> registrations = new ArrayList<>(count);
+        List<RelyingPartyVerifier.Check> authentications = new ArrayList<>(count);
+        byte[] keyHandle = new byte[64];
+        for (int i = 0; i < count; i++) {
+            byte[] challenge = new byte[32];
+            random.nextBytes(challenge);
+            random.nextBytes(keyHandle);
+
+            signer.initSign(attestationKey);
+            signer.update((byte) 0x00);
+            signer.update(U2FTest.application);
+            signer.update(challenge);
+            signer.update(keyHandle);
+            signer.update(userPoint);
+            byte[] signature = signer.sign();
+            byte[] response = new byte[67 + keyHandle.length + U2FTest.attestationCert.length + signature.length];
+            response[0] = RegistrationResponse.LEGACY_VERSION;
+            System.arraycopy(userPoint, 0, response, 1, 65);
+            response[66] = (byte) keyHandle.length;
+            System.arraycopy(keyHandle, 0, response, 67, keyHandle.length);
+            System.arraycopy(U2FTest.attestationCert, 0, response, 67 + keyHandle.length, U2FTest.attestationCert.length);
+            System.arraycopy(signature, 0, response, response.length - signature.length, signature.length);
+            RegistrationResponse registration = new RegistrationResponse();
+            registration.wrap(response, 0, response.length);
+            registrations.add(new RelyingPartyVerifier.RegistrationCheck(registration, challenge, U2FTest.application));
+
+            byte[] header = {0x01, (byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            signer.initSign(userKeyPair.getPrivate());
+            signer.update(U2FTest.application);
+            signer.update(header);
+            signer.update(challenge);
+            signature = signer.sign();
+            response = new byte[header.length + signature.length];
+            System.arraycopy(header, 0, response, 0, header.length);
+            System.arraycopy(signature, 0, response, header.length, signature.length);
+            AuthenticationResponse authentication = new AuthenticationResponse();
+            authentication.wrap(response, 0, response.length);
+            authentications.add(new RelyingPartyVerifier.AuthenticationCheck(authentication, challenge, U2FTest.application, userKeyPair.getPublic()));
+        }
+
+        RelyingPartyVerifier verifier = new RelyingPartyVerifier();
+        // Warm up the JIT and the certificate cache
+        verifier.verifyAll(registrations);
+        verifier.verifyAll(authentications);
+
+        report("registration, serial", count, serial(verifier, registrations));
+        report("registration, batch", count, batch(verifier, registrations));
+        report("authentication, serial", count, serial(verifier, authentications));
+        report("authentication, batch", count, batch(verifier, authentications));
+    }
+
+    private static long serial(RelyingPartyVerifier verifier, List<RelyingPartyVerifier.Check> checks) {
+        long start = System.nanoTime();
+        for (RelyingPartyVerifier.Check check : checks) {
+            if (!check.verify(verifier)) {
+                throw new IllegalStateException("Verification failed");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long batch(RelyingPartyVerifier verifier, List<RelyingPartyVerifier.Check> checks) {
+        long start = System.nanoTime();
+        for (boolean result : verifier.verifyAll(checks)) {
+            if (!result) {
+                throw new IllegalStateException("Verification failed");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int count, long nanos) {
+        System.out.printf("%-24s %10.0f verifications/s%n", name, count / (nanos / 1e9));
+    }
+
+    static byte[] encodePoint(ECPublicKey key) {
+        byte[] point = new byte[65];
+        point[0] = 0x04;
+        copyUnsigned(key.getW().getAffineX(), point, 1);
+        copyUnsigned(key.getW().getAffineY(), point, 33);
+        return point;
+    }
+
+    private static void copyUnsigned(BigInteger value, byte[] target, int offset) {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, target, offset + 32 - length, length);
+    }
+}
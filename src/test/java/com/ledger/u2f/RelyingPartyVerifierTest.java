@@ -0,0 +1,75 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RelyingPartyVerifierTest extends SimulatorTestBase {
+
+    private U2FClient prepareClient() {
+        prepareProvisionedApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        return new U2FClient(new SimulatorTransport(sim));
+    }
+
+    @Test
+    public void testVerifyRegistrationAndAuthentication() throws CardException, GeneralSecurityException {
+        U2FClient client = prepareClient();
+        RelyingPartyVerifier verifier = new RelyingPartyVerifier();
+
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        assertThat(verifier.verifyRegistration(registration, U2FTest.challenge, U2FTest.application), is(true));
+        assertThat(verifier.verifyRegistration(registration, U2FTest.application, U2FTest.application), is(false));
+        assertThat(verifier.cachedCertificates(), is(1));
+
+        PublicKey userKey = verifier.decodePublicKey(registration.buffer(), registration.publicKeyOffset());
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+
+        AuthenticationResponse authentication = client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+        assertThat(verifier.verifyAuthentication(authentication, U2FTest.challenge, U2FTest.application, userKey), is(true));
+        assertThat(verifier.verifyAuthentication(authentication, U2FTest.application, U2FTest.application, userKey), is(false));
+    }
+
+    @Test
+    public void testVerifyAll() throws CardException {
+        U2FClient client = prepareClient();
+        RelyingPartyVerifier verifier = new RelyingPartyVerifier();
+
+        List<RelyingPartyVerifier.Check> checks = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] challenge = U2FTest.challenge.clone();
+            challenge[0] = (byte) i;
+            RegistrationResponse registration = client.register(challenge, U2FTest.application);
+            // Every fifth check is against the wrong challenge
+            if (i % 5 == 0) {
+                challenge[1] ^= 0x01;
+            }
+            checks.add(new RelyingPartyVerifier.RegistrationCheck(registration, challenge, U2FTest.application));
+        }
+
+        boolean[] results = verifier.verifyAll(checks);
+        for (int i = 0; i < results.length; i++) {
+            assertThat(results[i], is(i % 5 != 0));
+        }
+        assertThat(verifier.cachedCertificates(), is(1));
+    }
+
+    @Test
+    public void testCertificateCacheIsBounded() throws CardException {
+        U2FClient client = prepareClient();
+        RelyingPartyVerifier verifier = new RelyingPartyVerifier(ForkJoinPool.commonPool(), 0);
+
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        assertThat(verifier.verifyRegistration(registration, U2FTest.challenge, U2FTest.application), is(true));
+        assertThat(verifier.verifyRegistration(registration, U2FTest.challenge, U2FTest.application), is(true));
+        assertThat(verifier.cachedCertificates(), is(0));
+    }
+}
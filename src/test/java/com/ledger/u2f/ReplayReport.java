@@ -0,0 +1,119 @@
+package com.ledger.u2f;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of an {@link ApduTraceReplayer} run: divergences from the recorded responses and, per instruction, the
+ * recorded and replayed latencies.
+ */
+public class ReplayReport {
+    /**
+     * Number of divergences kept in detail, the others are only counted.
+     */
+    static final int MAX_DIVERGENCES = 100;
+
+    public static class Divergence {
+        public final long index;
+        public final int ins;
+        public final int recordedSW;
+        public final int replayedSW;
+
+        Divergence(long index, int ins, int recordedSW, int replayedSW) {
+            this.index = index;
+            this.ins = ins;
+            this.recordedSW = recordedSW;
+            this.replayedSW = replayedSW;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d INS %02X: recorded %04X, replayed %04X", index, ins, recordedSW & 0xffff, replayedSW & 0xffff);
+        }
+    }
+
+    private final Map<Integer, LatencyHistogram> recorded = new TreeMap<>();
+    private final Map<Integer, LatencyHistogram> replayed = new TreeMap<>();
+    private final List<Divergence> divergences = new ArrayList<>();
+    private long exchanges;
+    private long divergenceCount;
+    private long elapsed;
+    private boolean truncated;
+
+    void exchange(int ins, long recordedNanos, long replayedNanos) {
+        exchanges++;
+        recorded.computeIfAbsent(ins, i -> new LatencyHistogram()).record(recordedNanos);
+        replayed.computeIfAbsent(ins, i -> new LatencyHistogram()).record(replayedNanos);
+    }
+
+    void divergence(long index, int ins, int recordedSW, int replayedSW) {
+        divergenceCount++;
+        if (divergences.size() < MAX_DIVERGENCES) {
+            divergences.add(new Divergence(index, ins, recordedSW, replayedSW));
+        }
+    }
+
+    void finish(long elapsed, boolean truncated) {
+        this.elapsed = elapsed;
+        this.truncated = truncated;
+    }
+
+    public long exchanges() {
+        return exchanges;
+    }
+
+    public long divergenceCount() {
+        return divergenceCount;
+    }
+
+    /**
+     * @return the first {@link #MAX_DIVERGENCES} divergences
+     */
+    public List<Divergence> divergences() {
+        return Collections.unmodifiableList(divergences);
+    }
+
+    /**
+     * @return true if the trace ended in the middle of a record
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long elapsedNanos() {
+        return elapsed;
+    }
+
+    public double exchangesPerSecond() {
+        return elapsed == 0 ? 0 : exchanges / (elapsed / 1e9);
+    }
+
+    /**
+     * @return latencies of the recorded exchanges for an instruction, or null if it does not occur
+     */
+    public LatencyHistogram recorded(int ins) {
+        return recorded.get(ins);
+    }
+
+    public LatencyHistogram replayed(int ins) {
+        return replayed.get(ins);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%d exchanges in %.3fs (%.0f/s), %d divergences%s%n", exchanges, elapsed / 1e9,
+                exchangesPerSecond(), divergenceCount, truncated ? ", trace truncated" : ""));
+        for (Map.Entry<Integer, LatencyHistogram> entry : replayed.entrySet()) {
+            builder.append(String.format("INS %02X recorded %s%n", entry.getKey(), recorded.get(entry.getKey())));
+            builder.append(String.format("INS %02X replayed %s%n", entry.getKey(), entry.getValue()));
+        }
+        for (Divergence divergence : divergences) {
+            builder.append(divergence).append(String.format("%n"));
+        }
+        return builder.toString();
+    }
+}
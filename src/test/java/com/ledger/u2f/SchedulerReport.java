@@ -0,0 +1,98 @@
+package com.ledger.u2f;
+
+import com.ledger.u2f.AuthenticatorScheduler.Lane;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency and throughput of the lanes of an {@link AuthenticatorScheduler}.
+ */
+public class SchedulerReport {
+
+    public static class LaneReport {
+        private final long completed;
+        private final long dropped;
+        private final int queued;
+        private final long elapsed;
+        private final double meanLatency;
+        private final long p50;
+        private final long p99;
+        private final long maxLatency;
+
+        LaneReport(long completed, long dropped, int queued, LatencyHistogram latency, long elapsed) {
+            this.completed = completed;
+            this.dropped = dropped;
+            this.queued = queued;
+            this.elapsed = elapsed;
+            this.meanLatency = latency.mean();
+            this.p50 = latency.percentile(50);
+            this.p99 = latency.percentile(99);
+            this.maxLatency = latency.max();
+        }
+
+        public long completed() {
+            return completed;
+        }
+
+        /**
+         * @return requests dropped for their deadline
+         */
+        public long dropped() {
+            return dropped;
+        }
+
+        public int queued() {
+            return queued;
+        }
+
+        public double throughput() {
+            return elapsed == 0 ? 0 : completed / (elapsed / 1e9);
+        }
+
+        /**
+         * @return mean time from submission to completion in nanoseconds
+         */
+        public double meanLatency() {
+            return meanLatency;
+        }
+
+        public long latencyPercentile50() {
+            return p50;
+        }
+
+        public long latencyPercentile99() {
+            return p99;
+        }
+
+        public long maxLatency() {
+            return maxLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d completed (%.1f/s), %d dropped, %d queued, latency mean %.0fus p50 %dus p99 %dus max %dus",
+                    completed, throughput(), dropped, queued, meanLatency / 1e3, p50 / 1000, p99 / 1000, maxLatency / 1000);
+        }
+    }
+
+    private final Map<Lane, LaneReport> lanes;
+
+    SchedulerReport(EnumMap<Lane, LaneReport> lanes) {
+        this.lanes = Collections.unmodifiableMap(lanes);
+    }
+
+    public LaneReport lane(Lane lane) {
+        return lanes.get(lane);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Lane, LaneReport> entry : lanes.entrySet()) {
+            builder.append(String.format("%-10s %s%n", entry.getKey(), entry.getValue()));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.ledger.u2f;
+
+import javacard.framework.APDU;
+import javacard.framework.ISOException;
+
+/**
+ * {@link U2FApplet} as installed by {@link U2FSimulator}. Behaves exactly like the applet but hands the installed
+ * instance over to the harness, so its state can be snapshotted and restored.
+ * <p>
+ * With <code>-Du2f.jfr=true</code> on a JVM providing <code>jdk.jfr</code> (JDK 11, 8u262 and later), every
+ * dispatch emits an <code>ApduEvent</code> and every wrap or unwrap a <code>KeyHandleEvent</code> while a recording
+ * enables them, so host profiles can be attributed to U2F operations. Otherwise dispatch goes straight to the
+ * applet and no JFR class is loaded.
+ */
+public class SimulatedU2FApplet extends U2FApplet {
+    static final String JFR_PROPERTY = "u2f.jfr";
+
+    /**
+     * Instrumentation around the dispatch and the FIDO implementation of the applet.
+     */
+    interface Dispatcher {
+        FIDOAPI wrap(FIDOAPI fidoImpl);
+
+        void process(SimulatedU2FApplet applet, APDU apdu) throws ISOException;
+    }
+
+    private static final Dispatcher jfr = loadJfr();
+    private static final ThreadLocal<U2FApplet> installed = new ThreadLocal<>();
+
+    public SimulatedU2FApplet(byte[] parameters, short parametersOffset, byte parametersLength) {
+        super(parameters, parametersOffset, parametersLength);
+        if (jfr != null) {
+            U2FAppletAccess.setFidoImpl(this, jfr.wrap(U2FAppletAccess.fidoImpl(this)));
+        }
+    }
+
+    private static Dispatcher loadJfr() {
+        if (!Boolean.getBoolean(JFR_PROPERTY)) {
+            return null;
+        }
+        try {
+            // By name: the JFR sources are left out of builds on a JDK without jdk.jfr
+            return (Dispatcher) Class.forName("com.ledger.u2f.JfrDispatcher").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("JFR events disabled, jdk.jfr is not available: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if dispatches and key handle operations emit JFR events
+     */
+    static boolean isJfrEnabled() {
+        return jfr != null;
+    }
+
+    /* @override */
+    public static void install(byte bArray[], short bOffset, byte bLength) throws ISOException {
+        short offset = bOffset;
+        offset += (short) (bArray[offset] + 1); // instance
+        offset += (short) (bArray[offset] + 1); // privileges
+        SimulatedU2FApplet applet = new SimulatedU2FApplet(bArray, (short) (offset + 1), bArray[offset]);
+        applet.register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+        installed.set(applet);
+    }
+
+    /**
+     * @return the applet installed last on the calling thread, cleared on return
+     */
+    static U2FApplet takeInstalled() {
+        U2FApplet applet = installed.get();
+        installed.remove();
+        return applet;
+    }
+
+    @Override
+    public void process(APDU apdu) throws ISOException {
+        if (jfr == null) {
+            super.process(apdu);
+        } else {
+            jfr.process(this, apdu);
+        }
+    }
+
+    /**
+     * Process a command with the applet itself, for the dispatcher.
+     */
+    void dispatch(APDU apdu) throws ISOException {
+        super.process(apdu);
+    }
+}
@@ -3,23 +3,22 @@ package com.ledger.u2f;
 import apdu4j.ISO7816;
 import com.licel.jcardsim.io.JavaxSmartCardInterface;
 import javacard.framework.AID;
-import org.junit.After;
-import org.junit.AfterClass;
 import org.junit.Before;
-import org.junit.BeforeClass;
 
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
 public class SimulatorTestBase {
-    static JavaxSmartCardInterface sim;
-    static final byte[] AIDArray = {(byte) 0xa0, (byte) 0x00, (byte) 0x00, (byte) 0x06, (byte) 0x17, (byte) 0x00, (byte) 0x4f, (byte) 0x97, (byte) 0xa2, (byte) 0xe9, (byte) 0x49, (byte) 0x01};
-    static final AID aid = new AID(AIDArray, (short) 0, (byte) AIDArray.length);
+    U2FSimulator card;
+    JavaxSmartCardInterface sim;
+    static final byte[] AIDArray = U2FSimulator.AID_BYTES;
+    static final AID aid = U2FSimulator.APPLET_AID;
 
     static final byte FIDO_CLA = (byte) 0x00;
     static final byte FIDO_INS_ENROLL = (byte) 0x01;
@@ -28,36 +27,40 @@ public class SimulatorTestBase {
     static final byte PROPRIETARY_CLA = (byte) 0xF0;
     static final byte ISO_INS_GET_DATA = (byte) 0xC0;
     static final byte FIDO_ADM_SET_ATTESTATION_CERT = (byte) 0x01;
+    static final byte FIDO_ADM_ROTATE_WRAPPING_KEY = (byte) 0x40;
+    static final byte FIDO_ADM_REWRAP = (byte) 0x41;
     static final byte P1_SIGN_OPERATION = (byte) 0x03;
     static final byte P1_SIGN_CHECK_ONLY = (byte) 0x07;
+    static final byte P1_ROTATE = (byte) 0x00;
+    static final byte P1_RETIRE_PREVIOUS = (byte) 0x01;
     static final int FIDO_SW_TEST_OF_PRESENCE_REQUIRED = 0x6985;
     static final int FIDO_SW_INVALID_KEY_HANDLE = ISO7816.SW_WRONG_DATA;
     static final byte INSTALL_FLAG_ENABLE_USER_PRESENCE = (byte) 0;
     static final byte INSTALL_FLAG_DISABLE_USER_PRESENCE = (byte) 0x01;
+    static final byte INSTALL_FLAG_ENABLE_KEY_ROTATION = (byte) 0x02;
 
 
-    @BeforeClass
-    public static void setUpClass() {
-        sim = new JavaxSmartCardInterface();
-    }
+    // Snapshots of freshly installed applets, by install data, shared by all test threads
+    private static final ConcurrentHashMap<ByteBuffer, U2FAppletSnapshot> installed = new ConcurrentHashMap<>();
+    // Snapshots of applets with their attestation certificate set, by install data and certificate
+    private static final ConcurrentHashMap<ByteBuffer, U2FAppletSnapshot> provisioned = new ConcurrentHashMap<>();
 
     @Before
     public void setUp() {
+        card = U2FSimulator.forCurrentThread();
+        // The simulator outlives the test, do not inherit the policy of a previous one
+        card.setPresencePolicy(null);
+        sim = card.simulator();
     }
 
     public void prepareApplet(byte[] installData) {
-        // Setup the GlobalPlatform install data format.
-        byte[] fullData = new byte[2 + AIDArray.length + 1 + installData.length + 1];
-        int offset = 0;
-        fullData[offset++] = (byte) AIDArray.length;
-        System.arraycopy(AIDArray, 0, fullData, offset, AIDArray.length);
-        offset += AIDArray.length;
-        fullData[offset++] = 0;
-        fullData[offset++] = (byte) installData.length;
-        System.arraycopy(installData, 0, fullData, offset, installData.length);
-
-        sim.installApplet(aid, U2FApplet.class, fullData, (short) 0, (byte) fullData.length);
-        sim.selectApplet(aid);
+        U2FAppletSnapshot snapshot = installed.get(ByteBuffer.wrap(installData));
+        if (snapshot != null) {
+            card.restore(snapshot);
+            return;
+        }
+        card.install(installData);
+        installed.putIfAbsent(ByteBuffer.wrap(installData.clone()), card.snapshot());
     }
 
     public void prepareApplet(byte flags, int attestationCertLength, byte[] attestationPrivKey) {
@@ -70,12 +73,28 @@ public class SimulatorTestBase {
         prepareApplet(installData);
     }
 
+    /**
+     * Bring the applet to its state after install and upload of the attestation certificate.
+     */
+    public void prepareProvisionedApplet(byte flags, byte[] attestationPrivKey, byte[] attestationCert) {
+        ByteBuffer key = ByteBuffer.allocate(1 + attestationPrivKey.length + attestationCert.length);
+        key.put(flags).put(attestationPrivKey).put(attestationCert).flip();
+        U2FAppletSnapshot snapshot = provisioned.get(key);
+        if (snapshot != null) {
+            card.restore(snapshot);
+            return;
+        }
+        card.provision(flags, attestationPrivKey, attestationCert);
+        provisioned.putIfAbsent(key, card.snapshot());
+    }
+
     public byte[] sendGetData(int ne) {
-        List<byte[]> responses = new LinkedList<>();
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
         CommandAPDU cmd = new CommandAPDU(FIDO_CLA, ISO_INS_GET_DATA, 0, 0, ne);
         do {
             ResponseAPDU getDataAPDU = sim.transmitCommand(cmd);
-            responses.add(getDataAPDU.getData());
+            byte[] data = getDataAPDU.getData();
+            responses.write(data, 0, data.length);
             int nr = getDataAPDU.getNr();
 
             assertThat(nr, lessThanOrEqualTo(ne));
@@ -85,7 +104,7 @@ public class SimulatorTestBase {
             }
 
             if (ne == 256) {
-                assertThat(sw, allOf(greaterThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00), lessThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00 + 256)));
+                assertThat(sw, allOf(greaterThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00), lessThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00 + 255)));
             } else {
                 assertThat(sw, is(ISO7816.SW_NO_ERROR));
                 break;
@@ -97,24 +116,10 @@ public class SimulatorTestBase {
 
         } while (true);
 
-        return responses.stream().reduce((a, b) -> {
-            byte[] result = new byte[a.length + b.length];
-            System.arraycopy(a, 0, result, 0, a.length);
-            System.arraycopy(b, 0, result, a.length, b.length);
-            return result;
-        }).get();
+        return responses.toByteArray();
     }
 
     public byte[] sendGetData() {
         return sendGetData(256);
     }
-
-    @After
-    public void tearDown() {
-        sim.resetRuntime();
-    }
-
-    @AfterClass
-    public static void tearDownClass() {
-    }
 }
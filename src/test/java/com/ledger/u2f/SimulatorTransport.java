@@ -0,0 +1,57 @@
+package com.ledger.u2f;
+
+import com.licel.jcardsim.base.Simulator;
+
+import javax.smartcardio.CardException;
+import java.util.Arrays;
+
+/**
+ * {@link APDUTransport} backed by a jcardsim {@link Simulator}.
+ * <p>
+ * jcardsim takes commands as arrays of their exact length, so one array per command length is kept and reused. That
+ * avoids allocating an array per command, not copying it: every command is still copied into its array, and every
+ * response from the array jcardsim returns into the caller's buffer.
+ * <p>
+ * Dispatching straight to {@link SimulatedU2FApplet#process} with a reused APDU buffer is deliberately not done.
+ * jcardsim 3.0.5 creates <code>APDU</code> objects only inside its runtime, which also tracks the selected applet,
+ * the transaction depth and the outgoing state around <code>process</code>; an APDU made by reflection would skip
+ * those and no longer test the applet as the card runs it. {@link SimulatorTransportBenchmark} reports what the
+ * runtime costs per command. Confined to the thread of the simulator, like the simulator itself.
+ */
+public class SimulatorTransport implements APDUTransport {
+    private final Simulator simulator;
+    // Reusable command arrays, indexed by length, grown up to the longest command sent
+    private byte[][] commands = new byte[0][];
+
+    public SimulatorTransport(Simulator simulator) {
+        this.simulator = simulator;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return true;
+    }
+
+    @Override
+    public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+        byte[] result = simulator.transmitCommand(commandArray(command, commandLength));
+        if (result.length > response.length - responseOffset) {
+            throw new CardException("Response of " + result.length + " bytes does not fit the response buffer");
+        }
+        System.arraycopy(result, 0, response, responseOffset, result.length);
+        return result.length;
+    }
+
+    private byte[] commandArray(byte[] command, int commandLength) {
+        if (commandLength >= commands.length) {
+            commands = Arrays.copyOf(commands, commandLength + 1);
+        }
+        byte[] array = commands[commandLength];
+        if (array == null) {
+            array = new byte[commandLength];
+            commands[commandLength] = array;
+        }
+        System.arraycopy(command, 0, array, 0, commandLength);
+        return array;
+    }
+}
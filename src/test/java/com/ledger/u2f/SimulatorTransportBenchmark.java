@@ -0,0 +1,76 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Time and heap allocation per check-only command sent to a simulated card, through {@link SimulatorTransport} and
+ * through the <code>CommandAPDU</code> API of jcardsim, to show what the transport saves and what the jcardsim
+ * runtime still allocates per command.
+ * <p>
+ * Allocation is read from the HotSpot thread allocation counter and reported as unavailable on other JVMs.
+ * Usage: <code>gradle benchmark -Pbenchmark=SimulatorTransportBenchmark [-Pargs=count]</code>.
+ */
+public class SimulatorTransportBenchmark {
+
+    private interface Command {
+        void run() throws CardException;
+    }
+
+    public static void main(String[] args) throws CardException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        U2FSimulator card = new U2FSimulator();
+        card.provision(SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+        byte[] keyHandle = new byte[64];
+        client.register(U2FTest.challenge, U2FTest.application).keyHandle().get(keyHandle);
+
+        byte[] signData = new byte[32 + 32 + 1 + keyHandle.length];
+        System.arraycopy(U2FTest.application, 0, signData, 32, 32);
+        signData[64] = (byte) keyHandle.length;
+        System.arraycopy(keyHandle, 0, signData, 65, keyHandle.length);
+        CommandAPDU checkOnly = new CommandAPDU(0x00, U2FClient.FIDO_INS_SIGN, U2FClient.P1_SIGN_CHECK_ONLY, 0, signData);
+
+        Command transport = () -> {
+            if (!client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length)) {
+                throw new IllegalStateException("Key handle rejected");
+            }
+        };
+        Command commandApdu = () -> {
+            if (card.simulator().transmitCommand(checkOnly).getSW() != U2FClient.SW_TEST_OF_PRESENCE_REQUIRED) {
+                throw new IllegalStateException("Key handle rejected");
+            }
+        };
+        // Warm up the JIT on both paths
+        measure(transport, count / 10);
+        measure(commandApdu, count / 10);
+        report("SimulatorTransport", count, measure(transport, count));
+        report("CommandAPDU", count, measure(commandApdu, count));
+    }
+
+    /**
+     * @return elapsed nanoseconds and allocated bytes, -1 when not available
+     */
+    private static long[] measure(Command command, int count) throws CardException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean hotspot = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = hotspot == null ? 0 : hotspot.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            command.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = hotspot == null ? -1 : hotspot.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new long[]{elapsed, allocated};
+    }
+
+    private static void report(String name, int count, long[] result) {
+        String allocation = result[1] < 0 ? "n/a" : String.format("%.0f", (double) result[1] / count);
+        System.out.printf("%-20s %10.0f commands/s %8s bytes allocated/command%n", name, count / (result[0] / 1e9), allocation);
+    }
+}
@@ -0,0 +1,224 @@
+package com.ledger.u2f;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Pure JCA implementation of {@link FIDOAPI} producing the same key handles as {@link FIDOStandalone}:
+ * the application parameter and the private scalar interleaved nibble by nibble and encrypted with AES-256-CBC
+ * under a zero IV. Given the wrapping key of a card, handles can be exchanged with it in both directions.
+ * <p>
+ * Like the card, it keeps the previous wrapping key after {@link #rotateWrappingKey()}, so key handles wrapped with
+ * it are still unwrapped, until they are re-wrapped and it is retired.
+ * <p>
+ * Thread safe. Cipher engines, the key pair generator and scratch memory are kept per thread, so nothing is shared
+ * between threads; a thread re-initializes its engines when it first sees a rotated key. Unwrapping allocates
+ * nothing. Key generation still allocates a <code>KeyPair</code> and the <code>BigInteger</code> coordinates and
+ * scalar of every key: JCA has no way to generate an EC key into caller owned memory, and computing the public point
+ * here instead would mean reimplementing P-256 outside the provider.
+ */
+public class SoftwareFIDO implements FIDOAPI {
+    private static final int KEY_HANDLE_LENGTH = 64;
+    private static final byte[] IV_ZERO_AES = new byte[16];
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Engines> engines = ThreadLocal.withInitial(this::newEngines);
+    private volatile WrappingKeys keys;
+
+    /**
+     * @param wrappingKey 32 byte AES key, the equivalent of the chip key of a card
+     */
+    public SoftwareFIDO(byte[] wrappingKey) {
+        this(wrappingKey, null);
+    }
+
+    /**
+     * @param wrappingKey 32 byte AES key, the equivalent of the chip key of a card
+     * @param previousWrappingKey 32 byte AES key the card was using before its last rotation, or null
+     */
+    public SoftwareFIDO(byte[] wrappingKey, byte[] previousWrappingKey) {
+        this.keys = new WrappingKeys(secretKey(wrappingKey), previousWrappingKey == null ? null : secretKey(previousWrappingKey));
+    }
+
+    private static SecretKeySpec secretKey(byte[] key) {
+        if (key.length != 32) {
+            throw new IllegalArgumentException("Wrapping key must be 32 bytes");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static final class WrappingKeys {
+        final SecretKeySpec current;
+        final SecretKeySpec previous;
+
+        WrappingKeys(SecretKeySpec current, SecretKeySpec previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    private static class Engines {
+        WrappingKeys keys;
+        Cipher cipherEncrypt;
+        Cipher cipherDecrypt;
+        Cipher cipherDecryptPrevious;
+        KeyPairGenerator generator;
+        final byte[] scratch = new byte[128];
+    }
+
+    private Engines newEngines() {
+        try {
+            Engines engines = new Engines();
+            engines.cipherEncrypt = Cipher.getInstance("AES/CBC/NoPadding");
+            engines.cipherDecrypt = Cipher.getInstance("AES/CBC/NoPadding");
+            engines.cipherDecryptPrevious = Cipher.getInstance("AES/CBC/NoPadding");
+            engines.generator = KeyPairGenerator.getInstance("EC");
+            engines.generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return engines;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the engines of the calling thread, initialized with the current keys
+     */
+    private Engines engines() {
+        Engines engines = this.engines.get();
+        WrappingKeys keys = this.keys;
+        if (engines.keys != keys) {
+            try {
+                engines.cipherEncrypt.init(Cipher.ENCRYPT_MODE, keys.current, new IvParameterSpec(IV_ZERO_AES));
+                engines.cipherDecrypt.init(Cipher.DECRYPT_MODE, keys.current, new IvParameterSpec(IV_ZERO_AES));
+                if (keys.previous != null) {
+                    engines.cipherDecryptPrevious.init(Cipher.DECRYPT_MODE, keys.previous, new IvParameterSpec(IV_ZERO_AES));
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            engines.keys = keys;
+        }
+        return engines;
+    }
+
+    @Override
+    public short generateKeyAndWrap(byte[] applicationParameter, short applicationParameterOffset, javacard.security.ECPrivateKey generatedPrivateKey, byte[] publicKey, short publicKeyOffset, byte[] keyHandle, short keyHandleOffset) {
+        Engines engines = engines();
+        byte[] scratch = engines.scratch;
+        KeyPair keyPair = engines.generator.generateKeyPair();
+        ECPublicKey pub = (ECPublicKey) keyPair.getPublic();
+        publicKey[publicKeyOffset] = (byte) 0x04;
+        copyUnsigned(pub.getW().getAffineX(), publicKey, publicKeyOffset + 1);
+        copyUnsigned(pub.getW().getAffineY(), publicKey, publicKeyOffset + 33);
+        copyUnsigned(((ECPrivateKey) keyPair.getPrivate()).getS(), scratch, 0);
+        FIDOStandalone.interleave(applicationParameter, applicationParameterOffset, scratch, (short) 0, keyHandle, keyHandleOffset, (short) 32);
+        Arrays.fill(scratch, 0, 32, (byte) 0x00);
+        try {
+            engines.cipherEncrypt.doFinal(keyHandle, keyHandleOffset, KEY_HANDLE_LENGTH, keyHandle, keyHandleOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return (short) KEY_HANDLE_LENGTH;
+    }
+
+    @Override
+    public boolean unwrap(byte[] keyHandle, short keyHandleOffset, short keyHandleLength, byte[] applicationParameter, short applicationParameterOffset, javacard.security.ECPrivateKey unwrappedPrivateKey) {
+        Engines engines = engines();
+        byte[] scratch = engines.scratch;
+        boolean previous = engines.keys.previous != null;
+        if (previous) {
+            System.arraycopy(keyHandle, keyHandleOffset, scratch, 64, KEY_HANDLE_LENGTH);
+        }
+        decrypt(engines.cipherDecrypt, keyHandle, keyHandleOffset, keyHandle, keyHandleOffset);
+        FIDOStandalone.deinterleave(keyHandle, keyHandleOffset, scratch, (short) 0, scratch, (short) 32, (short) 32);
+        boolean current = FIDOUtils.compareConstantTime(applicationParameter, applicationParameterOffset, scratch, (short) 0, (short) 32);
+        boolean old = false;
+        if (previous) {
+            // Tried even when the current key matched, as the card does
+            decrypt(engines.cipherDecryptPrevious, scratch, 64, keyHandle, keyHandleOffset);
+            FIDOStandalone.deinterleave(keyHandle, keyHandleOffset, scratch, (short) 64, scratch, (short) 96, (short) 32);
+            old = FIDOUtils.compareConstantTime(applicationParameter, applicationParameterOffset, scratch, (short) 64, (short) 32);
+        }
+        Arrays.fill(keyHandle, keyHandleOffset, keyHandleOffset + KEY_HANDLE_LENGTH, (byte) 0x00);
+        if ((current || old) && unwrappedPrivateKey != null) {
+            unwrappedPrivateKey.setS(scratch, current ? (short) 32 : (short) 96, (short) 32);
+        }
+        Arrays.fill(scratch, (byte) 0x00);
+        return current || old;
+    }
+
+    /**
+     * Replace the wrapping key with a new random one, keeping the current one as the previous key. Threads pick up
+     * the new keys at their next operation.
+     */
+    @Override
+    public synchronized boolean rotateWrappingKey() {
+        if (keys.previous != null) {
+            return false;
+        }
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        keys = new WrappingKeys(new SecretKeySpec(key, "AES"), keys.current);
+        Arrays.fill(key, (byte) 0x00);
+        return true;
+    }
+
+    @Override
+    public synchronized void retirePreviousWrappingKey() {
+        keys = new WrappingKeys(keys.current, null);
+    }
+
+    @Override
+    public byte rewrap(byte[] keyHandle, short keyHandleOffset, byte[] applicationParameter, short applicationParameterOffset) {
+        Engines engines = engines();
+        byte[] scratch = engines.scratch;
+        try {
+            System.arraycopy(keyHandle, keyHandleOffset, scratch, 64, KEY_HANDLE_LENGTH);
+            decrypt(engines.cipherDecrypt, keyHandle, keyHandleOffset, keyHandle, keyHandleOffset);
+            FIDOStandalone.deinterleave(keyHandle, keyHandleOffset, scratch, (short) 0, scratch, (short) 32, (short) 32);
+            if (FIDOUtils.compareConstantTime(applicationParameter, applicationParameterOffset, scratch, (short) 0, (short) 32)) {
+                System.arraycopy(scratch, 64, keyHandle, keyHandleOffset, KEY_HANDLE_LENGTH);
+                return REWRAP_CURRENT;
+            }
+            if (engines.keys.previous != null) {
+                decrypt(engines.cipherDecryptPrevious, scratch, 64, keyHandle, keyHandleOffset);
+                FIDOStandalone.deinterleave(keyHandle, keyHandleOffset, scratch, (short) 0, scratch, (short) 32, (short) 32);
+                if (FIDOUtils.compareConstantTime(applicationParameter, applicationParameterOffset, scratch, (short) 0, (short) 32)) {
+                    engines.cipherEncrypt.doFinal(keyHandle, keyHandleOffset, KEY_HANDLE_LENGTH, keyHandle, keyHandleOffset);
+                    return REWRAP_DONE;
+                }
+            }
+            Arrays.fill(keyHandle, keyHandleOffset, keyHandleOffset + KEY_HANDLE_LENGTH, (byte) 0x00);
+            return REWRAP_INVALID;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Arrays.fill(scratch, (byte) 0x00);
+        }
+    }
+
+    private static void decrypt(Cipher cipher, byte[] input, int inputOffset, byte[] output, int outputOffset) {
+        try {
+            cipher.doFinal(input, inputOffset, KEY_HANDLE_LENGTH, output, outputOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void copyUnsigned(BigInteger value, byte[] target, int offset) {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, 32);
+        Arrays.fill(target, offset, offset + 32 - length, (byte) 0x00);
+        System.arraycopy(bytes, bytes.length - length, target, offset + 32 - length, length);
+    }
+}
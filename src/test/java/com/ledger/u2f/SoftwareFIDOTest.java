@@ -0,0 +1,99 @@
+package com.ledger.u2f;
+
+import javacard.security.AESKey;
+import javacard.security.ECPrivateKey;
+import javacard.security.KeyBuilder;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.ECPrivateKeySpec;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SoftwareFIDOTest extends SimulatorTestBase {
+
+    private static byte[] chipKey(FIDOStandalone standalone) throws ReflectiveOperationException {
+        Field field = FIDOStandalone.class.getDeclaredField("chipKey");
+        field.setAccessible(true);
+        byte[] key = new byte[32];
+        ((AESKey) field.get(standalone)).getKey(key, (short) 0);
+        return key;
+    }
+
+    private static ECPrivateKey newPrivateKey() {
+        ECPrivateKey key = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, KeyBuilder.LENGTH_EC_FP_256, false);
+        Secp256r1.setCommonCurveParameters(key);
+        return key;
+    }
+
+    private static byte[] scalar(ECPrivateKey key) {
+        byte[] s = new byte[32];
+        key.getS(s, (short) 0);
+        return s;
+    }
+
+    @Test
+    public void testHandlesFromCardUnwrapInSoftware() throws ReflectiveOperationException {
+        FIDOStandalone card = new FIDOStandalone();
+        SoftwareFIDO software = new SoftwareFIDO(chipKey(card));
+
+        byte[] publicKey = new byte[65];
+        byte[] keyHandle = new byte[64];
+        card.generateKeyAndWrap(U2FTest.application, (short) 0, null, publicKey, (short) 0, keyHandle, (short) 0);
+
+        ECPrivateKey fromCard = newPrivateKey();
+        ECPrivateKey fromSoftware = newPrivateKey();
+        assertThat(card.unwrap(keyHandle.clone(), (short) 0, (short) 64, U2FTest.application, (short) 0, fromCard), is(true));
+        assertThat(software.unwrap(keyHandle.clone(), (short) 0, (short) 64, U2FTest.application, (short) 0, fromSoftware), is(true));
+        assertThat(scalar(fromSoftware), is(scalar(fromCard)));
+        assertThat(software.unwrap(keyHandle.clone(), (short) 0, (short) 64, U2FTest.challenge, (short) 0, null), is(false));
+    }
+
+    @Test
+    public void testHandlesFromSoftwareUnwrapOnCard() throws ReflectiveOperationException, GeneralSecurityException {
+        FIDOStandalone card = new FIDOStandalone();
+        SoftwareFIDO software = new SoftwareFIDO(chipKey(card));
+
+        byte[] publicKey = new byte[65];
+        byte[] keyHandle = new byte[64];
+        assertThat(software.generateKeyAndWrap(U2FTest.application, (short) 0, null, publicKey, (short) 0, keyHandle, (short) 0), is((short) 64));
+
+        ECPrivateKey unwrapped = newPrivateKey();
+        assertThat(card.unwrap(keyHandle.clone(), (short) 0, (short) 64, U2FTest.application, (short) 0, unwrapped), is(true));
+        assertThat(card.unwrap(keyHandle.clone(), (short) 0, (short) 64, U2FTest.challenge, (short) 0, null), is(false));
+
+        // The wrapped scalar must belong to the returned public key
+        PrivateKey privateKey = KeyFactory.getInstance("EC").generatePrivate(
+                new ECPrivateKeySpec(new BigInteger(1, scalar(unwrapped)), RelyingPartyVerifier.P256));
+        Signature signer = Signature.getInstance(RelyingPartyVerifier.SIGNATURE_ALGORITHM);
+        signer.initSign(privateKey);
+        signer.update(U2FTest.challenge);
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance(RelyingPartyVerifier.SIGNATURE_ALGORITHM);
+        verifier.initVerify(new RelyingPartyVerifier().decodePublicKey(publicKey, 0));
+        verifier.update(U2FTest.challenge);
+        assertThat(verifier.verify(signature), is(true));
+    }
+
+    @Test
+    public void testRotationWaitsForRetirement() throws ReflectiveOperationException {
+        FIDOStandalone card = new FIDOStandalone();
+        SoftwareFIDO software = new SoftwareFIDO(chipKey(card));
+        byte[] publicKey = new byte[65];
+        byte[] keyHandle = new byte[64];
+        card.generateKeyAndWrap(U2FTest.application, (short) 0, null, publicKey, (short) 0, keyHandle, (short) 0);
+
+        assertThat(software.rotateWrappingKey(), is(true));
+        // A second rotation would drop the key the handle is wrapped with
+        assertThat(software.rotateWrappingKey(), is(false));
+        assertThat(software.unwrap(keyHandle.clone(), (short) 0, (short) 64, U2FTest.application, (short) 0, null), is(true));
+        software.retirePreviousWrappingKey();
+        assertThat(software.rotateWrappingKey(), is(true));
+    }
+}
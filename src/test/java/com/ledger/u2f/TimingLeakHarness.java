@@ -0,0 +1,227 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * dudect style measurement of timing differences between classes of key handles, to check that unwrapping keeps
+ * no timing oracle on the application parameter.
+ * <p>
+ * Four input classes are interleaved at random: {@link InputClass#VALID} handles of the queried application,
+ * {@link InputClass#PREVIOUS_KEY} handles of it wrapped with the previous wrapping key,
+ * {@link InputClass#WRONG_APP} handles of an application differing from it in the middle byte only, the worst
+ * case for an early exit compare in either direction, and {@link InputClass#GARBAGE}. The card is measured in the
+ * rotation window, so that the handles wrapped with either key must look the same. Every worker thread runs its
+ * own simulator restored from the same snapshot, keeps running moments per class, with and without the slowest
+ * tail cropped, and the moments are merged before Welch's t-test is applied to each pair of classes.
+ * <p>
+ * {@link Target#UNWRAP} calls {@link FIDOStandalone#unwrap} without an output key, where every class must look the
+ * same. {@link Target#CHECK_ONLY} sends the check-only APDU, whose status word already tells valid handles apart,
+ * so only wrong application against garbage is gated there.
+ * Usage: <code>gradle benchmark -Pbenchmark=TimingLeakHarness [-Pargs="measurementsPerWorker workers"]</code>.
+ */
+public class TimingLeakHarness {
+    /**
+     * |t| above which two classes are considered distinguishable.
+     */
+    public static final double THRESHOLD = 4.5;
+    /**
+     * Quantile of the warm up timings above which measurements are cropped.
+     */
+    static final double CROP_QUANTILE = 0.9;
+
+    public enum InputClass {
+        VALID,
+        PREVIOUS_KEY,
+        WRONG_APP,
+        GARBAGE
+    }
+
+    public enum Target {
+        UNWRAP,
+        CHECK_ONLY
+    }
+
+    private static final int HANDLES_PER_CLASS = 8;
+    private static final int KEY_HANDLE_LENGTH = 64;
+    private static final int CHECK_ONLY_DATA_OFFSET = 5;
+    private static final int CHECK_ONLY_KEY_HANDLE_OFFSET = CHECK_ONLY_DATA_OFFSET + 32 + 32 + 1;
+
+    /**
+     * Running count, mean and sum of squared deviations (Welford), mergeable across threads (Chan et al.).
+     */
+    static final class Moments {
+        long n;
+        double mean;
+        double m2;
+
+        void add(double x) {
+            n++;
+            double delta = x - mean;
+            mean += delta / n;
+            m2 += delta * (x - mean);
+        }
+
+        void merge(Moments other) {
+            if (other.n == 0) {
+                return;
+            }
+            long total = n + other.n;
+            double delta = other.mean - mean;
+            mean += delta * other.n / total;
+            m2 += other.m2 + delta * delta * n * other.n / total;
+            n = total;
+        }
+
+        double variance() {
+            return n < 2 ? 0 : m2 / (n - 1);
+        }
+
+        static double welch(Moments a, Moments b) {
+            if (a.n < 2 || b.n < 2) {
+                return 0;
+            }
+            double error = Math.sqrt(a.variance() / a.n + b.variance() / b.n);
+            return error == 0 ? 0 : (a.mean - b.mean) / error;
+        }
+    }
+
+    private final U2FAppletSnapshot base;
+    private final byte[] application;
+    private final byte[][][] handles = new byte[InputClass.values().length][][];
+
+    /**
+     * Provision a card, register the handles of each class and rotate the wrapping key in between on a simulator of
+     * the calling thread.
+     */
+    public TimingLeakHarness() throws CardException {
+        U2FSimulator card = new U2FSimulator();
+        card.provision((byte) (SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE | SimulatorTestBase.INSTALL_FLAG_ENABLE_KEY_ROTATION), U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        application = U2FTest.application.clone();
+        byte[] nearMiss = application.clone();
+        nearMiss[16] ^= 0x01;
+        U2FClient client = new U2FClient(card.transport());
+        handles[InputClass.PREVIOUS_KEY.ordinal()] = register(client, application);
+        client.rotateWrappingKey();
+        handles[InputClass.VALID.ordinal()] = register(client, application);
+        handles[InputClass.WRONG_APP.ordinal()] = register(client, nearMiss);
+        base = card.snapshot();
+    }
+
+    private static byte[][] register(U2FClient client, byte[] application) throws CardException {
+        byte[][] result = new byte[HANDLES_PER_CLASS][KEY_HANDLE_LENGTH];
+        for (byte[] handle : result) {
+            client.register(U2FTest.challenge, application).keyHandle().get(handle);
+        }
+        return result;
+    }
+
+    /**
+     * @param measurementsPerWorker timed calls per worker after warm up
+     */
+    public TimingLeakReport measure(Target target, int workers, long measurementsPerWorker, long seed) throws InterruptedException {
+        int classes = InputClass.values().length;
+        Moments[] raw = new Moments[classes];
+        Moments[] cropped = new Moments[classes];
+        for (int i = 0; i < classes; i++) {
+            raw[i] = new Moments();
+            cropped[i] = new Moments();
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            Random random = new Random(seed + w);
+            threads[w] = new Thread(() -> {
+                try {
+                    Moments[][] local = run(target, measurementsPerWorker, random);
+                    synchronized (raw) {
+                        for (int i = 0; i < classes; i++) {
+                            raw[i].merge(local[0][i]);
+                            cropped[i].merge(local[1][i]);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "timing-" + w);
+            threads[w].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Timing worker failed", failure.get());
+        }
+        return new TimingLeakReport(target, raw, cropped);
+    }
+
+    private Moments[][] run(Target target, long measurements, Random random) {
+        U2FSimulator card = new U2FSimulator();
+        card.restore(base);
+        FIDOStandalone fido = U2FAppletAccess.standalone(card.applet());
+        byte[] keyHandle = new byte[KEY_HANDLE_LENGTH];
+        byte[] checkOnly = new byte[CHECK_ONLY_KEY_HANDLE_OFFSET + KEY_HANDLE_LENGTH + 1];
+        checkOnly[1] = U2FClient.FIDO_INS_SIGN;
+        checkOnly[2] = U2FClient.P1_SIGN_CHECK_ONLY;
+        checkOnly[4] = (byte) (32 + 32 + 1 + KEY_HANDLE_LENGTH);
+        System.arraycopy(application, 0, checkOnly, CHECK_ONLY_DATA_OFFSET + 32, 32);
+        checkOnly[CHECK_ONLY_KEY_HANDLE_OFFSET - 1] = KEY_HANDLE_LENGTH;
+
+        int classes = InputClass.values().length;
+        Moments[] raw = new Moments[classes];
+        Moments[] cropped = new Moments[classes];
+        for (int i = 0; i < classes; i++) {
+            raw[i] = new Moments();
+            cropped[i] = new Moments();
+        }
+        int warmUp = (int) Math.min(20000, Math.max(1000, measurements / 10));
+        long[] warmUpTimes = new long[warmUp];
+        long cutoff = Long.MAX_VALUE;
+        for (long m = -warmUp; m < measurements; m++) {
+            int inputClass = random.nextInt(classes);
+            byte[] input = target == Target.UNWRAP ? keyHandle : checkOnly;
+            int offset = target == Target.UNWRAP ? 0 : CHECK_ONLY_KEY_HANDLE_OFFSET;
+            if (inputClass == InputClass.GARBAGE.ordinal()) {
+                for (int i = 0; i < KEY_HANDLE_LENGTH; i++) {
+                    input[offset + i] = (byte) random.nextInt();
+                }
+            } else {
+                byte[][] pool = handles[inputClass];
+                System.arraycopy(pool[random.nextInt(pool.length)], 0, input, offset, KEY_HANDLE_LENGTH);
+            }
+
+            long start = System.nanoTime();
+            if (target == Target.UNWRAP) {
+                fido.unwrap(keyHandle, (short) 0, (short) KEY_HANDLE_LENGTH, application, (short) 0, null);
+            } else {
+                card.simulator().transmitCommand(checkOnly);
+            }
+            long time = System.nanoTime() - start;
+
+            if (m < 0) {
+                warmUpTimes[(int) (m + warmUp)] = time;
+                if (m == -1) {
+                    Arrays.sort(warmUpTimes);
+                    cutoff = warmUpTimes[(int) (CROP_QUANTILE * (warmUp - 1))];
+                }
+                continue;
+            }
+            raw[inputClass].add(time);
+            if (time <= cutoff) {
+                cropped[inputClass].add(time);
+            }
+        }
+        return new Moments[][]{raw, cropped};
+    }
+
+    public static void main(String[] args) throws Exception {
+        long measurements = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        TimingLeakHarness harness = new TimingLeakHarness();
+        for (Target target : Target.values()) {
+            System.out.print(harness.measure(target, workers, measurements, System.nanoTime()));
+        }
+    }
+}
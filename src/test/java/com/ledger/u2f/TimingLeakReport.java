@@ -0,0 +1,87 @@
+package com.ledger.u2f;
+
+import com.ledger.u2f.TimingLeakHarness.InputClass;
+import com.ledger.u2f.TimingLeakHarness.Moments;
+import com.ledger.u2f.TimingLeakHarness.Target;
+
+/**
+ * Welch's t statistics between the input classes of a {@link TimingLeakHarness} run, on all timings and with the
+ * slowest tail cropped.
+ */
+public class TimingLeakReport {
+    private final Target target;
+    private final Moments[] raw;
+    private final Moments[] cropped;
+
+    TimingLeakReport(Target target, Moments[] raw, Moments[] cropped) {
+        this.target = target;
+        this.raw = raw;
+        this.cropped = cropped;
+    }
+
+    public Target target() {
+        return target;
+    }
+
+    public long measurements(InputClass inputClass) {
+        return raw[inputClass.ordinal()].n;
+    }
+
+    /**
+     * @return mean time of a class in nanoseconds
+     */
+    public double mean(InputClass inputClass) {
+        return raw[inputClass.ordinal()].mean;
+    }
+
+    public double t(InputClass a, InputClass b) {
+        return Moments.welch(raw[a.ordinal()], raw[b.ordinal()]);
+    }
+
+    public double croppedT(InputClass a, InputClass b) {
+        return Moments.welch(cropped[a.ordinal()], cropped[b.ordinal()]);
+    }
+
+    /**
+     * Pairs gated for the target: every pair when unwrapping, wrong application against garbage only for
+     * check-only, where valid handles are told apart by the status word anyway.
+     */
+    public boolean isGated(InputClass a, InputClass b) {
+        if (target == Target.UNWRAP) {
+            return a != b;
+        }
+        return (a == InputClass.WRONG_APP && b == InputClass.GARBAGE) || (a == InputClass.GARBAGE && b == InputClass.WRONG_APP);
+    }
+
+    /**
+     * @return true if a gated pair of classes is distinguishable, on all timings or cropped ones
+     */
+    public boolean isLeaking() {
+        InputClass[] classes = InputClass.values();
+        for (int i = 0; i < classes.length; i++) {
+            for (int j = i + 1; j < classes.length; j++) {
+                if (isGated(classes[i], classes[j]) && (Math.abs(t(classes[i], classes[j])) > TimingLeakHarness.THRESHOLD
+                        || Math.abs(croppedT(classes[i], classes[j])) > TimingLeakHarness.THRESHOLD)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("%s%s%n", target, isLeaking() ? " LEAKING" : ""));
+        for (InputClass inputClass : InputClass.values()) {
+            builder.append(String.format("  %-12s %10d measurements, mean %.0fns%n", inputClass, measurements(inputClass), mean(inputClass)));
+        }
+        InputClass[] classes = InputClass.values();
+        for (int i = 0; i < classes.length; i++) {
+            for (int j = i + 1; j < classes.length; j++) {
+                builder.append(String.format("  %-12s vs %-12s t %8.2f cropped %8.2f%s%n", classes[i], classes[j],
+                        t(classes[i], classes[j]), croppedT(classes[i], classes[j]), isGated(classes[i], classes[j]) ? "" : " (not gated)"));
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.ledger.u2f;
+
+import com.ledger.u2f.TimingLeakHarness.InputClass;
+import com.ledger.u2f.TimingLeakHarness.Moments;
+import com.ledger.u2f.TimingLeakHarness.Target;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TimingLeakTest {
+
+    @Test
+    public void testMergedMomentsMatchSequential() {
+        Random random = new Random(1);
+        Moments all = new Moments();
+        Moments first = new Moments();
+        Moments second = new Moments();
+        for (int i = 0; i < 10000; i++) {
+            double x = 1000 + random.nextGaussian() * 50 + (i % 3 == 0 ? 200 : 0);
+            all.add(x);
+            (i < 3000 ? first : second).add(x);
+        }
+        first.merge(second);
+        assertThat(first.n, is(all.n));
+        assertThat(first.mean, is(closeTo(all.mean, 1e-9)));
+        assertThat(first.variance(), is(closeTo(all.variance(), 1e-6)));
+    }
+
+    @Test
+    public void testWelch() {
+        Random random = new Random(2);
+        Moments a = new Moments();
+        Moments b = new Moments();
+        Moments c = new Moments();
+        for (int i = 0; i < 100000; i++) {
+            a.add(1000 + random.nextGaussian() * 50);
+            b.add(1000 + random.nextGaussian() * 50);
+            c.add(1002 + random.nextGaussian() * 50);
+        }
+        assertThat(Math.abs(Moments.welch(a, b)), is(lessThan(TimingLeakHarness.THRESHOLD)));
+        assertThat(Math.abs(Moments.welch(a, c)), is(greaterThan(TimingLeakHarness.THRESHOLD)));
+        assertThat(Moments.welch(a, new Moments()), is(0.0));
+    }
+
+    /**
+     * Millions of measurements are needed to be meaningful, run with <code>-Du2f.timing=true</code> and optionally
+     * <code>-Du2f.timing.measurements=n</code> per worker.
+     */
+    @Test
+    public void testNoDistinguishablePath() throws CardException, InterruptedException {
+        Assume.assumeTrue(Boolean.getBoolean("u2f.timing"));
+        long measurements = Long.getLong("u2f.timing.measurements", 1000000);
+        int workers = Runtime.getRuntime().availableProcessors();
+        TimingLeakHarness harness = new TimingLeakHarness();
+        for (Target target : Target.values()) {
+            TimingLeakReport report = harness.measure(target, workers, measurements, 1);
+            for (InputClass inputClass : InputClass.values()) {
+                assertThat(report.measurements(inputClass), is(greaterThan(0L)));
+            }
+            assertThat(report.toString(), report.isLeaking(), is(false));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.ledger.u2f;
+
+import javacard.security.AESKey;
+import javacard.security.ECPrivateKey;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reflective access to the private state of {@link U2FApplet} and {@link FIDOStandalone}, so the harness can read
+ * and restore it without adding anything to the code that goes on the card.
+ */
+final class U2FAppletAccess {
+    private static final Field FLAGS = field(U2FApplet.class, "flags");
+    private static final Field COUNTER = field(U2FApplet.class, "counter");
+    private static final Field SCRATCH_PERSISTENT = field(U2FApplet.class, "scratchPersistent");
+    private static final Field SCRATCH = field(U2FApplet.class, "scratch");
+    private static final Field ATTESTATION_CERTIFICATE = field(U2FApplet.class, "attestationCertificate");
+    private static final Field ATTESTATION_CERTIFICATE_SET = field(U2FApplet.class, "attestationCertificateSet");
+    private static final Field ATTESTATION_PRIVATE_KEY = field(U2FApplet.class, "attestationPrivateKey");
+    private static final Field COUNTER_OVERFLOWED = field(U2FApplet.class, "counterOverflowed");
+    private static final Field ATTESTATION_SIGNATURE = field(U2FApplet.class, "attestationSignature");
+    private static final Field LOCAL_SIGNATURE = field(U2FApplet.class, "localSignature");
+    private static final Field LOCAL_PRIVATE_TRANSIENT = field(U2FApplet.class, "localPrivateTransient");
+    private static final Field FIDO_IMPL = field(U2FApplet.class, "fidoImpl");
+    private static final Field CHIP_KEY = field(FIDOStandalone.class, "chipKey");
+    private static final Field CIPHER_ENCRYPT = field(FIDOStandalone.class, "cipherEncrypt");
+    private static final Field CIPHER_DECRYPT = field(FIDOStandalone.class, "cipherDecrypt");
+    private static final Field PREVIOUS_CHIP_KEY = field(FIDOStandalone.class, "previousChipKey");
+    private static final Field PREVIOUS_CHIP_KEY_SET = field(FIDOStandalone.class, "previousChipKeySet");
+    private static final Field CIPHER_DECRYPT_PREVIOUS = field(FIDOStandalone.class, "cipherDecryptPrevious");
+
+    private U2FAppletAccess() {
+    }
+
+    private static Field field(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Object get(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(Field field, Object target, Object value) {
+        try {
+            field.set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte flags(U2FApplet applet) {
+        return (Byte) get(FLAGS, applet);
+    }
+
+    static void setFlags(U2FApplet applet, byte flags) {
+        set(FLAGS, applet, flags);
+    }
+
+    static byte[] counter(U2FApplet applet) {
+        return (byte[]) get(COUNTER, applet);
+    }
+
+    static byte[] scratchPersistent(U2FApplet applet) {
+        return (byte[]) get(SCRATCH_PERSISTENT, applet);
+    }
+
+    static byte[] scratch(U2FApplet applet) {
+        return (byte[]) get(SCRATCH, applet);
+    }
+
+    static byte[] attestationCertificate(U2FApplet applet) {
+        return (byte[]) get(ATTESTATION_CERTIFICATE, applet);
+    }
+
+    static boolean attestationCertificateSet(U2FApplet applet) {
+        return (Boolean) get(ATTESTATION_CERTIFICATE_SET, applet);
+    }
+
+    static void setAttestationCertificateSet(U2FApplet applet, boolean value) {
+        set(ATTESTATION_CERTIFICATE_SET, applet, value);
+    }
+
+    static boolean counterOverflowed(U2FApplet applet) {
+        return (Boolean) get(COUNTER_OVERFLOWED, applet);
+    }
+
+    static void setCounterOverflowed(U2FApplet applet, boolean value) {
+        set(COUNTER_OVERFLOWED, applet, value);
+    }
+
+    static ECPrivateKey attestationPrivateKey(U2FApplet applet) {
+        return (ECPrivateKey) get(ATTESTATION_PRIVATE_KEY, applet);
+    }
+
+    static Signature attestationSignature(U2FApplet applet) {
+        return (Signature) get(ATTESTATION_SIGNATURE, applet);
+    }
+
+    static void setAttestationSignature(U2FApplet applet, Signature signature) {
+        set(ATTESTATION_SIGNATURE, applet, signature);
+    }
+
+    static Signature localSignature(U2FApplet applet) {
+        return (Signature) get(LOCAL_SIGNATURE, applet);
+    }
+
+    static void setLocalSignature(U2FApplet applet, Signature signature) {
+        set(LOCAL_SIGNATURE, applet, signature);
+    }
+
+    static boolean localPrivateTransient(U2FApplet applet) {
+        return (Boolean) get(LOCAL_PRIVATE_TRANSIENT, applet);
+    }
+
+    static FIDOAPI fidoImpl(U2FApplet applet) {
+        return (FIDOAPI) get(FIDO_IMPL, applet);
+    }
+
+    static void setFidoImpl(U2FApplet applet, FIDOAPI fidoImpl) {
+        set(FIDO_IMPL, applet, fidoImpl);
+    }
+
+    /**
+     * @return the card implementation of the applet, behind any {@link ForwardingFIDOAPI} the harness installed
+     */
+    static FIDOStandalone standalone(U2FApplet applet) {
+        FIDOAPI fidoImpl = fidoImpl(applet);
+        while (fidoImpl instanceof ForwardingFIDOAPI) {
+            fidoImpl = ((ForwardingFIDOAPI) fidoImpl).delegate();
+        }
+        return (FIDOStandalone) fidoImpl;
+    }
+
+    static AESKey chipKey(FIDOStandalone standalone) {
+        return (AESKey) get(CHIP_KEY, standalone);
+    }
+
+    static Cipher cipherEncrypt(FIDOStandalone standalone) {
+        return (Cipher) get(CIPHER_ENCRYPT, standalone);
+    }
+
+    static void setCipherEncrypt(FIDOStandalone standalone, Cipher cipher) {
+        set(CIPHER_ENCRYPT, standalone, cipher);
+    }
+
+    static Cipher cipherDecrypt(FIDOStandalone standalone) {
+        return (Cipher) get(CIPHER_DECRYPT, standalone);
+    }
+
+    static void setCipherDecrypt(FIDOStandalone standalone, Cipher cipher) {
+        set(CIPHER_DECRYPT, standalone, cipher);
+    }
+
+    static AESKey previousChipKey(FIDOStandalone standalone) {
+        return (AESKey) get(PREVIOUS_CHIP_KEY, standalone);
+    }
+
+    static boolean previousChipKeySet(FIDOStandalone standalone) {
+        return (Boolean) get(PREVIOUS_CHIP_KEY_SET, standalone);
+    }
+
+    static void setPreviousChipKeySet(FIDOStandalone standalone, boolean value) {
+        set(PREVIOUS_CHIP_KEY_SET, standalone, value);
+    }
+
+    static Cipher cipherDecryptPrevious(FIDOStandalone standalone) {
+        return (Cipher) get(CIPHER_DECRYPT_PREVIOUS, standalone);
+    }
+
+    static void setCipherDecryptPrevious(FIDOStandalone standalone, Cipher cipher) {
+        set(CIPHER_DECRYPT_PREVIOUS, standalone, cipher);
+    }
+}
@@ -0,0 +1,186 @@
+package com.ledger.u2f;
+
+import javacard.security.AESKey;
+import javacard.security.ECPrivateKey;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable copy of the persistent state of an installed {@link U2FApplet}: install flags, counter, attestation
+ * key and certificate, and the current and previous wrapping keys of its {@link FIDOStandalone}.
+ * <p>
+ * Transient state (the GET DATA chaining state and user presence) is not part of a snapshot, restoring one leaves
+ * the card as after a reset.
+ * <p>
+ * Binary encoding, big endian: format version (1 byte), flags (1 byte), state bits (1 byte: certificate set,
+ * counter overflowed, previous wrapping key set), counter (4 bytes), attestation private key (32 bytes), wrapping key
+ * (32 bytes), previous wrapping key (32 bytes, zero when not set), certificate length (2 bytes), certificate.
+ */
+public final class U2FAppletSnapshot {
+    static final int INSTALL_PARAMETERS_LENGTH = 35;
+    static final byte FORMAT_VERSION = (byte) 2;
+    static final int ENCODING_OVERHEAD = 1 + 1 + 1 + 4 + 32 + 32 + 32 + 2;
+    private static final byte STATE_CERTIFICATE_SET = (byte) 0x01;
+    private static final byte STATE_COUNTER_OVERFLOWED = (byte) 0x02;
+    private static final byte STATE_PREVIOUS_CHIP_KEY_SET = (byte) 0x04;
+    private static final byte[] IV_ZERO_AES = new byte[16];
+
+    private final byte flags;
+    private final byte[] counter;
+    private final byte[] certificate;
+    private final boolean certificateSet;
+    private final boolean counterOverflowed;
+    private final byte[] attestationKey;
+    private final byte[] chipKey;
+    private final byte[] previousChipKey;
+
+    /**
+     * @param previousChipKey previous wrapping key, null when not set
+     */
+    U2FAppletSnapshot(byte flags, byte[] counter, byte[] certificate, boolean certificateSet, boolean counterOverflowed, byte[] attestationKey, byte[] chipKey, byte[] previousChipKey) {
+        this.flags = flags;
+        this.counter = counter;
+        this.certificate = certificate;
+        this.certificateSet = certificateSet;
+        this.counterOverflowed = counterOverflowed;
+        this.attestationKey = attestationKey;
+        this.chipKey = chipKey;
+        this.previousChipKey = previousChipKey;
+    }
+
+    /**
+     * Copy the persistent state out of an installed applet.
+     */
+    static U2FAppletSnapshot capture(U2FApplet applet) {
+        byte[] attestationKey = new byte[32];
+        U2FAppletAccess.attestationPrivateKey(applet).getS(attestationKey, (short) 0);
+        FIDOStandalone standalone = U2FAppletAccess.standalone(applet);
+        byte[] chipKey = new byte[32];
+        U2FAppletAccess.chipKey(standalone).getKey(chipKey, (short) 0);
+        byte[] previousChipKey = null;
+        if (U2FAppletAccess.previousChipKeySet(standalone)) {
+            previousChipKey = new byte[32];
+            U2FAppletAccess.previousChipKey(standalone).getKey(previousChipKey, (short) 0);
+        }
+        return new U2FAppletSnapshot(U2FAppletAccess.flags(applet),
+                U2FAppletAccess.counter(applet).clone(),
+                U2FAppletAccess.attestationCertificate(applet).clone(),
+                U2FAppletAccess.attestationCertificateSet(applet),
+                U2FAppletAccess.counterOverflowed(applet),
+                attestationKey,
+                chipKey,
+                previousChipKey);
+    }
+
+    /**
+     * Overwrite the persistent state of an installed applet. The applet must have been installed with the same
+     * certificate length.
+     */
+    void restoreInto(U2FApplet applet) {
+        byte[] targetCertificate = U2FAppletAccess.attestationCertificate(applet);
+        if (targetCertificate.length != certificate.length) {
+            throw new IllegalArgumentException("Applet was installed for a certificate of " + targetCertificate.length + " bytes");
+        }
+        U2FAppletAccess.setFlags(applet, flags);
+        System.arraycopy(counter, 0, U2FAppletAccess.counter(applet), 0, counter.length);
+        System.arraycopy(certificate, 0, targetCertificate, 0, certificate.length);
+        U2FAppletAccess.setAttestationCertificateSet(applet, certificateSet);
+        U2FAppletAccess.setCounterOverflowed(applet, counterOverflowed);
+        // Engines copy their key when initialized, so both are re-initialized after the key change
+        ECPrivateKey attestationPrivateKey = U2FAppletAccess.attestationPrivateKey(applet);
+        attestationPrivateKey.setS(attestationKey, (short) 0, (short) attestationKey.length);
+        U2FAppletAccess.attestationSignature(applet).init(attestationPrivateKey, Signature.MODE_SIGN);
+        FIDOStandalone standalone = U2FAppletAccess.standalone(applet);
+        AESKey key = U2FAppletAccess.chipKey(standalone);
+        key.setKey(chipKey, (short) 0);
+        U2FAppletAccess.cipherEncrypt(standalone).init(key, Cipher.MODE_ENCRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
+        U2FAppletAccess.cipherDecrypt(standalone).init(key, Cipher.MODE_DECRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
+        AESKey previousKey = U2FAppletAccess.previousChipKey(standalone);
+        if (previousChipKey != null) {
+            previousKey.setKey(previousChipKey, (short) 0);
+            U2FAppletAccess.cipherDecryptPrevious(standalone).init(previousKey, Cipher.MODE_DECRYPT, IV_ZERO_AES, (short) 0, (short) IV_ZERO_AES.length);
+        } else {
+            previousKey.clearKey();
+        }
+        U2FAppletAccess.setPreviousChipKeySet(standalone, previousChipKey != null);
+    }
+
+    /**
+     * @return the applet install parameters: flags, certificate length, attestation private key
+     */
+    byte[] installParameters() {
+        byte[] parameters = new byte[INSTALL_PARAMETERS_LENGTH];
+        parameters[0] = flags;
+        parameters[1] = (byte) (certificate.length >> 8);
+        parameters[2] = (byte) certificate.length;
+        System.arraycopy(attestationKey, 0, parameters, 3, 32);
+        return parameters;
+    }
+
+    public int certificateLength() {
+        return certificate.length;
+    }
+
+    public boolean isCertificateSet() {
+        return certificateSet;
+    }
+
+    /**
+     * @return the unsigned 32 bit counter
+     */
+    public long counter() {
+        return ((long) (counter[0] & 0xff) << 24) | ((counter[1] & 0xff) << 16) | ((counter[2] & 0xff) << 8) | (counter[3] & 0xff);
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int encodedLength() {
+        return ENCODING_OVERHEAD + certificate.length;
+    }
+
+    /**
+     * Write the binary encoding at the position of <code>target</code>, advancing it.
+     */
+    public void writeTo(ByteBuffer target) {
+        target.put(FORMAT_VERSION);
+        target.put(flags);
+        target.put((byte) ((certificateSet ? STATE_CERTIFICATE_SET : 0) | (counterOverflowed ? STATE_COUNTER_OVERFLOWED : 0)
+                | (previousChipKey != null ? STATE_PREVIOUS_CHIP_KEY_SET : 0)));
+        target.put(counter);
+        target.put(attestationKey);
+        target.put(chipKey);
+        target.put(previousChipKey != null ? previousChipKey : new byte[32]);
+        target.putShort((short) certificate.length);
+        target.put(certificate);
+    }
+
+    /**
+     * Read a binary encoding at the position of <code>source</code>, advancing it.
+     *
+     * @throws IllegalArgumentException if the encoding is not in a known format
+     */
+    public static U2FAppletSnapshot readFrom(ByteBuffer source) {
+        byte version = source.get();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown snapshot format " + version);
+        }
+        byte flags = source.get();
+        byte state = source.get();
+        byte[] counter = new byte[4];
+        source.get(counter);
+        byte[] attestationKey = new byte[32];
+        source.get(attestationKey);
+        byte[] chipKey = new byte[32];
+        source.get(chipKey);
+        byte[] previousChipKey = new byte[32];
+        source.get(previousChipKey);
+        byte[] certificate = new byte[source.getShort() & 0xffff];
+        source.get(certificate);
+        return new U2FAppletSnapshot(flags, counter, certificate, (state & STATE_CERTIFICATE_SET) != 0,
+                (state & STATE_COUNTER_OVERFLOWED) != 0, attestationKey, chipKey,
+                (state & STATE_PREVIOUS_CHIP_KEY_SET) != 0 ? previousChipKey : null);
+    }
+}
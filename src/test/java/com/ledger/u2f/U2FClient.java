@@ -0,0 +1,382 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+import java.util.Arrays;
+
+/**
+ * Host side client for the U2F applet.
+ * <p>
+ * Extended length APDUs are used when the transport supports them, otherwise (or once the card refuses them) the
+ * client falls back to short APDUs and follows 61xx with GET DATA, asking for exactly the announced remaining length.
+ * When 61 00 announces 256 bytes or more and the transport supports extended length, the continuation is an extended
+ * GET DATA asking for as much as the response buffer still holds.
+ * Every response, continuations included, is assembled into one response buffer owned by the client and the parsed
+ * results are views into that buffer, valid until the next command sent through the same client.
+ * <p>
+ * Not thread safe, use one client per card and thread.
+ */
+public class U2FClient {
+    static final byte FIDO_CLA = (byte) 0x00;
+    static final byte FIDO_INS_ENROLL = (byte) 0x01;
+    static final byte FIDO_INS_SIGN = (byte) 0x02;
+    static final byte FIDO_INS_VERSION = (byte) 0x03;
+    static final byte ISO_INS_GET_DATA = (byte) 0xC0;
+    static final byte PROPRIETARY_CLA = (byte) 0xF0;
+    static final byte FIDO_ADM_ROTATE_WRAPPING_KEY = (byte) 0x40;
+    static final byte FIDO_ADM_REWRAP = (byte) 0x41;
+    static final byte P1_SIGN_OPERATION = (byte) 0x03;
+    static final byte P1_SIGN_CHECK_ONLY = (byte) 0x07;
+    static final byte P1_ROTATE = (byte) 0x00;
+    static final byte P1_RETIRE_PREVIOUS = (byte) 0x01;
+
+    static final int SW_NO_ERROR = 0x9000;
+    static final int SW_BYTES_REMAINING_00 = 0x6100;
+    static final int SW_WRONG_LENGTH = 0x6700;
+    static final int SW_TEST_OF_PRESENCE_REQUIRED = 0x6985;
+    static final int SW_INVALID_KEY_HANDLE = 0x6A80;
+
+    // Extended responses ask for the maximum: ENROLL and SIGN are not idempotent, a too small Le cannot be retried.
+    static final int EXTENDED_NE = 65535;
+    static final int SHORT_NE = 256;
+
+    static final int REWRAP_KEY_HANDLE_LENGTH = 64;
+    // Re-wrap entries per command: two fit a short APDU, extended ones carry more until the card buffer refuses them
+    static final int REWRAP_BATCH_SHORT = 2;
+    static final int REWRAP_BATCH_EXTENDED = 16;
+    private static final int REWRAP_ENTRY_LENGTH = 32 + REWRAP_KEY_HANDLE_LENGTH;
+    private static final int REWRAP_RESULT_LENGTH = 1 + REWRAP_KEY_HANDLE_LENGTH;
+
+    private static final int CHALLENGE_LENGTH = 32;
+    private static final int APPLICATION_PARAMETER_LENGTH = 32;
+    private static final int KEY_HANDLE_MAX = 255;
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_RESPONSE_CAPACITY = 1024;
+
+    private final APDUTransport transport;
+    private final RegistrationResponse registration = new RegistrationResponse();
+    private final AuthenticationResponse authentication = new AuthenticationResponse();
+    private byte[] payload = new byte[Math.max(CHALLENGE_LENGTH + APPLICATION_PARAMETER_LENGTH + 1 + KEY_HANDLE_MAX,
+            REWRAP_BATCH_EXTENDED * REWRAP_ENTRY_LENGTH)];
+    private byte[] command = new byte[HEADER_LENGTH + 3 + payload.length + 2];
+    private int rewrapBatch = REWRAP_BATCH_EXTENDED;
+    private byte[] response;
+    private int responseLength;
+    private boolean extended;
+    private boolean extendedGetData;
+    private int getDataRoundTrips;
+    private U2FMetrics metrics;
+
+    public U2FClient(APDUTransport transport) {
+        this.transport = transport;
+        this.extended = transport.isExtendedLengthSupported();
+        this.extendedGetData = extended;
+        this.response = new byte[extended ? EXTENDED_NE + 2 : INITIAL_RESPONSE_CAPACITY];
+    }
+
+    /**
+     * Record the GET DATA round trips of every operation, under <code>register</code>, <code>authenticate</code>
+     * and <code>check_only</code>.
+     *
+     * @param metrics registry or null to stop recording
+     */
+    public void setMetrics(U2FMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true while commands are sent as extended length APDUs
+     */
+    public boolean isExtended() {
+        return extended;
+    }
+
+    /**
+     * Send commands as short or extended length APDUs. Hosts sending short commands over a transport supporting
+     * extended length still get their continuations in one extended GET DATA.
+     *
+     * @throws IllegalArgumentException if extended length is asked and the transport does not support it
+     */
+    public void setExtended(boolean extended) {
+        if (extended && !transport.isExtendedLengthSupported()) {
+            throw new IllegalArgumentException("Transport does not support extended length");
+        }
+        this.extended = extended;
+    }
+
+    /**
+     * @return number of GET DATA commands needed by the last operation
+     */
+    public int getDataRoundTrips() {
+        return getDataRoundTrips;
+    }
+
+    /**
+     * U2F_REGISTER.
+     *
+     * @param challenge 32 bytes
+     * @param applicationParameter 32 bytes
+     * @return a view valid until the next command
+     * @throws U2FStatusException if the card did not answer 9000, e.g. 6985 when user presence is required
+     * @throws CardException
+     */
+    public RegistrationResponse register(byte[] challenge, byte[] applicationParameter) throws CardException {
+        System.arraycopy(challenge, 0, payload, 0, CHALLENGE_LENGTH);
+        System.arraycopy(applicationParameter, 0, payload, CHALLENGE_LENGTH, APPLICATION_PARAMETER_LENGTH);
+        int sw = exchange(FIDO_CLA, FIDO_INS_ENROLL, (byte) 0, CHALLENGE_LENGTH + APPLICATION_PARAMETER_LENGTH);
+        recordOperation("register");
+        if (sw != SW_NO_ERROR) {
+            throw new U2FStatusException(sw);
+        }
+        if (!registration.wrap(response, 0, responseLength)) {
+            throw new CardException("Malformed registration response");
+        }
+        return registration;
+    }
+
+    /**
+     * U2F_AUTHENTICATE with P1 = 0x03.
+     *
+     * @param challenge 32 bytes
+     * @param applicationParameter 32 bytes
+     * @param keyHandle
+     * @param keyHandleOffset
+     * @param keyHandleLength
+     * @return a view valid until the next command
+     * @throws U2FStatusException if the card did not answer 9000
+     * @throws CardException
+     */
+    public AuthenticationResponse authenticate(byte[] challenge, byte[] applicationParameter, byte[] keyHandle, int keyHandleOffset, int keyHandleLength) throws CardException {
+        int sw = exchange(FIDO_CLA, FIDO_INS_SIGN, P1_SIGN_OPERATION, signPayload(challenge, applicationParameter, keyHandle, keyHandleOffset, keyHandleLength));
+        recordOperation("authenticate");
+        if (sw != SW_NO_ERROR) {
+            throw new U2FStatusException(sw);
+        }
+        if (!authentication.wrap(response, 0, responseLength)) {
+            throw new CardException("Malformed authentication response");
+        }
+        return authentication;
+    }
+
+    /**
+     * U2F_AUTHENTICATE with P1 = 0x07.
+     *
+     * @return true if the key handle belongs to the application, false if the card rejected it as invalid
+     * @throws U2FStatusException for any other status word
+     * @throws CardException
+     */
+    public boolean checkOnly(byte[] applicationParameter, byte[] keyHandle, int keyHandleOffset, int keyHandleLength) throws CardException {
+        int sw = exchange(FIDO_CLA, FIDO_INS_SIGN, P1_SIGN_CHECK_ONLY, signPayload(null, applicationParameter, keyHandle, keyHandleOffset, keyHandleLength));
+        recordOperation("check_only");
+        switch (sw) {
+            case SW_TEST_OF_PRESENCE_REQUIRED:
+                return true;
+            case SW_INVALID_KEY_HANDLE:
+                return false;
+            default:
+                throw new U2FStatusException(sw);
+        }
+    }
+
+    /**
+     * Replace the wrapping key of the card with a new random one, keeping the current key until
+     * {@link #retirePreviousWrappingKey()}. Needs the key rotation install flag and user presence.
+     *
+     * @throws U2FStatusException if the card did not answer 9000, e.g. 6982 without the install flag, 6985 when user
+     * presence is required or the previous key is not retired yet
+     * @throws CardException
+     */
+    public void rotateWrappingKey() throws CardException {
+        int sw = exchange(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0);
+        if (sw != SW_NO_ERROR) {
+            throw new U2FStatusException(sw);
+        }
+    }
+
+    /**
+     * Make the card forget its previous wrapping key, key handles not re-wrapped by then become invalid. Needs the
+     * key rotation install flag and user presence.
+     *
+     * @throws U2FStatusException if the card did not answer 9000
+     * @throws CardException
+     */
+    public void retirePreviousWrappingKey() throws CardException {
+        int sw = exchange(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_RETIRE_PREVIOUS, 0);
+        if (sw != SW_NO_ERROR) {
+            throw new U2FStatusException(sw);
+        }
+    }
+
+    /**
+     * Re-wrap 64 byte key handles with the current wrapping key of the card, in place, in as few commands as the
+     * transport allows. Re-wrapping does not change the card, so a batch refused as too long is sent again in
+     * smaller commands.
+     *
+     * @param applicationParameters 32 bytes per key handle, the application each was registered for
+     * @param keyHandles 64 bytes per key handle, overwritten with the re-wrapped handles, zeroed when invalid
+     * @param statuses receives one of {@link FIDOAPI#REWRAP_CURRENT}, {@link FIDOAPI#REWRAP_DONE} or
+     * {@link FIDOAPI#REWRAP_INVALID} per key handle
+     * @param count number of key handles
+     * @throws U2FStatusException if the card did not answer 9000
+     * @throws CardException
+     */
+    public void rewrap(byte[] applicationParameters, byte[] keyHandles, byte[] statuses, int count) throws CardException {
+        int done = 0;
+        while (done < count) {
+            int batch = Math.min(extended ? rewrapBatch : REWRAP_BATCH_SHORT, count - done);
+            for (int i = 0; i < batch; i++) {
+                System.arraycopy(applicationParameters, (done + i) * APPLICATION_PARAMETER_LENGTH, payload, i * REWRAP_ENTRY_LENGTH, APPLICATION_PARAMETER_LENGTH);
+                System.arraycopy(keyHandles, (done + i) * REWRAP_KEY_HANDLE_LENGTH, payload, i * REWRAP_ENTRY_LENGTH + APPLICATION_PARAMETER_LENGTH, REWRAP_KEY_HANDLE_LENGTH);
+            }
+            int sw = exchange(PROPRIETARY_CLA, FIDO_ADM_REWRAP, (byte) 0, batch * REWRAP_ENTRY_LENGTH);
+            if (sw == SW_WRONG_LENGTH && batch > REWRAP_BATCH_SHORT) {
+                rewrapBatch = REWRAP_BATCH_SHORT;
+                continue;
+            }
+            if (sw != SW_NO_ERROR) {
+                throw new U2FStatusException(sw);
+            }
+            if (responseLength != batch * REWRAP_RESULT_LENGTH) {
+                throw new CardException("Malformed re-wrap response");
+            }
+            for (int i = 0; i < batch; i++) {
+                statuses[done + i] = response[i * REWRAP_RESULT_LENGTH];
+                System.arraycopy(response, i * REWRAP_RESULT_LENGTH + 1, keyHandles, (done + i) * REWRAP_KEY_HANDLE_LENGTH, REWRAP_KEY_HANDLE_LENGTH);
+            }
+            done += batch;
+        }
+    }
+
+    private void recordOperation(String operation) {
+        if (metrics != null) {
+            metrics.recordOperation(operation, getDataRoundTrips);
+        }
+    }
+
+    private int signPayload(byte[] challenge, byte[] applicationParameter, byte[] keyHandle, int keyHandleOffset, int keyHandleLength) {
+        if (keyHandleLength > KEY_HANDLE_MAX) {
+            throw new IllegalArgumentException("Key handle too long");
+        }
+        if (challenge != null) {
+            System.arraycopy(challenge, 0, payload, 0, CHALLENGE_LENGTH);
+        } else {
+            // check-only ignores the challenge
+            Arrays.fill(payload, 0, CHALLENGE_LENGTH, (byte) 0);
+        }
+        System.arraycopy(applicationParameter, 0, payload, CHALLENGE_LENGTH, APPLICATION_PARAMETER_LENGTH);
+        payload[CHALLENGE_LENGTH + APPLICATION_PARAMETER_LENGTH] = (byte) keyHandleLength;
+        System.arraycopy(keyHandle, keyHandleOffset, payload, CHALLENGE_LENGTH + APPLICATION_PARAMETER_LENGTH + 1, keyHandleLength);
+        return CHALLENGE_LENGTH + APPLICATION_PARAMETER_LENGTH + 1 + keyHandleLength;
+    }
+
+    /**
+     * Send a command carrying the first <code>payloadLength</code> bytes of the payload and collect the whole
+     * response into the response buffer.
+     *
+     * @return the final status word
+     */
+    int exchange(byte cla, byte ins, byte p1, int payloadLength) throws CardException {
+        responseLength = 0;
+        getDataRoundTrips = 0;
+        if (extended) {
+            int sw = transmit(encode(cla, ins, p1, (byte) 0, payload, payloadLength, EXTENDED_NE, true), EXTENDED_NE);
+            if (sw != SW_WRONG_LENGTH || payloadLength > 255) {
+                // A payload too long for a short APDU is the caller's to split
+                return sw;
+            }
+            // The card or reader does not do extended length, stick to short APDUs from now on
+            extended = false;
+            extendedGetData = false;
+            responseLength = 0;
+        }
+        return collect(transmit(encode(cla, ins, p1, (byte) 0, payload, payloadLength, SHORT_NE, false), SHORT_NE));
+    }
+
+    /**
+     * Follow 61xx with GET DATA until the whole response is received, asking for the announced remaining length.
+     */
+    private int collect(int sw) throws CardException {
+        while ((sw & 0xff00) == SW_BYTES_REMAINING_00) {
+            getDataRoundTrips++;
+            int ne = sw & 0xff;
+            if (ne == 0 && extendedGetData) {
+                // 256 bytes or more remain, ask for what the response buffer still holds so it only grows once full
+                ne = Math.min(EXTENDED_NE, response.length - responseLength - 2);
+                if (ne <= SHORT_NE) {
+                    ne = EXTENDED_NE;
+                }
+                int next = transmit(encode(FIDO_CLA, ISO_INS_GET_DATA, (byte) 0, (byte) 0, null, 0, ne, true), ne);
+                if (next != SW_WRONG_LENGTH) {
+                    sw = next;
+                    continue;
+                }
+                // Refused before any data was sent, the chaining state of the card is unchanged
+                extendedGetData = false;
+            }
+            if (ne == 0) {
+                ne = SHORT_NE;
+            }
+            sw = transmit(encode(FIDO_CLA, ISO_INS_GET_DATA, (byte) 0, (byte) 0, null, 0, ne, false), ne);
+        }
+        return sw;
+    }
+
+    /**
+     * Transmit the encoded command and append the response data to the response buffer.
+     *
+     * @return the status word
+     */
+    private int transmit(int commandLength, int ne) throws CardException {
+        ensureResponseCapacity(responseLength + ne + 2);
+        int received = transport.transmit(command, commandLength, response, responseLength);
+        if (received < 2) {
+            throw new CardException("Response without status word");
+        }
+        int end = responseLength + received;
+        int sw = ((response[end - 2] & 0xff) << 8) | (response[end - 1] & 0xff);
+        responseLength = end - 2;
+        return sw;
+    }
+
+    /**
+     * Encode a command APDU into the command buffer.
+     *
+     * @return the encoded length
+     */
+    private int encode(byte cla, byte ins, byte p1, byte p2, byte[] data, int dataLength, int ne, boolean extendedLength) {
+        int offset = 0;
+        command[offset++] = cla;
+        command[offset++] = ins;
+        command[offset++] = p1;
+        command[offset++] = p2;
+        if (extendedLength) {
+            command[offset++] = (byte) 0;
+            if (dataLength != 0) {
+                command[offset++] = (byte) (dataLength >> 8);
+                command[offset++] = (byte) dataLength;
+                System.arraycopy(data, 0, command, offset, dataLength);
+                offset += dataLength;
+            }
+            command[offset++] = (byte) (ne >> 8);
+            command[offset++] = (byte) ne;
+        } else {
+            if (dataLength > 255) {
+                throw new IllegalArgumentException("Command data too long for a short APDU");
+            }
+            if (dataLength != 0) {
+                command[offset++] = (byte) dataLength;
+                System.arraycopy(data, 0, command, offset, dataLength);
+                offset += dataLength;
+            }
+            command[offset++] = (byte) (ne == SHORT_NE ? 0 : ne);
+        }
+        return offset;
+    }
+
+    private void ensureResponseCapacity(int capacity) {
+        if (response.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, response.length * 2)];
+            System.arraycopy(response, 0, grown, 0, responseLength);
+            response = grown;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class U2FClientTest extends SimulatorTestBase {
+
+    private U2FClient prepareClient(boolean extendedLength) {
+        prepareProvisionedApplet((byte) (INSTALL_FLAG_DISABLE_USER_PRESENCE | INSTALL_FLAG_ENABLE_KEY_ROTATION), U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        return new U2FClient(new SimulatorTransport(sim) {
+            @Override
+            public boolean isExtendedLengthSupported() {
+                return extendedLength;
+            }
+        });
+    }
+
+    private static byte[] remaining(ByteBuffer view) {
+        byte[] result = new byte[view.remaining()];
+        view.get(result);
+        return result;
+    }
+
+    @Test
+    public void testRegisterExtended() throws CardException {
+        U2FClient client = prepareClient(true);
+
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        assertThat(client.isExtended(), is(true));
+        assertThat(client.getDataRoundTrips(), is(0));
+        assertThat(registration.keyHandleLength(), is(64));
+        assertThat(registration.buffer()[registration.publicKeyOffset()], is((byte) 0x04));
+        assertThat(remaining(registration.attestationCertificate()), is(U2FTest.attestationCert));
+        assertThat(registration.signatureLength(), allOf(greaterThanOrEqualTo(8), lessThanOrEqualTo(72)));
+    }
+
+    @Test
+    public void testRegisterShort() throws CardException {
+        U2FClient client = prepareClient(false);
+
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        assertThat(client.isExtended(), is(false));
+        assertThat(client.getDataRoundTrips(), is(greaterThan(0)));
+        assertThat(registration.keyHandleLength(), is(64));
+        assertThat(remaining(registration.attestationCertificate()), is(U2FTest.attestationCert));
+    }
+
+    @Test
+    public void testRegisterShortCommandsExtendedContinuation() throws CardException {
+        U2FClient client = prepareClient(true);
+        client.setExtended(false);
+
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        assertThat(client.isExtended(), is(false));
+        assertThat(client.getDataRoundTrips(), is(1));
+        assertThat(registration.keyHandleLength(), is(64));
+        assertThat(remaining(registration.attestationCertificate()), is(U2FTest.attestationCert));
+    }
+
+    @Test
+    public void testGetDataAsksForAnnouncedLength() throws CardException {
+        prepareProvisionedApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        List<Integer> announced = new ArrayList<>();
+        List<Integer> asked = new ArrayList<>();
+        U2FClient client = new U2FClient(new SimulatorTransport(sim) {
+            @Override
+            public boolean isExtendedLengthSupported() {
+                return false;
+            }
+
+            @Override
+            public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+                if (command[1] == U2FClient.ISO_INS_GET_DATA) {
+                    asked.add(command[commandLength - 1] & 0xff);
+                }
+                int received = super.transmit(command, commandLength, response, responseOffset);
+                int end = responseOffset + received;
+                if (response[end - 2] == (byte) 0x61) {
+                    announced.add(response[end - 1] & 0xff);
+                }
+                return received;
+            }
+        });
+
+        client.register(U2FTest.challenge, U2FTest.application);
+        assertThat(asked.size(), is(client.getDataRoundTrips()));
+        assertThat(asked, is(announced));
+    }
+
+    @Test
+    public void testAuthenticate() throws CardException {
+        U2FClient client = prepareClient(false);
+
+        byte[] keyHandle = remaining(client.register(U2FTest.challenge, U2FTest.application).keyHandle());
+        AuthenticationResponse authentication = client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+        assertThat(authentication.userPresence(), is((byte) 0x01));
+        assertThat(authentication.counter(), is(1L));
+
+        authentication = client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+        assertThat(authentication.counter(), is(2L));
+        assertThat(authentication.signatureLength(), allOf(greaterThanOrEqualTo(8), lessThanOrEqualTo(72)));
+    }
+
+    @Test
+    public void testCheckOnly() throws CardException {
+        U2FClient client = prepareClient(true);
+
+        byte[] keyHandle = remaining(client.register(U2FTest.challenge, U2FTest.application).keyHandle());
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(true));
+        assertThat(client.checkOnly(U2FTest.challenge, keyHandle, 0, keyHandle.length), is(false));
+    }
+
+    private void testRotateAndRewrap(boolean extendedLength) throws CardException {
+        U2FClient client = prepareClient(extendedLength);
+        byte[] otherApplication = U2FTest.challenge;
+        byte[] first = remaining(client.register(U2FTest.challenge, U2FTest.application).keyHandle());
+        byte[] second = remaining(client.register(U2FTest.challenge, otherApplication).keyHandle());
+
+        client.rotateWrappingKey();
+        // Handles of the previous key still work until it is retired
+        assertThat(client.checkOnly(U2FTest.application, first, 0, first.length), is(true));
+        client.authenticate(U2FTest.challenge, U2FTest.application, first, 0, first.length);
+        byte[] fresh = remaining(client.register(U2FTest.challenge, U2FTest.application).keyHandle());
+
+        byte[][] applications = {U2FTest.application, otherApplication, U2FTest.application, otherApplication, U2FTest.application};
+        byte[][] keyHandles = {first, second, fresh, first, new byte[64]};
+        byte[] applicationParameters = new byte[applications.length * 32];
+        byte[] batch = new byte[keyHandles.length * 64];
+        for (int i = 0; i < keyHandles.length; i++) {
+            System.arraycopy(applications[i], 0, applicationParameters, i * 32, 32);
+            System.arraycopy(keyHandles[i], 0, batch, i * 64, 64);
+        }
+        byte[] statuses = new byte[keyHandles.length];
+        client.rewrap(applicationParameters, batch, statuses, keyHandles.length);
+        assertThat(statuses, is(new byte[]{FIDOAPI.REWRAP_DONE, FIDOAPI.REWRAP_DONE, FIDOAPI.REWRAP_CURRENT, FIDOAPI.REWRAP_INVALID, FIDOAPI.REWRAP_INVALID}));
+        assertThat(Arrays.copyOfRange(batch, 2 * 64, 3 * 64), is(fresh));
+        assertThat(Arrays.copyOfRange(batch, 3 * 64, 4 * 64), is(new byte[64]));
+
+        client.retirePreviousWrappingKey();
+        assertThat(client.checkOnly(U2FTest.application, first, 0, first.length), is(false));
+        assertThat(client.checkOnly(U2FTest.application, batch, 0, 64), is(true));
+        assertThat(client.checkOnly(otherApplication, batch, 64, 64), is(true));
+        assertThat(client.authenticate(U2FTest.challenge, U2FTest.application, batch, 0, 64).counter(), is(2L));
+    }
+
+    @Test
+    public void testRotateAndRewrapExtended() throws CardException {
+        testRotateAndRewrap(true);
+    }
+
+    @Test
+    public void testRotateAndRewrapShort() throws CardException {
+        testRotateAndRewrap(false);
+    }
+}
@@ -0,0 +1,155 @@
+package com.ledger.u2f;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of authenticator traffic metrics, fed by {@link MeteredTransport} and {@link U2FClient}: latency per
+ * instruction, status words (all 61xx counted together), GET DATA round trips per operation, extended and short
+ * APDUs, and the number of commands queued or in flight per card.
+ * <p>
+ * Thread safe. Exported in the Prometheus text format by {@link #writePrometheus(Appendable)}, to a file with
+ * {@link #writeTo(Path)} or over HTTP with {@link MetricsEndpoint}.
+ */
+public class U2FMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final ConcurrentHashMap<Integer, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, LongAdder> statusWords = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> operations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> getDataRoundTrips = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> queueDepths = new ConcurrentHashMap<>();
+    private final LongAdder extendedApdus = new LongAdder();
+    private final LongAdder shortApdus = new LongAdder();
+
+    public void recordApdu(int ins, long nanos, int sw, boolean extendedLength) {
+        latencies.computeIfAbsent(ins & 0xff, i -> new LatencyHistogram()).record(nanos);
+        int key = (sw & 0xff00) == U2FClient.SW_BYTES_REMAINING_00 ? U2FClient.SW_BYTES_REMAINING_00 : sw;
+        statusWords.computeIfAbsent(key, s -> new LongAdder()).increment();
+        (extendedLength ? extendedApdus : shortApdus).increment();
+    }
+
+    /**
+     * @param operation name of a logical operation, e.g. <code>register</code>
+     * @param roundTrips GET DATA commands it needed
+     */
+    public void recordOperation(String operation, int roundTrips) {
+        operations.computeIfAbsent(operation, o -> new LongAdder()).increment();
+        getDataRoundTrips.computeIfAbsent(operation, o -> new LongAdder()).add(roundTrips);
+    }
+
+    /**
+     * @return the gauge of commands queued or in flight for a card
+     */
+    public AtomicInteger queueDepth(String card) {
+        return queueDepths.computeIfAbsent(card, c -> new AtomicInteger());
+    }
+
+    /**
+     * @return latencies of an instruction, null if none was recorded
+     */
+    public LatencyHistogram latency(int ins) {
+        return latencies.get(ins & 0xff);
+    }
+
+    /**
+     * @return APDUs answered with a status word, 0x6100 for all 61xx
+     */
+    public long statusWordCount(int sw) {
+        LongAdder count = statusWords.get(sw);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long operationCount(String operation) {
+        LongAdder count = operations.get(operation);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getDataRoundTrips(String operation) {
+        LongAdder count = getDataRoundTrips.get(operation);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long extendedApdus() {
+        return extendedApdus.sum();
+    }
+
+    public long shortApdus() {
+        return shortApdus.sum();
+    }
+
+    public void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP u2f_apdu_latency_seconds APDU round trip time by instruction\n");
+        out.append("# TYPE u2f_apdu_latency_seconds summary\n");
+        for (Map.Entry<Integer, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            String ins = String.format("ins=\"%02X\"", entry.getKey());
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                sample(out, "u2f_apdu_latency_seconds", ins + ",quantile=\"" + quantile + "\"", histogram.percentile(quantile * 100) / 1e9);
+            }
+            sample(out, "u2f_apdu_latency_seconds_sum", ins, histogram.total() / 1e9);
+            sample(out, "u2f_apdu_latency_seconds_count", ins, histogram.count());
+        }
+
+        out.append("# HELP u2f_apdu_status_total APDUs by status word, 61xx grouped\n");
+        out.append("# TYPE u2f_apdu_status_total counter\n");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(statusWords).entrySet()) {
+            int sw = entry.getKey();
+            String label = sw < 0 ? "none" : sw == U2FClient.SW_BYTES_REMAINING_00 ? "61xx" : String.format("%04X", sw);
+            sample(out, "u2f_apdu_status_total", "sw=\"" + label + "\"", entry.getValue().sum());
+        }
+
+        out.append("# HELP u2f_apdu_total APDUs by length encoding\n");
+        out.append("# TYPE u2f_apdu_total counter\n");
+        sample(out, "u2f_apdu_total", "length=\"extended\"", extendedApdus.sum());
+        sample(out, "u2f_apdu_total", "length=\"short\"", shortApdus.sum());
+
+        out.append("# HELP u2f_get_data_round_trips GET DATA commands per logical operation\n");
+        out.append("# TYPE u2f_get_data_round_trips summary\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(operations).entrySet()) {
+            String operation = "operation=\"" + escape(entry.getKey()) + "\"";
+            sample(out, "u2f_get_data_round_trips_sum", operation, getDataRoundTrips(entry.getKey()));
+            sample(out, "u2f_get_data_round_trips_count", operation, entry.getValue().sum());
+        }
+
+        out.append("# HELP u2f_card_queue_depth Commands queued or in flight per card\n");
+        out.append("# TYPE u2f_card_queue_depth gauge\n");
+        for (Map.Entry<String, AtomicInteger> entry : new TreeMap<>(queueDepths).entrySet()) {
+            sample(out, "u2f_card_queue_depth", "card=\"" + escape(entry.getKey()) + "\"", entry.getValue().get());
+        }
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name).append('{').append(labels).append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Write the metrics to a file for a collector to pick up, replacing it atomically.
+     */
+    public void writeTo(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writePrometheus(writer);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,79 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Scanner;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class U2FMetricsTest extends SimulatorTestBase {
+
+    private U2FMetrics run(boolean extendedLength) throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FMetrics metrics = new U2FMetrics();
+        U2FClient client = new U2FClient(new MeteredTransport(card.transport(), metrics, "card-0") {
+            @Override
+            public boolean isExtendedLengthSupported() {
+                return extendedLength;
+            }
+        });
+        client.setMetrics(metrics);
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length);
+        assertThat(client.checkOnly(U2FTest.challenge, keyHandle, 0, keyHandle.length), is(false));
+        return metrics;
+    }
+
+    @Test
+    public void testShortTraffic() throws CardException, IOException {
+        U2FMetrics metrics = run(false);
+        assertThat(metrics.extendedApdus(), is(0L));
+        assertThat(metrics.getDataRoundTrips("register"), is(greaterThan(0L)));
+        assertThat(metrics.getDataRoundTrips("authenticate"), is(0L));
+        assertThat(metrics.operationCount("check_only"), is(1L));
+        assertThat(metrics.statusWordCount(0x6100), is(metrics.getDataRoundTrips("register")));
+        assertThat(metrics.statusWordCount(0x6A80), is(1L));
+        assertThat(metrics.latency(FIDO_INS_SIGN).count(), is(2L));
+        assertThat(metrics.queueDepth("card-0").get(), is(0));
+
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheus(text);
+        assertThat(text.toString(), containsString("u2f_apdu_status_total{sw=\"61xx\"} "));
+        assertThat(text.toString(), containsString("u2f_apdu_latency_seconds_count{ins=\"02\"} 2\n"));
+        assertThat(text.toString(), containsString("u2f_card_queue_depth{card=\"card-0\"} 0\n"));
+    }
+
+    @Test
+    public void testFileAndEndpoint() throws CardException, IOException {
+        U2FMetrics metrics = run(true);
+        assertThat(metrics.shortApdus(), is(0L));
+        assertThat(metrics.extendedApdus(), is(3L));
+
+        Path file = Files.createTempFile("u2f", ".prom");
+        try {
+            metrics.writeTo(file);
+            assertThat(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), containsString("u2f_apdu_total{length=\"extended\"} 3\n"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        try (MetricsEndpoint endpoint = new MetricsEndpoint(metrics, 0)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + endpoint.port() + "/metrics").openConnection();
+            assertThat(connection.getResponseCode(), is(200));
+            try (InputStream in = connection.getInputStream(); Scanner scanner = new Scanner(in, "UTF-8")) {
+                assertThat(scanner.useDelimiter("\\A").next(), containsString("u2f_apdu_status_total{sw=\"9000\"} 2\n"));
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.ledger.u2f;
+
+import com.licel.jcardsim.io.JavaxSmartCardInterface;
+import javacard.framework.AID;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * One simulated card running a single {@link U2FApplet}, confined to the thread that created it.
+ * <p>
+ * An installed (and possibly provisioned) applet can be captured with {@link #snapshot()} and brought back with
+ * {@link #restore(U2FAppletSnapshot)}, on this or on any other simulator. Restoring into a simulator whose applet was
+ * installed for the same certificate length only rewrites the persistent state, no install and no key building.
+ */
+public class U2FSimulator {
+    static final byte[] AID_BYTES = {(byte) 0xa0, (byte) 0x00, (byte) 0x00, (byte) 0x06, (byte) 0x17, (byte) 0x00, (byte) 0x4f, (byte) 0x97, (byte) 0xa2, (byte) 0xe9, (byte) 0x49, (byte) 0x01};
+    static final AID APPLET_AID = new AID(AID_BYTES, (short) 0, (byte) AID_BYTES.length);
+
+    private static final byte PROPRIETARY_CLA = (byte) 0xF0;
+    private static final byte FIDO_ADM_SET_ATTESTATION_CERT = (byte) 0x01;
+    private static final byte FIDO_ADM_ROTATE_WRAPPING_KEY = (byte) 0x40;
+    private static final byte P1_ROTATE = (byte) 0x00;
+    private static final byte P1_RETIRE_PREVIOUS = (byte) 0x01;
+    private static final int CERTIFICATE_CHUNK = 255;
+    private static final int SW_NO_ERROR = 0x9000;
+    private static final byte FIDO_CLA = (byte) 0x00;
+    private static final byte FIDO_INS_ENROLL = (byte) 0x01;
+    private static final byte FIDO_INS_SIGN = (byte) 0x02;
+    private static final byte P1_SIGN_OPERATION = (byte) 0x03;
+
+    private static final ThreadLocal<U2FSimulator> current = ThreadLocal.withInitial(U2FSimulator::new);
+
+    private final Thread owner = Thread.currentThread();
+    private final JavaxSmartCardInterface simulator = new JavaxSmartCardInterface();
+    private final SimulatorTransport simulatorTransport = new SimulatorTransport(simulator);
+    private final APDUTransport transport = new APDUTransport() {
+        @Override
+        public boolean isExtendedLengthSupported() {
+            return simulatorTransport.isExtendedLengthSupported();
+        }
+
+        @Override
+        public int transmit(byte[] command, int commandLength, byte[] response, int responseOffset) throws CardException {
+            applyPresencePolicy(command, commandLength);
+            return simulatorTransport.transmit(command, commandLength, response, responseOffset);
+        }
+    };
+    private U2FApplet applet;
+    // The applet's CLEAR_ON_RESET presence latch, set once user presence has been consumed
+    private byte[] presenceLatch;
+    private PresencePolicy presencePolicy;
+
+    /**
+     * @return the simulator of the calling thread, created on first use
+     */
+    public static U2FSimulator forCurrentThread() {
+        return current.get();
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("Simulator is confined to " + owner.getName());
+        }
+    }
+
+    public JavaxSmartCardInterface simulator() {
+        checkThread();
+        return simulator;
+    }
+
+    /**
+     * @return a transport to the card, applying the presence policy
+     */
+    public APDUTransport transport() {
+        checkThread();
+        return transport;
+    }
+
+    /**
+     * Decide user presence before each enroll, sign, wrapping key rotation and retirement sent through
+     * {@link #transport()}, the commands the card asks presence for: the card is touched
+     * ({@link #resetUserPresence()}) when the policy says so, otherwise presence is marked as consumed. Commands sent
+     * directly to {@link #simulator()} are not affected.
+     *
+     * @param policy the policy or null to leave presence to the card, present after each reset
+     */
+    public void setPresencePolicy(PresencePolicy policy) {
+        checkThread();
+        this.presencePolicy = policy;
+    }
+
+    private void applyPresencePolicy(byte[] command, int commandLength) {
+        if (presencePolicy == null || applet == null || commandLength < 4 || !needsPresence(command)) {
+            return;
+        }
+        if (presencePolicy.isPresent()) {
+            resetUserPresence();
+        } else {
+            presenceLatch[0] = (byte) 1;
+        }
+    }
+
+    private static boolean needsPresence(byte[] command) {
+        if (command[0] == FIDO_CLA) {
+            return command[1] == FIDO_INS_ENROLL || (command[1] == FIDO_INS_SIGN && command[2] == P1_SIGN_OPERATION);
+        }
+        return command[0] == PROPRIETARY_CLA && command[1] == FIDO_ADM_ROTATE_WRAPPING_KEY
+                && (command[2] == P1_ROTATE || command[2] == P1_RETIRE_PREVIOUS);
+    }
+
+    /**
+     * Make the user present for the next operation needing presence, the effect of a card reset without its cost:
+     * only the presence latch, the applet's reset transient memory, is cleared, and the applet is selected again.
+     */
+    public void resetUserPresence() {
+        checkThread();
+        if (applet == null) {
+            throw new IllegalStateException("No applet installed");
+        }
+        presenceLatch[0] = (byte) 0;
+        simulator.selectApplet(APPLET_AID);
+    }
+
+    /**
+     * @return the installed applet or null
+     */
+    U2FApplet applet() {
+        checkThread();
+        return applet;
+    }
+
+    /**
+     * Install a fresh applet, replacing the current one, and select it.
+     *
+     * @param parameters applet install parameters: flags, certificate length, attestation private key
+     */
+    public void install(byte[] parameters) {
+        checkThread();
+        // GlobalPlatform install data: instance AID, privileges, applet parameters
+        byte[] installData = new byte[1 + AID_BYTES.length + 1 + 1 + parameters.length];
+        int offset = 0;
+        installData[offset++] = (byte) AID_BYTES.length;
+        System.arraycopy(AID_BYTES, 0, installData, offset, AID_BYTES.length);
+        offset += AID_BYTES.length;
+        installData[offset++] = 0;
+        installData[offset++] = (byte) parameters.length;
+        System.arraycopy(parameters, 0, installData, offset, parameters.length);
+
+        if (applet != null) {
+            applet = null;
+            simulator.resetRuntime();
+        }
+        simulator.installApplet(APPLET_AID, SimulatedU2FApplet.class, installData, (short) 0, (byte) installData.length);
+        applet = SimulatedU2FApplet.takeInstalled();
+        presenceLatch = U2FAppletAccess.scratchPersistent(applet);
+        simulator.selectApplet(APPLET_AID);
+    }
+
+    /**
+     * Install a fresh applet and load its attestation certificate.
+     *
+     * @param flags install flags
+     * @param attestationPrivateKey 32 bytes
+     * @param certificate DER encoded attestation certificate
+     */
+    public void provision(byte flags, byte[] attestationPrivateKey, byte[] certificate) {
+        byte[] parameters = new byte[U2FAppletSnapshot.INSTALL_PARAMETERS_LENGTH];
+        parameters[0] = flags;
+        parameters[1] = (byte) (certificate.length >> 8);
+        parameters[2] = (byte) certificate.length;
+        System.arraycopy(attestationPrivateKey, 0, parameters, 3, 32);
+        install(parameters);
+        for (int offset = 0; offset < certificate.length; offset += CERTIFICATE_CHUNK) {
+            int length = Math.min(CERTIFICATE_CHUNK, certificate.length - offset);
+            byte[] chunk = new byte[length];
+            System.arraycopy(certificate, offset, chunk, 0, length);
+            ResponseAPDU response = simulator.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, offset >> 8, offset & 0xff, chunk));
+            if (response.getSW() != SW_NO_ERROR) {
+                throw new IllegalStateException(String.format("Loading the attestation certificate failed with %04X", response.getSW()));
+            }
+        }
+    }
+
+    /**
+     * Take the card out of the field and put it back: transient state is lost, an interrupted transaction is rolled
+     * back by the platform. The applet is selected again, as a reader would after reconnecting.
+     */
+    public void powerCycle() {
+        checkThread();
+        simulator.reset();
+        simulator.selectApplet(APPLET_AID);
+    }
+
+    /**
+     * @return a copy of the persistent state of the installed applet
+     */
+    public U2FAppletSnapshot snapshot() {
+        checkThread();
+        if (applet == null) {
+            throw new IllegalStateException("No applet installed");
+        }
+        return U2FAppletSnapshot.capture(applet);
+    }
+
+    /**
+     * Bring the applet back to a snapshot, as if the card had been reset afterwards, and select it. A reused applet
+     * loses the decorators installed around its {@link FIDOAPI}, as a freshly installed one would not have them.
+     */
+    public void restore(U2FAppletSnapshot snapshot) {
+        checkThread();
+        if (applet == null || U2FAppletAccess.attestationCertificate(applet).length != snapshot.certificateLength()) {
+            install(snapshot.installParameters());
+        } else {
+            U2FAppletAccess.setFidoImpl(applet, U2FAppletAccess.standalone(applet));
+        }
+        snapshot.restoreInto(applet);
+        powerCycle();
+    }
+}
@@ -0,0 +1,164 @@
+package com.ledger.u2f;
+
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class U2FSimulatorTest extends SimulatorTestBase {
+
+    private static byte[] register(U2FClient client) throws CardException {
+        RegistrationResponse registration = client.register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        return keyHandle;
+    }
+
+    @Test
+    public void testRestoreRewindsCounter() throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+        byte[] keyHandle = register(client);
+        assertThat(client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length).counter(), is(1L));
+
+        U2FAppletSnapshot snapshot = card.snapshot();
+        assertThat(snapshot.counter(), is(1L));
+        assertThat(snapshot.isCertificateSet(), is(true));
+        assertThat(client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length).counter(), is(2L));
+
+        card.restore(snapshot);
+        assertThat(client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length).counter(), is(2L));
+    }
+
+    @Test
+    public void testRestoreAfterReinstall() throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        byte[] keyHandle = register(new U2FClient(card.transport()));
+        U2FAppletSnapshot snapshot = card.snapshot();
+
+        // A new install gets a new wrapping key, the snapshot brings the old one back
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(false));
+        card.restore(snapshot);
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(true));
+    }
+
+    @Test
+    public void testRestoreRemovesDecorators() throws CardException {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FAppletSnapshot snapshot = card.snapshot();
+        FIDOAPI standalone = U2FAppletAccess.fidoImpl(card.applet());
+        U2FAppletAccess.setFidoImpl(card.applet(), new ForwardingFIDOAPI(standalone) {
+        });
+
+        card.restore(snapshot);
+        assertThat(U2FAppletAccess.fidoImpl(card.applet()), is(sameInstance(standalone)));
+        register(new U2FClient(card.transport()));
+    }
+
+    @Test
+    public void testRestoreOnAnotherThread() throws Exception {
+        card.provision(INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        byte[] keyHandle = register(new U2FClient(card.transport()));
+        U2FAppletSnapshot snapshot = card.snapshot();
+
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                U2FSimulator other = U2FSimulator.forCurrentThread();
+                other.restore(snapshot);
+                result.set(new U2FClient(other.transport()).checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length));
+            } catch (Exception e) {
+                result.set(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(result.get(), is((Object) Boolean.TRUE));
+    }
+
+    @Test
+    public void testConfinedToOwner() throws InterruptedException {
+        AtomicReference<Exception> result = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                card.snapshot();
+            } catch (Exception e) {
+                result.set(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(result.get(), is(instanceOf(IllegalStateException.class)));
+    }
+
+    private static int sw(ThrowingRunnable operation) throws CardException {
+        try {
+            operation.run();
+            return U2FClient.SW_NO_ERROR;
+        } catch (U2FStatusException e) {
+            return e.getSW();
+        }
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws CardException;
+    }
+
+    @Test
+    public void testResetUserPresence() throws CardException {
+        card.provision(INSTALL_FLAG_ENABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+        byte[] keyHandle = register(client);
+        assertThat(sw(() -> register(client)), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
+        card.resetUserPresence();
+        assertThat(sw(() -> register(client)), is(U2FClient.SW_NO_ERROR));
+
+        assertThat(sw(() -> client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length)), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
+        card.resetUserPresence();
+        assertThat(client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length).counter(), is(1L));
+    }
+
+    @Test
+    public void testPresencePolicies() throws CardException {
+        card.provision(INSTALL_FLAG_ENABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+
+        card.setPresencePolicy(PresencePolicy.ALWAYS);
+        byte[] keyHandle = register(client);
+        for (int i = 0; i < 3; i++) {
+            assertThat(sw(() -> register(client)), is(U2FClient.SW_NO_ERROR));
+            assertThat(sw(() -> client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length)), is(U2FClient.SW_NO_ERROR));
+        }
+
+        // Presence after a reset is withdrawn too
+        card.setPresencePolicy(PresencePolicy.NEVER);
+        card.powerCycle();
+        assertThat(sw(() -> register(client)), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
+
+        card.setPresencePolicy(PresencePolicy.every(2));
+        assertThat(sw(() -> register(client)), is(U2FClient.SW_NO_ERROR));
+        // Check-only does not need presence and does not count
+        assertThat(client.checkOnly(U2FTest.application, keyHandle, 0, keyHandle.length), is(true));
+        assertThat(sw(() -> client.authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length)), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
+        assertThat(sw(() -> register(client)), is(U2FClient.SW_NO_ERROR));
+    }
+
+    @Test
+    public void testPresencePolicyCoversRotation() throws CardException {
+        card.provision(INSTALL_FLAG_ENABLE_KEY_ROTATION, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        U2FClient client = new U2FClient(card.transport());
+
+        // Presence is available after provisioning, the policy withdraws it
+        card.setPresencePolicy(PresencePolicy.NEVER);
+        assertThat(sw(client::rotateWrappingKey), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
+
+        card.setPresencePolicy(PresencePolicy.ALWAYS);
+        assertThat(sw(client::rotateWrappingKey), is(U2FClient.SW_NO_ERROR));
+        assertThat(sw(client::retirePreviousWrappingKey), is(U2FClient.SW_NO_ERROR));
+    }
+}
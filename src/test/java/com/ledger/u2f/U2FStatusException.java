@@ -0,0 +1,29 @@
+package com.ledger.u2f;
+
+import javax.smartcardio.CardException;
+
+/**
+ * The authenticator answered with a status word the operation does not expect.
+ */
+public class U2FStatusException extends CardException {
+    private static final long serialVersionUID = 1L;
+
+    private final int sw;
+
+    public U2FStatusException(int sw) {
+        super(String.format("Unexpected status word %04X", sw));
+        this.sw = sw;
+    }
+
+    /**
+     * @param sw status word of the response, which is malformed despite it
+     */
+    public U2FStatusException(int sw, String message) {
+        super(message);
+        this.sw = sw;
+    }
+
+    public int getSW() {
+        return sw;
+    }
+}
@@ -17,6 +17,7 @@ import java.security.*;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -27,10 +28,10 @@ import static org.hamcrest.Matchers.*;
 public class U2FTest extends SimulatorTestBase {
 
 
-    private final static byte[] attestatioPrivkey = new byte[]{(byte) 0xf3, (byte) 0xfc, (byte) 0xcc, (byte) 0x0d, (byte) 0x00, (byte) 0xd8, (byte) 0x03, (byte) 0x19, (byte) 0x54, (byte) 0xf9, (byte) 0x08, (byte) 0x64, (byte) 0xd4, (byte) 0x3c, (byte) 0x24, (byte) 0x7f, (byte) 0x4b, (byte) 0xf5, (byte) 0xf0, (byte) 0x66, (byte) 0x5c, (byte) 0x6b, (byte) 0x50, (byte) 0xcc, (byte) 0x17, (byte) 0x74, (byte) 0x9a, (byte) 0x27, (byte) 0xd1, (byte) 0xcf, (byte) 0x76, (byte) 0x64};
-    private final static byte[] attestationCert = new byte[]{(byte) 0x30, (byte) 0x82, (byte) 0x01, (byte) 0x3c, (byte) 0x30, (byte) 0x81, (byte) 0xe4, (byte) 0xa0, (byte) 0x03, (byte) 0x02, (byte) 0x01, (byte) 0x02, (byte) 0x02, (byte) 0x0a, (byte) 0x47, (byte) 0x90, (byte) 0x12, (byte) 0x80, (byte) 0x00, (byte) 0x11, (byte) 0x55, (byte) 0x95, (byte) 0x73, (byte) 0x52, (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x02, (byte) 0x30, (byte) 0x17, (byte) 0x31, (byte) 0x15, (byte) 0x30, (byte) 0x13, (byte) 0x06, (byte) 0x03, (byte) 0x55, (byte) 0x04, (byte) 0x03, (byte) 0x13, (byte) 0x0c, (byte) 0x47, (byte) 0x6e, (byte) 0x75, (byte) 0x62, (byte) 0x62, (byte) 0x79, (byte) 0x20, (byte) 0x50, (byte) 0x69, (byte) 0x6c, (byte) 0x6f, (byte) 0x74, (byte) 0x30, (byte) 0x1e, (byte) 0x17, (byte) 0x0d, (byte) 0x31, (byte) 0x32, (byte) 0x30, (byte) 0x38, (byte) 0x31, (byte) 0x34, (byte) 0x31, (byte) 0x38, (byte) 0x32, (byte) 0x39, (byte) 0x33, (byte) 0x32, (byte) 0x5a, (byte) 0x17, (byte) 0x0d, (byte) 0x31, (byte) 0x33, (byte) 0x30, (byte) 0x38, (byte) 0x31, (byte) 0x34, (byte) 0x31, (byte) 0x38, (byte) 0x32, (byte) 0x39, (byte) 0x33, (byte) 0x32, (byte) 0x5a, (byte) 0x30, (byte) 0x31, (byte) 0x31, (byte) 0x2f, (byte) 0x30, (byte) 0x2d, (byte) 0x06, (byte) 0x03, (byte) 0x55, (byte) 0x04, (byte) 0x03, (byte) 0x13, (byte) 0x26, (byte) 0x50, (byte) 0x69, (byte) 0x6c, (byte) 0x6f, (byte) 0x74, (byte) 0x47, (byte) 0x6e, (byte) 0x75, (byte) 0x62, (byte) 0x62, (byte) 0x79, (byte) 0x2d, (byte) 0x30, (byte) 0x2e, (byte) 0x34, (byte) 0x2e, (byte) 0x31, (byte) 0x2d, (byte) 0x34, (byte) 0x37, (byte) 0x39, (byte) 0x30, (byte) 0x31, (byte) 0x32, (byte) 0x38, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x31, (byte) 0x31, (byte) 0x35, (byte) 0x35, (byte) 0x39, (byte) 0x35, (byte) 0x37, (byte) 0x33, (byte) 0x35, (byte) 0x32, (byte) 0x30, (byte) 0x59, (byte) 0x30, (byte) 0x13, (byte) 0x06, (byte) 0x07, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x02, (byte) 0x01, (byte) 0x06, (byte) 0x08, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x03, (byte) 0x01, (byte) 0x07, (byte) 0x03, (byte) 0x42, (byte) 0x00, (byte) 0x04, (byte) 0x8d, (byte) 0x61, (byte) 0x7e, (byte) 0x65, (byte) 0xc9, (byte) 0x50, (byte) 0x8e, (byte) 0x64, (byte) 0xbc, (byte) 0xc5, (byte) 0x67, (byte) 0x3a, (byte) 0xc8, (byte) 0x2a, (byte) 0x67, (byte) 0x99, (byte) 0xda, (byte) 0x3c, (byte) 0x14, (byte) 0x46, (byte) 0x68, (byte) 0x2c, (byte) 0x25, (byte) 0x8c, (byte) 0x46, (byte) 0x3f, (byte) 0xff, (byte) 0xdf, (byte) 0x58, (byte) 0xdf, (byte) 0xd2, (byte) 0xfa, (byte) 0x3e, (byte) 0x6c, (byte) 0x37, (byte) 0x8b, (byte) 0x53, (byte) 0xd7, (byte) 0x95, (byte) 0xc4, (byte) 0xa4, (byte) 0xdf, (byte) 0xfb, (byte) 0x41, (byte) 0x99, (byte) 0xed, (byte) 0xd7, (byte) 0x86, (byte) 0x2f, (byte) 0x23, (byte) 0xab, (byte) 0xaf, (byte) 0x02, (byte) 0x03, (byte) 0xb4, (byte) 0xb8, (byte) 0x91, (byte) 0x1b, (byte) 0xa0, (byte) 0x56, (byte) 0x99, (byte) 0x94, (byte) 0xe1, (byte) 0x01, (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x02, (byte) 0x03, (byte) 0x47, (byte) 0x00, (byte) 0x30, (byte) 0x44, (byte) 0x02, (byte) 0x20, (byte) 0x60, (byte) 0xcd, (byte) 0xb6, (byte) 0x06, (byte) 0x1e, (byte) 0x9c, (byte) 0x22, (byte) 0x26, (byte) 0x2d, (byte) 0x1a, (byte) 0xac, (byte) 0x1d, (byte) 0x96, (byte) 0xd8, (byte) 0xc7, (byte) 0x08, (byte) 0x29, (byte) 0xb2, (byte) 0x36, (byte) 0x65, (byte) 0x31, (byte) 0xdd, (byte) 0xa2, (byte) 0x68, (byte) 0x83, (byte) 0x2c, (byte) 0xb8, (byte) 0x36, (byte) 0xbc, (byte) 0xd3, (byte) 0x0d, (byte) 0xfa, (byte) 0x02, (byte) 0x20, (byte) 0x63, (byte) 0x1b, (byte) 0x14, (byte) 0x59, (byte) 0xf0, (byte) 0x9e, (byte) 0x63, (byte) 0x30, (byte) 0x05, (byte) 0x57, (byte) 0x22, (byte) 0xc8, (byte) 0xd8, (byte) 0x9b, (byte) 0x7f, (byte) 0x48, (byte) 0x88, (byte) 0x3b, (byte) 0x90, (byte) 0x89, (byte) 0xb8, (byte) 0x8d, (byte) 0x60, (byte) 0xd1, (byte) 0xd9, (byte) 0x79, (byte) 0x59, (byte) 0x02, (byte) 0xb3, (byte) 0x04, (byte) 0x10, (byte) 0xdf};
-    private final static byte[] challenge = new byte[]{(byte) 0x41, (byte) 0x42, (byte) 0xd2, (byte) 0x1c, (byte) 0x00, (byte) 0xd9, (byte) 0x4f, (byte) 0xfb, (byte) 0x9d, (byte) 0x50, (byte) 0x4a, (byte) 0xda, (byte) 0x8f, (byte) 0x99, (byte) 0xb7, (byte) 0x21, (byte) 0xf4, (byte) 0xb1, (byte) 0x91, (byte) 0xae, (byte) 0x4e, (byte) 0x37, (byte) 0xca, (byte) 0x01, (byte) 0x40, (byte) 0xf6, (byte) 0x96, (byte) 0xb6, (byte) 0x98, (byte) 0x3c, (byte) 0xfa, (byte) 0xcb};
-    private final static byte[] application = new byte[]{(byte) 0xf0, (byte) 0xe6, (byte) 0xa6, (byte) 0xa9, (byte) 0x70, (byte) 0x42, (byte) 0xa4, (byte) 0xf1, (byte) 0xf1, (byte) 0xc8, (byte) 0x7f, (byte) 0x5f, (byte) 0x7d, (byte) 0x44, (byte) 0x31, (byte) 0x5b, (byte) 0x2d, (byte) 0x85, (byte) 0x2c, (byte) 0x2d, (byte) 0xf5, (byte) 0xc7, (byte) 0x99, (byte) 0x1c, (byte) 0xc6, (byte) 0x62, (byte) 0x41, (byte) 0xbf, (byte) 0x70, (byte) 0x72, (byte) 0xd1, (byte) 0xc4};
+    final static byte[] attestatioPrivkey = new byte[]{(byte) 0xf3, (byte) 0xfc, (byte) 0xcc, (byte) 0x0d, (byte) 0x00, (byte) 0xd8, (byte) 0x03, (byte) 0x19, (byte) 0x54, (byte) 0xf9, (byte) 0x08, (byte) 0x64, (byte) 0xd4, (byte) 0x3c, (byte) 0x24, (byte) 0x7f, (byte) 0x4b, (byte) 0xf5, (byte) 0xf0, (byte) 0x66, (byte) 0x5c, (byte) 0x6b, (byte) 0x50, (byte) 0xcc, (byte) 0x17, (byte) 0x74, (byte) 0x9a, (byte) 0x27, (byte) 0xd1, (byte) 0xcf, (byte) 0x76, (byte) 0x64};
+    final static byte[] attestationCert = new byte[]{(byte) 0x30, (byte) 0x82, (byte) 0x01, (byte) 0x3c, (byte) 0x30, (byte) 0x81, (byte) 0xe4, (byte) 0xa0, (byte) 0x03, (byte) 0x02, (byte) 0x01, (byte) 0x02, (byte) 0x02, (byte) 0x0a, (byte) 0x47, (byte) 0x90, (byte) 0x12, (byte) 0x80, (byte) 0x00, (byte) 0x11, (byte) 0x55, (byte) 0x95, (byte) 0x73, (byte) 0x52, (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x02, (byte) 0x30, (byte) 0x17, (byte) 0x31, (byte) 0x15, (byte) 0x30, (byte) 0x13, (byte) 0x06, (byte) 0x03, (byte) 0x55, (byte) 0x04, (byte) 0x03, (byte) 0x13, (byte) 0x0c, (byte) 0x47, (byte) 0x6e, (byte) 0x75, (byte) 0x62, (byte) 0x62, (byte) 0x79, (byte) 0x20, (byte) 0x50, (byte) 0x69, (byte) 0x6c, (byte) 0x6f, (byte) 0x74, (byte) 0x30, (byte) 0x1e, (byte) 0x17, (byte) 0x0d, (byte) 0x31, (byte) 0x32, (byte) 0x30, (byte) 0x38, (byte) 0x31, (byte) 0x34, (byte) 0x31, (byte) 0x38, (byte) 0x32, (byte) 0x39, (byte) 0x33, (byte) 0x32, (byte) 0x5a, (byte) 0x17, (byte) 0x0d, (byte) 0x31, (byte) 0x33, (byte) 0x30, (byte) 0x38, (byte) 0x31, (byte) 0x34, (byte) 0x31, (byte) 0x38, (byte) 0x32, (byte) 0x39, (byte) 0x33, (byte) 0x32, (byte) 0x5a, (byte) 0x30, (byte) 0x31, (byte) 0x31, (byte) 0x2f, (byte) 0x30, (byte) 0x2d, (byte) 0x06, (byte) 0x03, (byte) 0x55, (byte) 0x04, (byte) 0x03, (byte) 0x13, (byte) 0x26, (byte) 0x50, (byte) 0x69, (byte) 0x6c, (byte) 0x6f, (byte) 0x74, (byte) 0x47, (byte) 0x6e, (byte) 0x75, (byte) 0x62, (byte) 0x62, (byte) 0x79, (byte) 0x2d, (byte) 0x30, (byte) 0x2e, (byte) 0x34, (byte) 0x2e, (byte) 0x31, (byte) 0x2d, (byte) 0x34, (byte) 0x37, (byte) 0x39, (byte) 0x30, (byte) 0x31, (byte) 0x32, (byte) 0x38, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x31, (byte) 0x31, (byte) 0x35, (byte) 0x35, (byte) 0x39, (byte) 0x35, (byte) 0x37, (byte) 0x33, (byte) 0x35, (byte) 0x32, (byte) 0x30, (byte) 0x59, (byte) 0x30, (byte) 0x13, (byte) 0x06, (byte) 0x07, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x02, (byte) 0x01, (byte) 0x06, (byte) 0x08, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x03, (byte) 0x01, (byte) 0x07, (byte) 0x03, (byte) 0x42, (byte) 0x00, (byte) 0x04, (byte) 0x8d, (byte) 0x61, (byte) 0x7e, (byte) 0x65, (byte) 0xc9, (byte) 0x50, (byte) 0x8e, (byte) 0x64, (byte) 0xbc, (byte) 0xc5, (byte) 0x67, (byte) 0x3a, (byte) 0xc8, (byte) 0x2a, (byte) 0x67, (byte) 0x99, (byte) 0xda, (byte) 0x3c, (byte) 0x14, (byte) 0x46, (byte) 0x68, (byte) 0x2c, (byte) 0x25, (byte) 0x8c, (byte) 0x46, (byte) 0x3f, (byte) 0xff, (byte) 0xdf, (byte) 0x58, (byte) 0xdf, (byte) 0xd2, (byte) 0xfa, (byte) 0x3e, (byte) 0x6c, (byte) 0x37, (byte) 0x8b, (byte) 0x53, (byte) 0xd7, (byte) 0x95, (byte) 0xc4, (byte) 0xa4, (byte) 0xdf, (byte) 0xfb, (byte) 0x41, (byte) 0x99, (byte) 0xed, (byte) 0xd7, (byte) 0x86, (byte) 0x2f, (byte) 0x23, (byte) 0xab, (byte) 0xaf, (byte) 0x02, (byte) 0x03, (byte) 0xb4, (byte) 0xb8, (byte) 0x91, (byte) 0x1b, (byte) 0xa0, (byte) 0x56, (byte) 0x99, (byte) 0x94, (byte) 0xe1, (byte) 0x01, (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08, (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce, (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x02, (byte) 0x03, (byte) 0x47, (byte) 0x00, (byte) 0x30, (byte) 0x44, (byte) 0x02, (byte) 0x20, (byte) 0x60, (byte) 0xcd, (byte) 0xb6, (byte) 0x06, (byte) 0x1e, (byte) 0x9c, (byte) 0x22, (byte) 0x26, (byte) 0x2d, (byte) 0x1a, (byte) 0xac, (byte) 0x1d, (byte) 0x96, (byte) 0xd8, (byte) 0xc7, (byte) 0x08, (byte) 0x29, (byte) 0xb2, (byte) 0x36, (byte) 0x65, (byte) 0x31, (byte) 0xdd, (byte) 0xa2, (byte) 0x68, (byte) 0x83, (byte) 0x2c, (byte) 0xb8, (byte) 0x36, (byte) 0xbc, (byte) 0xd3, (byte) 0x0d, (byte) 0xfa, (byte) 0x02, (byte) 0x20, (byte) 0x63, (byte) 0x1b, (byte) 0x14, (byte) 0x59, (byte) 0xf0, (byte) 0x9e, (byte) 0x63, (byte) 0x30, (byte) 0x05, (byte) 0x57, (byte) 0x22, (byte) 0xc8, (byte) 0xd8, (byte) 0x9b, (byte) 0x7f, (byte) 0x48, (byte) 0x88, (byte) 0x3b, (byte) 0x90, (byte) 0x89, (byte) 0xb8, (byte) 0x8d, (byte) 0x60, (byte) 0xd1, (byte) 0xd9, (byte) 0x79, (byte) 0x59, (byte) 0x02, (byte) 0xb3, (byte) 0x04, (byte) 0x10, (byte) 0xdf};
+    final static byte[] challenge = new byte[]{(byte) 0x41, (byte) 0x42, (byte) 0xd2, (byte) 0x1c, (byte) 0x00, (byte) 0xd9, (byte) 0x4f, (byte) 0xfb, (byte) 0x9d, (byte) 0x50, (byte) 0x4a, (byte) 0xda, (byte) 0x8f, (byte) 0x99, (byte) 0xb7, (byte) 0x21, (byte) 0xf4, (byte) 0xb1, (byte) 0x91, (byte) 0xae, (byte) 0x4e, (byte) 0x37, (byte) 0xca, (byte) 0x01, (byte) 0x40, (byte) 0xf6, (byte) 0x96, (byte) 0xb6, (byte) 0x98, (byte) 0x3c, (byte) 0xfa, (byte) 0xcb};
+    final static byte[] application = new byte[]{(byte) 0xf0, (byte) 0xe6, (byte) 0xa6, (byte) 0xa9, (byte) 0x70, (byte) 0x42, (byte) 0xa4, (byte) 0xf1, (byte) 0xf1, (byte) 0xc8, (byte) 0x7f, (byte) 0x5f, (byte) 0x7d, (byte) 0x44, (byte) 0x31, (byte) 0x5b, (byte) 0x2d, (byte) 0x85, (byte) 0x2c, (byte) 0x2d, (byte) 0xf5, (byte) 0xc7, (byte) 0x99, (byte) 0x1c, (byte) 0xc6, (byte) 0x62, (byte) 0x41, (byte) 0xbf, (byte) 0x70, (byte) 0x72, (byte) 0xd1, (byte) 0xc4};
 
     private final static byte[] U2F_VERSION_RESP = {'U', '2', 'F', '_', 'V', '2', (byte) 0x90, 0x00};
 
@@ -75,9 +76,7 @@ public class U2FTest extends SimulatorTestBase {
 
     @Test
     public void testSelectGivesVersion() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
 
         byte[] response = sim.selectAppletWithResult(aid);
         assertThat(response, is(U2F_VERSION_RESP));
@@ -85,9 +84,7 @@ public class U2FTest extends SimulatorTestBase {
 
     @Test
     public void testGetVersion() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
 
         ResponseAPDU versionAPDU = sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_INS_VERSION, 0, 0));
         assertThat(versionAPDU.getBytes(), is(U2F_VERSION_RESP));
@@ -95,9 +92,7 @@ public class U2FTest extends SimulatorTestBase {
 
     @Test
     public void testEnroll() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, CertificateException, InvalidKeySpecException {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -146,9 +141,7 @@ public class U2FTest extends SimulatorTestBase {
 
     @Test
     public void testEnrollGetData() throws NoSuchAlgorithmException, InvalidKeySpecException, CertificateException, InvalidKeyException, SignatureException {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -157,6 +150,8 @@ public class U2FTest extends SimulatorTestBase {
         assertThat(responseAPDU.getSW(), is(ISO7816.SW_BYTES_REMAINING_00));
 
         byte[] responseData = sendGetData();
+        // Read to the end, nothing is left to get
+        assertThat(sim.transmitCommand(new CommandAPDU(FIDO_CLA, ISO_INS_GET_DATA, 0, 0)).getSW(), is(ISO7816.SW_CONDITIONS_OF_USE_NOT_SATISFIED));
 
         byte[] pubKey = new byte[65];
         System.arraycopy(responseData, 1, pubKey, 0, 65);
@@ -195,10 +190,35 @@ public class U2FTest extends SimulatorTestBase {
     }
 
     @Test
-    public void testSignNotEnrolled() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
+    public void testEnrollExtendedGetData() {
+        prepareProvisionedApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
+        byte[] enrollData = new byte[64];
+        System.arraycopy(challenge, 0, enrollData, 0, 32);
+        System.arraycopy(application, 0, enrollData, 32, 32);
 
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        ResponseAPDU responseAPDU = sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_INS_ENROLL, 0, 0, enrollData, 256));
+        assertThat(responseAPDU.getSW(), is(ISO7816.SW_BYTES_REMAINING_00));
+        assertThat(responseAPDU.getNr(), is(256));
+
+        // A single extended continuation carries the rest of the certificate and the signature
+        ResponseAPDU getDataAPDU = sim.transmitCommand(new CommandAPDU(FIDO_CLA, ISO_INS_GET_DATA, 0, 0, 65535));
+        assertThat(getDataAPDU.getSW(), is(ISO7816.SW_NO_ERROR));
+        byte[] responseData = new byte[256 + getDataAPDU.getNr()];
+        System.arraycopy(responseAPDU.getData(), 0, responseData, 0, 256);
+        System.arraycopy(getDataAPDU.getData(), 0, responseData, 256, getDataAPDU.getNr());
+        int keyHandleLength = responseData[66] & 0xff;
+        byte[] cert = new byte[attestationCert.length];
+        System.arraycopy(responseData, 67 + keyHandleLength, cert, 0, cert.length);
+        assertThat(cert, is(attestationCert));
+        assertThat(responseData.length - 67 - keyHandleLength - cert.length, allOf(greaterThanOrEqualTo(8), lessThanOrEqualTo(72)));
+
+        getDataAPDU = sim.transmitCommand(new CommandAPDU(FIDO_CLA, ISO_INS_GET_DATA, 0, 0, 65535));
+        assertThat(getDataAPDU.getSW(), is(ISO7816.SW_CONDITIONS_OF_USE_NOT_SATISFIED));
+    }
+
+    @Test
+    public void testSignNotEnrolled() {
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
 
         byte[] keyHandle = new byte[32];
         new Random().nextBytes(keyHandle);
@@ -215,9 +235,7 @@ public class U2FTest extends SimulatorTestBase {
 
     @Test
     public void testEnrollAndSign() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -244,9 +262,7 @@ public class U2FTest extends SimulatorTestBase {
 
     @Test
     public void testSignGetData() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -269,17 +285,17 @@ public class U2FTest extends SimulatorTestBase {
         System.arraycopy(keyHandle, 0, signData, 65, keyHandleLength);
 
         ResponseAPDU signAPDU = sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_INS_SIGN, P1_SIGN_OPERATION, 0, signData));
-        assertThat(signAPDU.getSW(), allOf(greaterThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00), lessThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00 + 256)));
+        assertThat(signAPDU.getSW(), allOf(greaterThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00), lessThanOrEqualTo(ISO7816.SW_BYTES_REMAINING_00 + 255)));
 
         responseData = sendGetData();
         assertThat(responseData, is(not(nullValue())));
+        // Read to the end, nothing is left to get
+        assertThat(sim.transmitCommand(new CommandAPDU(FIDO_CLA, ISO_INS_GET_DATA, 0, 0)).getSW(), is(ISO7816.SW_CONDITIONS_OF_USE_NOT_SATISFIED));
     }
 
     @Test
     public void testGetDataNoData() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         ResponseAPDU getDataAPDU = sim.transmitCommand(new CommandAPDU(FIDO_CLA, ISO_INS_GET_DATA, 0, 0));
         assertThat(getDataAPDU.getSW(), is(ISO7816.SW_CONDITIONS_OF_USE_NOT_SATISFIED));
     }
@@ -321,9 +337,7 @@ public class U2FTest extends SimulatorTestBase {
     
     @Test
     public void testEnrollWrongLength() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         final int omittedDataLength = 1;
         byte[] enrollData = new byte[64 - omittedDataLength];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
@@ -353,9 +367,7 @@ public class U2FTest extends SimulatorTestBase {
     
     @Test
     public void testEnrollUserPresence() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -369,9 +381,7 @@ public class U2FTest extends SimulatorTestBase {
     
     @Test
     public void testEnrollAndSignWrongLength() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -390,9 +400,7 @@ public class U2FTest extends SimulatorTestBase {
     
     @Test
     public void testEnrollAndSignInvalidKeyHandle() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -421,9 +429,7 @@ public class U2FTest extends SimulatorTestBase {
     
     @Test
     public void testEnrollAndSignUserPresence() {
-        prepareApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -447,9 +453,7 @@ public class U2FTest extends SimulatorTestBase {
     
     @Test
     public void testEnrollAndSignCheckOnly() {
-        prepareApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, attestationCert.length, attestatioPrivkey);
-
-        sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_SET_ATTESTATION_CERT, 0, 0, attestationCert));
+        prepareProvisionedApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
         byte[] enrollData = new byte[64];
         System.arraycopy(challenge, 0, enrollData, 0, 32);
         System.arraycopy(application, 0, enrollData, 32, 32);
@@ -473,4 +477,107 @@ public class U2FTest extends SimulatorTestBase {
         ResponseAPDU signResponse = sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_INS_SIGN, P1_SIGN_CHECK_ONLY, 0, signData, 65535));
         assertThat(signResponse.getSW(), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
     }
+
+    @Test
+    public void testRotateWrappingKeyUserPresence() {
+        prepareProvisionedApplet(INSTALL_FLAG_ENABLE_KEY_ROTATION, attestatioPrivkey, attestationCert);
+        sim.reset();
+        sim.selectApplet(aid);
+
+        ResponseAPDU rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_RETIRE_PREVIOUS, 0));
+        assertThat(rotateResponse.getSW(), is(FIDO_SW_TEST_OF_PRESENCE_REQUIRED));
+        rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, 0x02, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_INCORRECT_P1P2));
+    }
+
+    @Test
+    public void testRewrapWrongLength() {
+        prepareProvisionedApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
+        ResponseAPDU rewrapResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_REWRAP, 0, 0, new byte[95]));
+        assertThat(rewrapResponse.getSW(), is(ISO7816.SW_WRONG_LENGTH));
+        rewrapResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_REWRAP, 0, 0));
+        assertThat(rewrapResponse.getSW(), is(ISO7816.SW_WRONG_LENGTH));
+    }
+
+    @Test
+    public void testRotateWrappingKeyTwice() {
+        prepareProvisionedApplet((byte) (INSTALL_FLAG_DISABLE_USER_PRESENCE | INSTALL_FLAG_ENABLE_KEY_ROTATION), attestatioPrivkey, attestationCert);
+        ResponseAPDU rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        // The previous key still has key handles to re-wrap
+        rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_CONDITIONS_OF_USE_NOT_SATISFIED));
+        rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_RETIRE_PREVIOUS, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+    }
+
+    @Test
+    public void testWrappingKeyManagementNeedsProvisioning() {
+        prepareApplet((byte) (INSTALL_FLAG_DISABLE_USER_PRESENCE | INSTALL_FLAG_ENABLE_KEY_ROTATION), attestationCert.length, attestatioPrivkey);
+        ResponseAPDU response = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(response.getSW(), is(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED));
+        response = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_REWRAP, 0, 0, new byte[96]));
+        assertThat(response.getSW(), is(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED));
+
+        prepareProvisionedApplet((byte) (INSTALL_FLAG_DISABLE_USER_PRESENCE | INSTALL_FLAG_ENABLE_KEY_ROTATION), attestatioPrivkey, attestationCert);
+        response = sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(response.getSW(), is(ISO7816.SW_INS_NOT_SUPPORTED));
+    }
+
+    @Test
+    public void testRotateWrappingKeyNeedsInstallFlag() {
+        prepareProvisionedApplet(INSTALL_FLAG_DISABLE_USER_PRESENCE, attestatioPrivkey, attestationCert);
+        ResponseAPDU response = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(response.getSW(), is(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED));
+        response = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_RETIRE_PREVIOUS, 0));
+        assertThat(response.getSW(), is(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED));
+        // Re-wrapping changes no key and stays available
+        response = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_REWRAP, 0, 0, new byte[95]));
+        assertThat(response.getSW(), is(ISO7816.SW_WRONG_LENGTH));
+    }
+
+    @Test
+    public void testRotateRewrapAndRetire() {
+        prepareProvisionedApplet((byte) (INSTALL_FLAG_DISABLE_USER_PRESENCE | INSTALL_FLAG_ENABLE_KEY_ROTATION), attestatioPrivkey, attestationCert);
+        byte[] enrollData = new byte[64];
+        System.arraycopy(challenge, 0, enrollData, 0, 32);
+        System.arraycopy(application, 0, enrollData, 32, 32);
+        ResponseAPDU enrollResponse = sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_INS_ENROLL, 0, 0, enrollData, 65535));
+        assertThat(enrollResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        byte[] responseData = enrollResponse.getData();
+        byte[] oldKeyHandle = Arrays.copyOfRange(responseData, 67, 67 + responseData[66]);
+
+        ResponseAPDU rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_ROTATE, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        assertThat(sign(oldKeyHandle).getSW(), is(ISO7816.SW_NO_ERROR));
+
+        byte[] rewrapData = new byte[32 + 64];
+        System.arraycopy(application, 0, rewrapData, 0, 32);
+        System.arraycopy(oldKeyHandle, 0, rewrapData, 32, 64);
+        ResponseAPDU rewrapResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_REWRAP, 0, 0, rewrapData, 256));
+        assertThat(rewrapResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        byte[] result = rewrapResponse.getData();
+        assertThat(result.length, is(1 + 64));
+        assertThat(result[0], is(FIDOAPI.REWRAP_DONE));
+        byte[] newKeyHandle = Arrays.copyOfRange(result, 1, 1 + 64);
+        assertThat(newKeyHandle, is(not(oldKeyHandle)));
+
+        rotateResponse = sim.transmitCommand(new CommandAPDU(PROPRIETARY_CLA, FIDO_ADM_ROTATE_WRAPPING_KEY, P1_RETIRE_PREVIOUS, 0));
+        assertThat(rotateResponse.getSW(), is(ISO7816.SW_NO_ERROR));
+        assertThat(sign(newKeyHandle).getSW(), is(ISO7816.SW_NO_ERROR));
+        assertThat(sign(oldKeyHandle).getSW(), is(FIDO_SW_INVALID_KEY_HANDLE));
+    }
+
+    private ResponseAPDU sign(byte[] keyHandle) {
+        byte[] signData = new byte[65 + keyHandle.length];
+        System.arraycopy(challenge, 0, signData, 0, 32);
+        System.arraycopy(application, 0, signData, 32, 32);
+        signData[64] = (byte) keyHandle.length;
+        System.arraycopy(keyHandle, 0, signData, 65, keyHandle.length);
+        return sim.transmitCommand(new CommandAPDU(FIDO_CLA, FIDO_INS_SIGN, P1_SIGN_OPERATION, 0, signData, 65535));
+    }
 }
@@ -29,4 +29,16 @@ public class UtilsTest {
         byte[] array2 = new byte[]{0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x00, 0x00};
         assertThat(FIDOUtils.compareConstantTime(array1, (short)1, array2, (short)3, (short)3), is(true));
     }
+
+    @Test
+    public void testCompareDeinterleaved() {
+        byte[] array1 = new byte[]{0x12, 0x34};
+        byte[] array2 = new byte[]{(byte)0xab, (byte)0xcd};
+        byte[] interleaved = new byte[5];
+        FIDOStandalone.interleave(array1, (short)0, array2, (short)0, interleaved, (short)1, (short)2);
+        assertThat(FIDOStandalone.compareDeinterleaved(interleaved, (short)1, array1, (short)0, (short)2), is(true));
+        assertThat(FIDOStandalone.compareDeinterleaved(interleaved, (short)1, array2, (short)0, (short)2), is(false));
+        array1[1] ^= 0x10;
+        assertThat(FIDOStandalone.compareDeinterleaved(interleaved, (short)1, array1, (short)0, (short)2), is(false));
+    }
 }
@@ -0,0 +1,119 @@
+package com.ledger.u2f;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A fleet of cards kept as images in a {@link CardImageStore}, with at most a fixed number of them running as live
+ * simulators at a time.
+ * <p>
+ * A card is materialized on its first use by restoring its image into a simulator. When the resident limit is
+ * reached the least recently used card is written back to its image and its simulator reused for the next card, so
+ * the heap holds <code>maxResident</code> simulators whatever the size of the fleet.
+ * <p>
+ * Like {@link U2FSimulator} a fleet is confined to the thread that created it. Several threads can share one store
+ * with a fleet each, as long as they serve disjoint card ids.
+ */
+public class VirtualFleet {
+    private final Thread owner = Thread.currentThread();
+    private final CardImageStore store;
+    private final int maxResident;
+    private final LinkedHashMap<Long, U2FSimulator> resident;
+    private long materializations;
+    private long evictions;
+
+    public VirtualFleet(CardImageStore store, int maxResident) {
+        if (maxResident <= 0) {
+            throw new IllegalArgumentException("At least one card must be resident");
+        }
+        this.store = store;
+        this.maxResident = maxResident;
+        this.resident = new LinkedHashMap<>(maxResident * 2, 0.75f, true);
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("Fleet is confined to " + owner.getName());
+        }
+    }
+
+    /**
+     * Install and provision a card, replacing any previous image for its id.
+     */
+    public void provision(long id, byte flags, byte[] attestationPrivateKey, byte[] certificate) {
+        checkThread();
+        U2FSimulator card = resident.remove(id);
+        if (card == null) {
+            card = vacancy();
+        }
+        card.provision(flags, attestationPrivateKey, certificate);
+        store.write(id, card.snapshot());
+        resident.put(id, card);
+    }
+
+    /**
+     * @return the live simulator of a card, materialized from its image if it is not resident
+     * @throws IllegalArgumentException if the card was never provisioned
+     */
+    public U2FSimulator card(long id) {
+        checkThread();
+        U2FSimulator card = resident.get(id);
+        if (card != null) {
+            return card;
+        }
+        U2FAppletSnapshot image = store.read(id);
+        if (image == null) {
+            throw new IllegalArgumentException("No card " + id);
+        }
+        card = vacancy();
+        card.restore(image);
+        resident.put(id, card);
+        materializations++;
+        return card;
+    }
+
+    /**
+     * @return a simulator free for another card, evicting the least recently used one if the fleet is full
+     */
+    private U2FSimulator vacancy() {
+        if (resident.size() < maxResident) {
+            return new U2FSimulator();
+        }
+        Iterator<Map.Entry<Long, U2FSimulator>> eldest = resident.entrySet().iterator();
+        Map.Entry<Long, U2FSimulator> entry = eldest.next();
+        eldest.remove();
+        store.write(entry.getKey(), entry.getValue().snapshot());
+        evictions++;
+        return entry.getValue();
+    }
+
+    /**
+     * Write the state of all resident cards back to their images, keeping them resident.
+     */
+    public void flush() {
+        checkThread();
+        for (Map.Entry<Long, U2FSimulator> entry : resident.entrySet()) {
+            store.write(entry.getKey(), entry.getValue().snapshot());
+        }
+    }
+
+    public int residentCount() {
+        return resident.size();
+    }
+
+    public boolean isResident(long id) {
+        return resident.containsKey(id);
+    }
+
+    /**
+     * @return number of cards restored from their image
+     */
+    public long materializations() {
+        return materializations;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,120 @@
+package com.ledger.u2f;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class VirtualFleetTest {
+    private static final int CARDS = 5;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("fleet", ".img");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] register(U2FSimulator card) throws CardException {
+        RegistrationResponse registration = new U2FClient(card.transport()).register(U2FTest.challenge, U2FTest.application);
+        byte[] keyHandle = new byte[registration.keyHandleLength()];
+        registration.keyHandle().get(keyHandle);
+        return keyHandle;
+    }
+
+    private static long authenticate(U2FSimulator card, byte[] keyHandle) throws CardException {
+        return new U2FClient(card.transport()).authenticate(U2FTest.challenge, U2FTest.application, keyHandle, 0, keyHandle.length).counter();
+    }
+
+    @Test
+    public void testImageRoundTrip() throws IOException {
+        U2FSimulator card = new U2FSimulator();
+        card.provision(SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        try (CardImageStore store = CardImageStore.create(file, 16, U2FTest.attestationCert.length)) {
+            assertThat(store.contains(3), is(false));
+            assertThat(store.read(3), is(nullValue()));
+            store.write(3, card.snapshot());
+        }
+        try (CardImageStore store = CardImageStore.open(file)) {
+            assertThat(store.slotCount(), is(16L));
+            U2FAppletSnapshot image = store.read(3);
+            assertThat(image.certificateLength(), is(U2FTest.attestationCert.length));
+            assertThat(image.isCertificateSet(), is(true));
+            assertThat(image.counter(), is(0L));
+        }
+    }
+
+    @Test
+    public void testTornWriteKeepsPreviousImage() throws IOException, CardException {
+        U2FSimulator card = new U2FSimulator();
+        card.provision(SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+        byte[] keyHandle = register(card);
+        try (CardImageStore store = CardImageStore.create(file, 16, U2FTest.attestationCert.length)) {
+            store.write(3, card.snapshot());
+            authenticate(card, keyHandle);
+            store.write(3, card.snapshot());
+            assertThat(store.read(3).counter(), is(1L));
+        }
+
+        // Damage the counter of the second copy, written last, as a crash in the middle of its write would
+        int slotSize = 2 * (CardImageStore.COPY_HEADER_LENGTH + U2FAppletSnapshot.ENCODING_OVERHEAD + U2FTest.attestationCert.length);
+        long counter = CardImageStore.HEADER_LENGTH + 3L * slotSize + slotSize / 2 + CardImageStore.COPY_HEADER_LENGTH + 3;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0x55}), counter + 3);
+        }
+        try (CardImageStore store = CardImageStore.open(file)) {
+            assertThat(store.contains(3), is(true));
+            assertThat(store.read(3).counter(), is(0L));
+        }
+    }
+
+    @Test
+    public void testEvictedCardsKeepTheirState() throws IOException, CardException {
+        try (CardImageStore store = CardImageStore.create(file, CARDS, U2FTest.attestationCert.length)) {
+            VirtualFleet fleet = new VirtualFleet(store, 2);
+            byte[][] keyHandles = new byte[CARDS][];
+            for (int id = 0; id < CARDS; id++) {
+                fleet.provision(id, SimulatorTestBase.INSTALL_FLAG_DISABLE_USER_PRESENCE, U2FTest.attestatioPrivkey, U2FTest.attestationCert);
+                keyHandles[id] = register(fleet.card(id));
+                assertThat(authenticate(fleet.card(id), keyHandles[id]), is(1L));
+            }
+            assertThat(fleet.residentCount(), is(2));
+            assertThat(fleet.isResident(0), is(false));
+
+            // Each card comes back with its own wrapping key and counter
+            for (int id = 0; id < CARDS; id++) {
+                assertThat(authenticate(fleet.card(id), keyHandles[id]), is(2L));
+                U2FClient client = new U2FClient(fleet.card(id).transport());
+                int other = (id + 1) % CARDS;
+                assertThat(client.checkOnly(U2FTest.application, keyHandles[other], 0, keyHandles[other].length), is(false));
+            }
+            assertThat(fleet.residentCount(), is(2));
+            assertThat(fleet.materializations(), is((long) CARDS));
+
+            fleet.flush();
+            assertThat(store.read(CARDS - 1).counter(), is(2L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCard() throws IOException {
+        try (CardImageStore store = CardImageStore.create(file, CARDS, U2FTest.attestationCert.length)) {
+            new VirtualFleet(store, 2).card(1);
+        }
+    }
+}